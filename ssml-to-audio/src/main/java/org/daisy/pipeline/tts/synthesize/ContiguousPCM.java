@@ -1,28 +1,42 @@
 package org.daisy.pipeline.tts.synthesize;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import javax.sound.sampled.AudioFormat;
 
 import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferTracker;
 
 /**
  * ContiguousPCMs are the message objects sent from TTS processors to the
  * encoders. Every ContiguousPCM contains a list of audio buffers and attributes
  * related to the URI of the sound file to produce.
+ *
+ * While waiting to be encoded, the PCM data can be moved to a direct
+ * ByteBuffer, outside of the Java heap. The memory footprint reported by
+ * sizeInBytes() doesn't change in the process so that the accounting of the
+ * AudioBufferTracker remains consistent. Only the encoding space is concerned:
+ * the TTS engines keep writing to heap buffers.
+ *
+ * Alternatively, the PCM data can be spilled to a raw file when there is no
+ * room left in the encoding space. Spilled packets are not accounted in the
+ * encoding space.
+ *
+ * In both cases, the PCM data are copied back to the heap chunk by chunk while
+ * the encoder iterates over the buffers. The chunks are taken from the
+ * AudioBufferTracker's pool, if any, and must be given back with recycle() once
+ * encoded.
  */
-class ContiguousPCM implements Comparable<ContiguousPCM> {
-
-	static ContiguousPCM EndOfQueue = new ContiguousPCM();
-
-	ContiguousPCM() {
-		mEncodingTimeApprox = -1;
-		mSizeInBytes = minByteSize();
-	}
-
-	boolean isEndOfQueue() {
-		return (mEncodingTimeApprox == -1);
-	}
+class ContiguousPCM {
 
 	ContiguousPCM(AudioFormat audioformat, Iterable<AudioBuffer> buffers, File destdir,
 	        String destFilePrefix) {
@@ -40,9 +54,12 @@ class ContiguousPCM implements Comparable<ContiguousPCM> {
 			mSizeInBytes += buffer.data.length;
 	}
 
-	@Override
-	public int compareTo(ContiguousPCM o) {
-		return (o.mEncodingTimeApprox - mEncodingTimeApprox); //descending order => biggest chunks will be polled first
+	/**
+	 * @return a value proportional to the time needed for encoding the
+	 *         packet, used for polling the biggest packets first
+	 */
+	int getEncodingTimeApprox() {
+		return mEncodingTimeApprox;
 	}
 
 	String getDestinationFilePrefix() {
@@ -58,7 +75,56 @@ class ContiguousPCM implements Comparable<ContiguousPCM> {
 	}
 
 	Iterable<AudioBuffer> getBuffers() {
-		return mBuffers;
+		if (mBuffers != null)
+			return mBuffers;
+		return new Iterable<AudioBuffer>() {
+			@Override
+			public Iterator<AudioBuffer> iterator() {
+				if (mSpillFile != null)
+					return new ChunkIterator(map(mSpillFile, mSpillSize));
+				return new ChunkIterator(mOffHeap.duplicate());
+			}
+		};
+	}
+
+	/**
+	 * Give the buffers back to @param tracker for recycling once they have
+	 * been encoded. The buffers must not be used afterwards.
+	 */
+	void recycle(AudioBufferTracker tracker) {
+		if (mBuffers != null)
+			tracker.recycle(mBuffers);
+		else
+			tracker.recycle(mChunks);
+		mChunks.clear();
+		mOffHeap = null; //the direct memory is freed once the ByteBuffer is collected
+	}
+
+	/**
+	 * Move the PCM data to a direct ByteBuffer. The heap buffers are given
+	 * back to @param tracker for recycling.
+	 *
+	 * @return false if there is not enough direct memory, in which case the
+	 *         data stay on the heap
+	 */
+	boolean moveOffHeap(AudioBufferTracker tracker) {
+		int size = 0;
+		for (AudioBuffer b : mBuffers)
+			size += b.size;
+		ByteBuffer offHeap;
+		try {
+			offHeap = ByteBuffer.allocateDirect(size);
+		} catch (OutOfMemoryError e) {
+			return false; //exceeds -XX:MaxDirectMemorySize
+		}
+		for (AudioBuffer b : mBuffers)
+			offHeap.put(b.data, 0, b.size);
+		((Buffer) offHeap).flip();
+		tracker.recycle(mBuffers);
+		mBuffers = null;
+		mOffHeap = offHeap;
+		mTracker = tracker;
+		return true;
 	}
 
 	StringBuilder getURIholder() {
@@ -73,12 +139,107 @@ class ContiguousPCM implements Comparable<ContiguousPCM> {
 		return 500;//rough approximation of an empty ContiguousPCM's memory footprint
 	}
 
-	private Iterable<AudioBuffer> mBuffers;
-	private int mEncodingTimeApprox; //used for sorting
+	/**
+	 * Write the PCM data to a raw file in @param dir. The heap buffers are
+	 * given back to @param tracker for recycling. The file must be deleted
+	 * with deleteSpillFile() once encoded.
+	 */
+	void spill(File dir, AudioBufferTracker tracker) throws IOException {
+		File f = File.createTempFile("spill", ".pcm", dir);
+		int size = 0;
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+			if (mOffHeap != null) {
+				size = mOffHeap.remaining();
+				while (mOffHeap.hasRemaining())
+					channel.write(mOffHeap);
+			} else {
+				for (AudioBuffer b : mBuffers) {
+					ByteBuffer bb = ByteBuffer.wrap(b.data, 0, b.size);
+					while (bb.hasRemaining())
+						channel.write(bb);
+					size += b.size;
+				}
+			}
+		} catch (IOException e) {
+			f.delete();
+			if (mOffHeap != null)
+				((Buffer) mOffHeap).rewind();
+			throw e;
+		}
+		if (mBuffers != null)
+			tracker.recycle(mBuffers);
+		mBuffers = null;
+		mOffHeap = null;
+		mSpillFile = f;
+		mSpillSize = size;
+		mTracker = tracker;
+	}
+
+	boolean isSpilled() {
+		return mSpillFile != null;
+	}
+
+	void deleteSpillFile() {
+		if (mSpillFile != null)
+			mSpillFile.delete();
+	}
+
+	private Iterable<AudioBuffer> mBuffers; //null while the data are off-heap or spilled
+	private ByteBuffer mOffHeap;
+	private AudioBufferTracker mTracker; //provides the chunks of off-heap and spilled data
+	private List<AudioBuffer> mChunks = new ArrayList<AudioBuffer>(); //chunks handed out to the encoder
+	private File mSpillFile;
+	private int mSpillSize;
+	private int mEncodingTimeApprox; //used for prioritizing
 	private int mSizeInBytes; //used for monitoring the memory footprint
 	private AudioFormat mAudioFormat;
 	private File mDestDir;
 	private String mDestFilePrefix;
 	private StringBuilder mDestURI; //simple way to hold a string
 
+	private static ByteBuffer map(File file, int size) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			//the mapping remains valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} catch (IOException e) {
+			throw new RuntimeException("could not read spilled PCM " + file, e);
+		}
+	}
+
+	private static class ChunkBuffer extends AudioBuffer {
+		ChunkBuffer(byte[] data, int size) {
+			this.data = data;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Copies the data to the heap, one chunk at a time, as the encoder
+	 * iterates. The chunks have a bounded size so that their arrays can be
+	 * recycled by the AudioBufferPool, unlike an array of the packet's size.
+	 */
+	private class ChunkIterator implements Iterator<AudioBuffer> {
+		private static final int ChunkSize = 1048576;
+		private ByteBuffer mData;
+
+		ChunkIterator(ByteBuffer data) {
+			mData = data;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return mData.hasRemaining();
+		}
+
+		@Override
+		public AudioBuffer next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			int size = Math.min(ChunkSize, mData.remaining());
+			ChunkBuffer b = new ChunkBuffer(mTracker.acquireArray(size), size);
+			mData.get(b.data, 0, size);
+			mChunks.add(b);
+			return b;
+		}
+	}
 }
@@ -19,14 +19,21 @@ class ContiguousText implements Comparable<ContiguousText> {
 
 	void computeSize() {
 		mSize = 0;
+		mDuration = 0;
+		mCost = 0;
 		for (Sentence speakable : sentences) {
 			mSize += speakable.getSize();
+			mDuration += speakable.getEstimatedDuration();
+			mCost += speakable.getEstimatedCost();
 		}
 	}
 
+	/**
+	 * Sections are sorted by estimated cost, in descending order
+	 */
 	@Override
 	public int compareTo(ContiguousText other) {
-		return (other.mSize - mSize);
+		return Long.compare(other.mCost, mCost);
 	}
 
 	public void setDocumentSplitPosition(int pos) {
@@ -45,8 +52,18 @@ class ContiguousText implements Comparable<ContiguousText> {
 		return mSize;
 	}
 
-	public void setStringsize(int size) {
-		mSize = size;
+	/**
+	 * @return the estimated duration of the audio, in milliseconds
+	 */
+	public long getEstimatedDuration() {
+		return mDuration;
+	}
+
+	/**
+	 * @return the estimated time spent by the TTS engines, in milliseconds
+	 */
+	public long getEstimatedCost() {
+		return mCost;
 	}
 
 	public File getAudioOutputDir() {
@@ -56,6 +73,8 @@ class ContiguousText implements Comparable<ContiguousText> {
 	private File mAudioOutputDir;
 	private int mDocumentSplitPosition;
 	private int mDocumentPosition;
-	private int mSize; //used for sorting
+	private int mSize; //used for the progress
+	private long mDuration;
+	private long mCost; //used for sorting
 	List<Sentence> sentences;
 }
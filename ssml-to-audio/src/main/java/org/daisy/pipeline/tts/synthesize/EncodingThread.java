@@ -4,17 +4,17 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 import org.daisy.pipeline.audio.AudioEncoder;
 import org.daisy.pipeline.audio.AudioServices;
 import org.daisy.pipeline.tts.AudioBufferTracker;
-import org.daisy.pipeline.tts.TTSTimeout;
+import org.daisy.pipeline.tts.TTSTimeoutWheel;
 import org.daisy.pipeline.tts.synthesize.TTSLog.ErrorCode;
 
 /**
  * Consumes a shared queue of PCM packets. PCM packets are then provided to
- * audio encoders. The thread stops when it receives an 'EndOfQueue' marker.
+ * audio encoders. The thread stops when the queue is closed and empty.
  */
 public class EncodingThread {
 
@@ -34,9 +34,9 @@ public class EncodingThread {
 	private Throwable criticalError;
 
 	void start(final AudioServices encoderRegistry,
-	        final BlockingQueue<ContiguousPCM> inputPCM, final IPipelineLogger logger,
+	        final PCMQueue inputPCM, final IPipelineLogger logger,
 	        final AudioBufferTracker audioBufferTracker, Map<String, String> TTSproperties,
-	        final TTSLog ttslog) {
+	        final TTSLog ttslog, ThreadFactory threadFactory) {
 
 		//max seconds of encoded audio per seconds of encoding
 		//it would be more accurate with a byte rate instead, but less intuitive
@@ -77,13 +77,14 @@ public class EncodingThread {
 		final AudioEncoder.EncodingOptions options = encodingOptions;
 		final AudioEncoder fencoder = encoder;
 		final float fEncodingSpeed = encodingSpeed;
-		final TTSTimeout timeout = new TTSTimeout();
+		final TTSTimeoutWheel.Timeout timeout = TTSTimeoutWheel.newTimeout();
 
-		mThread = new Thread() {
+		inputPCM.addConsumer();
+		mThread = threadFactory.newThread(new Runnable() {
 			@Override
 			public void run() {
 				try {
-					while (!interrupted()) {
+					while (!Thread.interrupted()) {
 						ContiguousPCM job;
 						try {
 							job = inputPCM.take();
@@ -93,8 +94,7 @@ public class EncodingThread {
 							ttslog.addGeneralError(ErrorCode.CRITICAL_ERROR, msg);
 							break; //warning: encoding bytes are not freed
 						}
-						if (job.isEndOfQueue()) {
-							//nothing to release
+						if (job == null) { //end of queue
 							break;
 						}
 						int jobSize = job.sizeInBytes();
@@ -117,25 +117,28 @@ public class EncodingThread {
 								String msg = "timeout while encoding audio to "
 									+ job.getDestinationFilePrefix() + ": " + getStack(e);
 								ttslog.addGeneralError(ErrorCode.CRITICAL_ERROR, msg);
-								audioBufferTracker.releaseEncodersMemory(jobSize);
+								release(job, audioBufferTracker);
+								//the buffers are not recycled since the encoder may still be using them
 								throw new EncodingException(e);
 							} catch (Throwable t) {
 								String msg = "error while encoding audio to "
 									+ job.getDestinationFilePrefix() + ": " + getStack(t);
 								ttslog.addGeneralError(ErrorCode.CRITICAL_ERROR, msg);
-								audioBufferTracker.releaseEncodersMemory(jobSize);
+								release(job, audioBufferTracker);
 								throw new EncodingException(t);
 							} finally {
 								timeout.disable();
 							}
 						}
-						audioBufferTracker.releaseEncodersMemory(jobSize);
+						job.recycle(audioBufferTracker);
+						release(job, audioBufferTracker);
 					}
 				} finally {
+					inputPCM.removeConsumer();
 					timeout.close();
 				}
 			}
-		};
+		});
 		mThread.setUncaughtExceptionHandler(
 			(thread, throwable) -> { criticalError = throwable; }
 		);
@@ -156,6 +159,17 @@ public class EncodingThread {
 		}
 	}
 
+	/**
+	 * Release the encoding memory of @param job, or delete its file if it has
+	 * been spilled to disk.
+	 */
+	private static void release(ContiguousPCM job, AudioBufferTracker audioBufferTracker) {
+		if (job.isSpilled())
+			job.deleteSpillFile();
+		else
+			audioBufferTracker.releaseEncodersMemory(job.sizeInBytes());
+	}
+
 	//TODO: move this method in some kind of utils/helpers
 	private static String getStack(Throwable t) {
 		StringWriter writer = new StringWriter();
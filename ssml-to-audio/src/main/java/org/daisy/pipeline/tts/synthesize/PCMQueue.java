@@ -0,0 +1,251 @@
+package org.daisy.pipeline.tts.synthesize;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import org.daisy.pipeline.tts.AudioBufferTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded hand-off of the PCM packets between the TextToPcmThreads and the
+ * EncodingThreads. Producers are blocked when the queue holds too many packets
+ * and when the encoding memory space of the AudioBufferTracker is full.
+ *
+ * Packets are stored in buckets of size classes (powers of two of their
+ * approximate encoding time) rather than in a heap: the biggest packets are
+ * still polled first, so that the encoding threads are likely to finish at
+ * the same time, but insertions and removals are done in constant time.
+ * Within a bucket, packets are polled in FIFO order.
+ *
+ * In off-heap mode, the PCM data of the queued packets are moved outside of the
+ * Java heap (see ContiguousPCM.moveOffHeap()).
+ *
+ * If a spill directory is provided, producers never block: the packets that
+ * don't fit in the queue or in the encoding space are written to raw PCM files
+ * instead (see ContiguousPCM.spill()). Spilled packets are not accounted in
+ * the encoding space. They are encoded once there is no packet left in memory.
+ *
+ * The queue replaces the EndOfQueue markers: once close() has been called,
+ * take() returns null as soon as the queue is empty. Once abort() has been
+ * called, the packets are discarded instead of being encoded.
+ */
+class PCMQueue {
+
+	private static final int BucketNum = 32;
+
+	private Logger ServerLogger = LoggerFactory.getLogger(PCMQueue.class);
+	private ArrayDeque<ContiguousPCM>[] mBuckets;
+	private ArrayDeque<ContiguousPCM> mSpilled;
+	private File mSpillDir; //null if spilling is disabled
+	private int mNonEmptyBuckets; //bit i is set if mBuckets[i] is not empty
+	private int mCapacity;
+	private int mSize; //including the packets being inserted
+	private boolean mClosed;
+	private boolean mAborted;
+	private int mConsumers; //running encoding threads
+	private AudioBufferTracker mAudioBufferTracker;
+	private boolean mOffHeap;
+
+	//metrics
+	private int mMaxDepth;
+	private long mDepthSum;
+	private int mPutCount;
+	private long mProducerWait; //in nanoseconds
+	private long mConsumerWait; //in nanoseconds
+	private long mOffHeapBytes;
+	private int mOffHeapFailures;
+	private int mSpillCount;
+	private long mSpillBytes;
+
+	@SuppressWarnings("unchecked")
+	PCMQueue(int capacity, AudioBufferTracker audioBufferTracker, boolean offHeap,
+	        File spillDir) {
+		mCapacity = Math.max(1, capacity);
+		mAudioBufferTracker = audioBufferTracker;
+		mOffHeap = offHeap;
+		mSpillDir = spillDir;
+		mSpilled = new ArrayDeque<ContiguousPCM>();
+		mBuckets = new ArrayDeque[BucketNum];
+		for (int i = 0; i < BucketNum; ++i)
+			mBuckets[i] = new ArrayDeque<ContiguousPCM>();
+	}
+
+	/**
+	 * Transfer the packet's memory from the TTS space to the encoding space and
+	 * make the packet available to the encoders. It blocks until there is room
+	 * for the packet, both in the queue and in the encoding space, unless the
+	 * packet can be spilled to disk.
+	 *
+	 * @param ttsMemSize is the TTS memory to be released
+	 */
+	void put(ContiguousPCM pcm, int ttsMemSize) throws InterruptedException {
+		long start = System.nanoTime();
+		if (mSpillDir != null) {
+			boolean reserved;
+			synchronized (this) {
+				reserved = (mSize < mCapacity || mConsumers == 0);
+				if (reserved)
+					++mSize;
+			}
+			if (reserved) {
+				boolean movedOffHeap = mOffHeap && pcm.moveOffHeap(mAudioBufferTracker);
+				if (mAudioBufferTracker.tryTransferToEncoding(ttsMemSize, pcm.sizeInBytes())) {
+					insert(pcm, movedOffHeap, start);
+					return;
+				}
+				synchronized (this) {
+					--mSize;
+					notifyAll();
+				}
+			}
+			try {
+				pcm.spill(mSpillDir, mAudioBufferTracker);
+				mAudioBufferTracker.releaseTTSMemory(ttsMemSize);
+				synchronized (this) {
+					if (mAborted) {
+						pcm.deleteSpillFile();
+						return;
+					}
+					mSpilled.addLast(pcm);
+					++mSpillCount;
+					mSpillBytes += pcm.sizeInBytes();
+					++mPutCount;
+					notifyAll();
+				}
+				return;
+			} catch (IOException e) {
+				ServerLogger.warn("could not spill PCM to " + mSpillDir + ": " + e.getMessage());
+				//falls back to waiting for room
+			}
+		}
+		synchronized (this) {
+			//if all the encoders have stopped because of errors, the bound is no longer
+			//enforced so as not to block the producers forever
+			while (mSize >= mCapacity && mConsumers > 0 && !mAborted)
+				wait();
+			++mSize; //reserve a slot while waiting for the memory
+		}
+		boolean movedOffHeap = mOffHeap && pcm.moveOffHeap(mAudioBufferTracker);
+		try {
+			mAudioBufferTracker.transferToEncoding(ttsMemSize, pcm.sizeInBytes());
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				--mSize;
+				notifyAll();
+			}
+			throw e;
+		}
+		insert(pcm, movedOffHeap, start);
+	}
+
+	private synchronized void insert(ContiguousPCM pcm, boolean movedOffHeap, long start) {
+		if (mAborted) {
+			--mSize;
+			discard(pcm);
+			notifyAll();
+			return;
+		}
+		int bucket = bucketOf(pcm);
+		mBuckets[bucket].addLast(pcm);
+		mNonEmptyBuckets |= (1 << bucket);
+		mMaxDepth = Math.max(mMaxDepth, mSize);
+		mDepthSum += mSize;
+		++mPutCount;
+		mProducerWait += System.nanoTime() - start;
+		if (movedOffHeap)
+			mOffHeapBytes += pcm.sizeInBytes();
+		else if (mOffHeap)
+			++mOffHeapFailures;
+		notifyAll();
+	}
+
+	/**
+	 * @return the biggest packet available in memory, otherwise the oldest
+	 *         spilled packet, or null if the queue is closed and empty
+	 */
+	synchronized ContiguousPCM take() throws InterruptedException {
+		long start = System.nanoTime();
+		while (mNonEmptyBuckets == 0) {
+			if (!mSpilled.isEmpty()) {
+				mConsumerWait += System.nanoTime() - start;
+				return mSpilled.pollFirst();
+			}
+			if (mClosed && mSize == 0) {
+				mConsumerWait += System.nanoTime() - start;
+				return null;
+			}
+			wait();
+		}
+		int bucket = 31 - Integer.numberOfLeadingZeros(mNonEmptyBuckets);
+		ContiguousPCM pcm = mBuckets[bucket].pollFirst();
+		if (mBuckets[bucket].isEmpty())
+			mNonEmptyBuckets &= ~(1 << bucket);
+		--mSize;
+		mConsumerWait += System.nanoTime() - start;
+		notifyAll();
+		return pcm;
+	}
+
+	synchronized void addConsumer() {
+		++mConsumers;
+	}
+
+	synchronized void removeConsumer() {
+		--mConsumers;
+		notifyAll();
+	}
+
+	/**
+	 * Notify the encoders that no more packets will come
+	 */
+	synchronized void close() {
+		mClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Discard the packets waiting for encoding, release their memory and close
+	 * the queue. The packets put afterwards are discarded as well.
+	 */
+	synchronized void abort() {
+		for (int i = 0; i < BucketNum; ++i) {
+			for (ContiguousPCM pcm : mBuckets[i]) {
+				discard(pcm);
+				--mSize;
+			}
+			mBuckets[i].clear();
+		}
+		mNonEmptyBuckets = 0;
+		for (ContiguousPCM pcm : mSpilled)
+			pcm.deleteSpillFile();
+		mSpilled.clear();
+		mAborted = true;
+		mClosed = true;
+		notifyAll();
+	}
+
+	private void discard(ContiguousPCM pcm) {
+		if (pcm.isSpilled())
+			pcm.deleteSpillFile();
+		else
+			mAudioBufferTracker.releaseEncodersMemory(pcm.sizeInBytes());
+	}
+
+	synchronized String getStatistics() {
+		return "PCM queue: " + mPutCount + " packet(s), max depth: " + mMaxDepth + "/"
+		        + mCapacity + ", average depth: "
+		        + (mPutCount == 0 ? 0 : mDepthSum / mPutCount) + ", producers blocked: "
+		        + mProducerWait / 1000000000 + "s, encoders waiting: " + mConsumerWait
+		        / 1000000000 + "s"
+		        + (mOffHeap ? ", moved off-heap: " + mOffHeapBytes / 1048576 + "MB ("
+		                + mOffHeapFailures + " packet(s) kept on the heap)" : "")
+		        + (mSpillDir != null ? ", spilled to disk: " + mSpillCount + " packet(s), "
+		                + mSpillBytes / 1048576 + "MB" : "");
+	}
+
+	private static int bucketOf(ContiguousPCM pcm) {
+		return 31 - Integer.numberOfLeadingZeros(Math.max(1, pcm.getEncodingTimeApprox()));
+	}
+}
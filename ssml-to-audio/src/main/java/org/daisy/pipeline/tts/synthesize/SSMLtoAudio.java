@@ -6,19 +6,32 @@ import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.transform.URIResolver;
 import javax.xml.transform.sax.SAXSource;
 
+import net.sf.saxon.Configuration;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
@@ -30,8 +43,8 @@ import org.daisy.pipeline.audio.AudioBuffer;
 import org.daisy.pipeline.audio.AudioServices;
 import org.daisy.pipeline.tts.AudioBufferTracker;
 import org.daisy.pipeline.tts.SSMLMarkSplitter;
+import org.daisy.pipeline.tts.SinglePassSSMLSplitter;
 import org.daisy.pipeline.tts.StraightBufferAllocator;
-import org.daisy.pipeline.tts.StructuredSSMLSplitter;
 import org.daisy.pipeline.tts.TTSEngine;
 import org.daisy.pipeline.tts.TTSRegistry;
 import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
@@ -41,6 +54,7 @@ import org.daisy.pipeline.tts.TTSService.SynthesisException;
 import org.daisy.pipeline.tts.TTSServiceUtil;
 import org.daisy.pipeline.tts.TTSTimeout;
 import org.daisy.pipeline.tts.TTSTimeout.ThreadFreeInterrupter;
+import org.daisy.pipeline.tts.TTSTimeoutWheel;
 import org.daisy.pipeline.tts.Voice;
 import org.daisy.pipeline.tts.Voice.MarkSupport;
 import org.daisy.pipeline.tts.VoiceManager;
@@ -61,22 +75,45 @@ import com.google.common.collect.Iterables;
  * a section, every sentence has the same single sample rate to prevent us from
  * resampling the audio data before sending them to encoders.
  * 
- * Once all the sentences have been assigned to TTS voices, they are sorted by
- * size and stored in a shared queue of ContiguousText (actually, only the
- * smallest sentences are sorted that way). SSMLtoAudio creates threads to
- * consume this queue.
+ * A section is closed as soon as its estimated audio duration reaches
+ * org.daisy.pipeline.tts.section.duration. The estimation relies on the number
+ * of characters (see Sentence). Once all the sentences have been assigned to
+ * TTS voices, the sections that are too big to be evenly distributed among the
+ * threads are split up. They are then sorted by estimated cost (i.e. time
+ * spent by the TTS engines) and handed over to a SectionScheduler (actually,
+ * only the smallest sections are sorted that way). SSMLtoAudio creates threads
+ * to consume the scheduler's pools: one pool for the regular threads and one
+ * pool for every TTS engine with reserved threads. Idle threads steal work
+ * from the other pools as long as the engines' limits allow it.
  * 
- * The TextToPcmThreads send PCM data to EncodingThreads via a queue of
+ * The engines whose maxConcurrentRequests() is greater than one are called
+ * asynchronously: every thread keeps several requests outstanding, within a
+ * limit shared by all the threads, so that the number of requests in progress
+ * doesn't depend on the number of threads.
+ * 
+ * If org.daisy.pipeline.tts.threads.virtual is set, the threads are virtual
+ * threads (Java 21 or later). There are no reserved threads in that case:
+ * every engine has a limit on its requests in progress instead, and there are
+ * enough regular threads for all the engines to reach their limit.
+ * 
+ * The TextToPcmThreads send PCM data to EncodingThreads via a PCMQueue of
  * ContiguousPCM. These PCM packets are then processed from the longest (with
  * respect to the number of samples) to the shortest in order to make it likely
  * that the threads will finish at the same time. When all the TextToPcmThreads
- * are joined, the pipeline pushes an EndOfQueue marker to every EncodingThreads
- * to notify that they must stop waiting for more PCM packets than the ones
- * already pushed.
+ * are joined, the pipeline closes the queue to notify the EncodingThreads that
+ * they must stop waiting for more PCM packets than the ones already pushed.
+ * 
+ * The queue of PCM chunks is bounded in number of packets. Along with the
+ * queues of other TTS steps, it also shares a global max size so as to make
+ * sure that they won't grow too much if the encoding is slower than the
+ * synthesizing (see AudioBuffersTracker).
  * 
- * The queue of PCM chunks, along with the queues of other TTS steps, share a
- * global max size so as to make sure that they won't grow too much if the
- * encoding is slower than the synthesizing (see AudioBuffersTracker).
+ * In streaming mode (org.daisy.pipeline.tts.streaming), the threads are started
+ * before the input is dispatched and every section is pushed to the scheduler
+ * as soon as endSection() closes it, so that the
+ * synthesis overlaps the traversal of the input documents. The sections are
+ * then neither split nor sorted. If the traversal fails, abort() stops the
+ * threads that have already been started.
  * 
  * If an EncodingThread fails to encode samples, it won't set the URI attribute
  * of the audio chunks. In that way, SSMLtoAudio is informed not to include the
@@ -84,10 +121,13 @@ import com.google.common.collect.Iterables;
  * 
  */
 public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
+	private static final int SectionsPerThread = 4; //minimum, when the book is big enough
+	private static final long MinSectionDuration = 10000; //in milliseconds
 	private TTSEngine mLastTTS; //used if no TTS is found for the current sentence
 	private TTSRegistry mTTSRegistry;
 	private IPipelineLogger mLogger;
 	private ContiguousText mCurrentSection;
+	private TTSEngine mCurrentPoolKey; //pool of mCurrentSection
 	private File mAudioDir; //where all the sound files will be stored
 	private long mTotalTextSize; //used for the progress bar
 	private long mPrintedProgress;
@@ -99,9 +139,27 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 	private Logger ServerLogger = LoggerFactory.getLogger(TTSRegistry.class);
 	private VoiceManager mVoiceManager;
 	private Map<TTSService, CompiledStylesheet> mSSMLtransformers;
+	private Set<TTSService> mSSMLserializers; //services serialized by their SSMLAdapter
 	private Map<String, String> mProperties;
 	private TTSLog mTTSlog;
 	private int mErrorCounter;
+	private SynthesisCache mCache; //null if the cache is disabled
+	private Map<TTSEngine, Semaphore> mRequestPermits; //max requests in progress per engine
+	private TTSThreadFactory mThreadFactory;
+	private boolean mStreaming; //true once startStreaming() has started the threads
+	private PCMQueue mPCMQueue;
+	private SectionScheduler mScheduler;
+	private Set<TTSEngine> mStartedPools;
+	private List<TextToPcmThread> mTTSThreads;
+	private EncodingThread[] mEncodingThreads;
+	private SSMLMarkSplitter mSSMLSplitter;
+	private int mMaxMemPerTTSThread;
+	private int mEncodingThreadNum;
+	private int mRegularTTSThreadNum;
+	private int mPCMQueueCapacity;
+	private File mSpillDir; //null if spilling is disabled
+	private long mMaxSectionDuration; //in milliseconds
+	private long mCurrentSectionDuration; //in milliseconds
 
 	public SSMLtoAudio(File audioDir, TTSRegistry ttsregistry, IPipelineLogger logger,
 	        AudioBufferTracker audioBufferTracker, Processor proc, URIResolver uriResolver,
@@ -115,7 +173,8 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 		mProc = proc;
 		mAudioDir = audioDir;
 		mTTSlog = logs;
-		mSSMLtransformers = new HashMap<TTSService, CompiledStylesheet>();
+		mSSMLtransformers = new ConcurrentHashMap<TTSService, CompiledStylesheet>();
+		mSSMLserializers = ConcurrentHashMap.newKeySet();
 
 		/*
 		 * Create a piece of SSML that will be used for testing. Useless
@@ -138,12 +197,16 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 		 * initialize the TTS engines
 		 */
 
-		TTSTimeout timeout = new TTSTimeout();
 		mProperties = configExt.getAllProperties();
-		XslTransformCompiler xslCompiler = new XslTransformCompiler(proc
-		        .getUnderlyingConfiguration(), uriResolver);
-		List<TTSEngine> workingEngines = new ArrayList<TTSEngine>();
-		for (TTSService service : ttsregistry.getServices()) {
+		readThreadingLayout();
+		final long engineMaxAge = convertToInt(mProperties, "org.daisy.pipeline.tts.engines.maxage", 600) * 1000L;
+		int initTimeout = convertToInt(mProperties, "org.daisy.pipeline.tts.engines.init.timeout", 20);
+
+		//the services are initialized and tested concurrently, within a global deadline
+		final XdmNode fTestingXML = testingXML;
+		List<TTSService> services = new ArrayList<TTSService>();
+		List<Callable<TestedEngine>> tasks = new ArrayList<Callable<TestedEngine>>();
+		for (final TTSService service : ttsregistry.getServices()) {
 			if (service.getSSMLxslTransformerURL() == null) {
 				String err = "missing SSML transformer for TTS "
 				        + TTSServiceUtil.displayName(service);
@@ -151,41 +214,226 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 				ServerLogger.error(err);
 				continue;
 			}
-			CompiledStylesheet transf = null;
+			services.add(service);
+			tasks.add(new Callable<TestedEngine>() {
+				@Override
+				public TestedEngine call() {
+					return initService(service, proc, uriResolver, fTestingXML, engineMaxAge);
+				}
+			});
+		}
+		List<Future<TestedEngine>> results = Collections.emptyList();
+		if (!tasks.isEmpty()) {
+			ExecutorService executor = Executors.newFixedThreadPool(tasks.size(),
+			        new ThreadFactory() {
+				        @Override
+				        public Thread newThread(Runnable r) {
+					        Thread t = new Thread(r, "tts-init");
+					        t.setDaemon(true); //in case an engine doesn't respond to interruptions
+					        return t;
+				        }
+			        });
+			try {
+				results = executor.invokeAll(tasks, initTimeout, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		Map<TTSEngine, Collection<Voice>> workingEngines = new LinkedHashMap<TTSEngine, Collection<Voice>>();
+		for (int i = 0; i < results.size(); ++i) {
+			TestedEngine tested = null;
+			try {
+				tested = results.get(i).get();
+			} catch (CancellationException e) {
+				String err = TTSServiceUtil.displayName(services.get(i))
+				        + " could not be initialized and tested within " + initTimeout
+				        + " seconds";
+				mTTSlog.addGeneralError(ErrorCode.WARNING, err);
+				ServerLogger.error(err);
+			} catch (ExecutionException e) {
+				String err = TTSServiceUtil.displayName(services.get(i))
+				        + " could not be initialized, cause: " + e.getCause().getMessage()
+				        + ": " + getStack(e.getCause());
+				mTTSlog.addGeneralError(ErrorCode.WARNING, err);
+				ServerLogger.error(err);
+			} catch (InterruptedException e) {
+				//not possible: the task is done
+			}
+			if (tested != null)
+				workingEngines.put(tested.engine, tested.voices);
+		}
+		mLogger.printInfo("Number of working TTS engine(s): " + workingEngines.size() + "/"
+		        + ttsregistry.getServices().size());
+
+		mVoiceManager = new VoiceManager(workingEngines, configExt.getVoiceDeclarations());
+		mCache = SynthesisCache.create(mProperties, mLogger);
+
+		mThreadFactory = new TTSThreadFactory("true".equalsIgnoreCase(mProperties
+		        .get("org.daisy.pipeline.tts.threads.virtual")));
+		if (!mThreadFactory.isVirtual()
+		        && "true".equalsIgnoreCase(mProperties.get("org.daisy.pipeline.tts.threads.virtual"))) {
+			String msg = "virtual threads are not supported by this JVM (Java 21 or later is required)."
+			        + " Platform threads are used instead.";
+			mLogger.printInfo(msg);
+			mTTSlog.addGeneralError(ErrorCode.WARNING, msg);
+		}
+
+		//The engines that can take several requests at once are called asynchronously,
+		//within a limit shared by all the threads. With virtual threads, every engine has
+		//such a limit, which replaces the reserved threads: the reserved threads of the
+		//engines that have some, the number of cores otherwise.
+		mRequestPermits = new HashMap<TTSEngine, Semaphore>();
+		int totalPermits = 0;
+		for (TTSEngine engine : workingEngines.keySet()) {
+			int permits = 0;
+			if (engine.maxConcurrentRequests() > 1)
+				permits = engine.maxConcurrentRequests();
+			else if (mThreadFactory.isVirtual())
+				permits = engine.reservedThreadNum() > 0 ? engine.reservedThreadNum() : Runtime
+				        .getRuntime().availableProcessors();
+			if (permits > 0) {
+				mRequestPermits.put(engine, new Semaphore(permits));
+				totalPermits += permits;
+				mLogger.printInfo("Max number of concurrent requests to "
+				        + TTSServiceUtil.displayName(engine.getProvider()) + ": " + permits);
+			}
+		}
+		if (mThreadFactory.isVirtual()
+		        && mProperties.get("org.daisy.pipeline.tts.threads.speaking.number") == null)
+			mRegularTTSThreadNum = Math.max(mRegularTTSThreadNum, totalPermits);
+	}
+
+	/**
+	 * SSML adapter compiled by a previous job. Saxon only accepts documents
+	 * built with the same configuration as the stylesheet, so it is reused only
+	 * by the jobs sharing the configuration.
+	 */
+	private static class CachedAdapter {
+		final Configuration configuration;
+		final CompiledStylesheet stylesheet;
+
+		CachedAdapter(Configuration configuration, CompiledStylesheet stylesheet) {
+			this.configuration = configuration;
+			this.stylesheet = stylesheet;
+		}
+	}
+
+	/**
+	 * Engine that passed createAndTestEngine(), along with the voices it
+	 * returned. It is cached for the next jobs.
+	 */
+	private static class TestedEngine {
+		final TTSEngine engine;
+		final Collection<Voice> voices;
+		final long testTime; //in milliseconds
+
+		TestedEngine(TTSEngine engine, Collection<Voice> voices, long testTime) {
+			this.engine = engine;
+			this.voices = voices;
+			this.testTime = testTime;
+		}
+	}
+
+	/**
+	 * Compile the SSML adapter of @param service and create and test its
+	 * engine, unless they have been cached by a previous job. Called
+	 * concurrently for all the services.
+	 * 
+	 * @return null if the service is not working
+	 */
+	private TestedEngine initService(TTSService service, Processor proc,
+	        URIResolver uriResolver, XdmNode testingXML, long engineMaxAge) {
+		Map<Object, Object> serviceCache = mTTSRegistry.getServiceCache(service);
+		CompiledStylesheet transf = null;
+		CachedAdapter adapter = (CachedAdapter) serviceCache.get(CachedAdapter.class);
+		if (adapter != null && adapter.configuration == proc.getUnderlyingConfiguration()) {
+			transf = adapter.stylesheet;
+		} else {
+			//one compiler per service since the compilers are not thread-safe
+			XslTransformCompiler xslCompiler = new XslTransformCompiler(proc
+			        .getUnderlyingConfiguration(), uriResolver);
 			try {
 				transf = xslCompiler.compileStylesheet(service.getSSMLxslTransformerURL()
 				        .openStream());
+				serviceCache.put(CachedAdapter.class, new CachedAdapter(proc
+				        .getUnderlyingConfiguration(), transf));
 			} catch (SaxonApiException e) {
 				String err = "error while compiling XSLT SSML adapter of "
 				        + TTSServiceUtil.displayName(service);
 				mTTSlog.addGeneralError(ErrorCode.WARNING, err);
 				ServerLogger.error(err);
+				return null;
 			} catch (IOException e) {
 				String err = "error while opening XSLT SSML adapter of "
 				        + TTSServiceUtil.displayName(service);
 				ServerLogger.error(err);
 				mTTSlog.addGeneralError(ErrorCode.WARNING, err);
+				return null;
 			}
-			if (transf != null) {
-				mSSMLtransformers.put(service, transf);
-				TTSEngine engine = createAndTestEngine(service, mProperties, testingXML,
-				        transf, timeout);
-				if (engine != null) {
-					workingEngines.add(engine);
-				}
-			}
+		}
+		mSSMLtransformers.put(service, transf);
 
+		//the SSMLAdapter, if any, is used instead of the XSLT unless stated otherwise
+		String serializerProp = "org.daisy.pipeline.tts." + service.getName()
+		        + ".ssml.serializer";
+		if (!"xslt".equals(mProperties.get(serializerProp)) && service.newSSMLAdapter() != null)
+			mSSMLserializers.add(service);
+
+		TestedEngine tested = getCachedEngine(serviceCache, engineMaxAge);
+		if (tested != null) {
+			ServerLogger.debug("reusing the engine of " + TTSServiceUtil.displayName(service)
+			        + " tested by a previous job");
+			return tested;
 		}
-		timeout.close();
-		mLogger.printInfo("Number of working TTS engine(s): " + workingEngines.size() + "/"
-		        + ttsregistry.getServices().size());
+		TTSTimeoutWheel.Timeout timeout = TTSTimeoutWheel.newTimeout();
+		try {
+			tested = createAndTestEngine(service, mProperties, testingXML, transf, timeout);
+		} finally {
+			timeout.close();
+		}
+		if (tested != null && engineMaxAge > 0)
+			cacheEngine(serviceCache, tested, engineMaxAge);
+		return tested;
+	}
 
-		mVoiceManager = new VoiceManager(workingEngines, configExt.getVoiceDeclarations());
+	/**
+	 * The engines are created with the properties of the job, so the cached
+	 * engines are keyed by the job's properties.
+	 */
+	private Object engineCacheKey() {
+		return Arrays.asList(TestedEngine.class, new HashMap<String, String>(mProperties));
+	}
+
+	/**
+	 * @return the engine created with the same properties and tested less than
+	 *         @param maxAge milliseconds ago, or null
+	 */
+	private TestedEngine getCachedEngine(Map<Object, Object> serviceCache, long maxAge) {
+		TestedEngine cached = (TestedEngine) serviceCache.get(engineCacheKey());
+		if (cached == null || System.currentTimeMillis() - cached.testTime >= maxAge)
+			return null;
+		return cached;
+	}
+
+	private void cacheEngine(Map<Object, Object> serviceCache, TestedEngine tested,
+	        long maxAge) {
+		//drop the engines that are too old to be reused, whatever their properties
+		long now = System.currentTimeMillis();
+		Iterator<Object> it = serviceCache.values().iterator();
+		while (it.hasNext()) {
+			Object cached = it.next();
+			if (cached instanceof TestedEngine
+			        && now - ((TestedEngine) cached).testTime >= maxAge)
+				it.remove();
+		}
+		serviceCache.put(engineCacheKey(), tested);
 	}
 
-	private TTSEngine createAndTestEngine(final TTSService service,
+	private TestedEngine createAndTestEngine(final TTSService service,
 	        Map<String, String> properties, XdmNode testingXML,
-	        CompiledStylesheet ssmlTransformer, TTSTimeout timeout) {
+	        CompiledStylesheet ssmlTransformer, TTSTimeoutWheel.Timeout timeout) {
 
 		//create the engine
 		TTSEngine engine = null;
@@ -220,10 +468,16 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 
 		//get a voice supporting SSML marks (so far as they are supported by the engine)
 		Voice firstVoice = null;
+		Collection<Voice> voices = null; //kept for the VoiceManager
 		int timeoutSecs = 5;
 		try {
 			timeout.enableForCurrentThread(timeoutSecs);
-			for (Voice v : engine.getAvailableVoices()) {
+			//the voice inventory of the registry saves a call to the engine if it has been
+			//made with the same properties
+			voices = mTTSRegistry.getCachedVoices(service, properties);
+			if (voices == null)
+				voices = engine.getAvailableVoices();
+			for (Voice v : voices) {
 				if (engine.endingMark() == null
 				        || v.getMarkSupport() != MarkSupport.MARK_NOT_SUPPORTED) {
 					firstVoice = v;
@@ -354,7 +608,7 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 			return null;
 		}
 
-		return engine;
+		return new TestedEngine(engine, voices, System.currentTimeMillis());
 	}
 
 	/**
@@ -374,21 +628,8 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 		TTSLog.Entry logEntry = mTTSlog.getOrCreateEntry(id);
 		logEntry.setSSML(ssml);
 
-		if (age != null) {
-			try {
-				int age_i = Integer.parseInt(age);
-				if (age_i <= 16) {
-					gender += "-child";
-				} else if (age_i >= 70) {
-					gender += "-eldery";
-				}
-			} catch (NumberFormatException e) {
-				//ignore
-			}
-		}
-
 		boolean[] exactMatch = new boolean[1];
-		Voice voice = mVoiceManager.findAvailableVoice(voiceEngine, voiceName, lang, gender,
+		Voice voice = mVoiceManager.resolveVoice(voiceEngine, voiceName, lang, gender, age,
 		        exactMatch);
 		logEntry.setSelectedVoice(voice);
 		if (voice == null) {
@@ -424,7 +665,7 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 		 * key.
 		 */
 		TTSEngine poolkey = null;
-		if (newSynth.reservedThreadNum() > 0) {
+		if (newSynth.reservedThreadNum() > 0 && !mThreadFactory.isVirtual()) {
 			poolkey = newSynth;
 		}
 
@@ -442,109 +683,108 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 		if (mCurrentSection == null) {
 			//happen the first time and whenever endSection() is called
 			mCurrentSection = new ContiguousText(mDocumentPosition++, mAudioDir);
-			List<ContiguousText> listOfSections = mOrganizedText.get(poolkey);
-			if (listOfSections == null) {
-				listOfSections = new ArrayList<ContiguousText>();
-				mOrganizedText.put(poolkey, listOfSections);
+			mCurrentPoolKey = poolkey;
+			if (!mStreaming) {
+				List<ContiguousText> listOfSections = mOrganizedText.get(poolkey);
+				if (listOfSections == null) {
+					listOfSections = new ArrayList<ContiguousText>();
+					mOrganizedText.put(poolkey, listOfSections);
+				}
+				listOfSections.add(mCurrentSection);
 			}
-
-			listOfSections.add(mCurrentSection);
 		}
-		mCurrentSection.sentences.add(new Sentence(newSynth, voice, ssml));
+		Sentence sentence = new Sentence(newSynth, voice, ssml);
+		mCurrentSection.sentences.add(sentence);
+		mCurrentSectionDuration += sentence.getEstimatedDuration();
+		if (mCurrentSectionDuration >= mMaxSectionDuration)
+			endSection();
 		return true;
 	}
 
 	public void endSection() {
+		if (mStreaming && mCurrentSection != null) {
+			mCurrentSection.computeSize();
+			synchronized (this) {
+				mTotalTextSize += mCurrentSection.getStringSize();
+			}
+			startPool(mCurrentPoolKey);
+			mScheduler.add(mCurrentPoolKey, mCurrentSection);
+		}
 		mCurrentSection = null;
+		mCurrentSectionDuration = 0;
 	}
 
-	public Iterable<SoundFileLink> blockingRun(AudioServices audioServices)
-	        throws SynthesisException, InterruptedException, EncodingException {
-
-		//SSML mark splitter shared by the threads:
-		SSMLMarkSplitter ssmlSplitter = new StructuredSSMLSplitter(mProc);
-
-		reorganizeSections();
+	/**
+	 * Start the threads before the input is dispatched if the streaming mode is
+	 * enabled by the properties. Otherwise, the threads are started by
+	 * blockingRun().
+	 */
+	public void startStreaming(AudioServices audioServices) {
+		if (mStreaming || !"true".equalsIgnoreCase(mProperties.get(
+		        "org.daisy.pipeline.tts.streaming")))
+			return;
+		mLogger.printInfo("Streaming mode: sections are synthesized as soon as they are dispatched");
+		mTotalTextSize = 0;
 		mProgress = 0;
 		mPrintedProgress = 0;
+		mStreaming = true;
+		startThreads(audioServices, 0);
+	}
 
-		//threading layout
-		int reservedThreadNum = 0;
-		for (TTSEngine tts : mOrganizedText.keySet()) {
-			if (tts != null && tts.reservedThreadNum() > 0)
-				reservedThreadNum += tts.reservedThreadNum();
-		}
-		int cores = Runtime.getRuntime().availableProcessors();
-		int ttsThreadNum = convertToInt(mProperties, "org.daisy.pipeline.tts.threads.number", cores);
-		int encodingThreadNum = convertToInt(mProperties, "org.daisy.pipeline.tts.threads.encoding.number",
-		        ttsThreadNum);
-		int regularTTSthreadNum = convertToInt(mProperties, "org.daisy.pipeline.tts.threads.speaking.number",
-		        ttsThreadNum);
-		int totalTTSThreads = regularTTSthreadNum + reservedThreadNum;
-		int maxMemPerTTSThread = convertToInt(mProperties, "org.daisy.pipeline.tts.threads.each.memlimit", 20)*1048576; //20MB
-		mLogger.printInfo("Number of encoding threads: " + encodingThreadNum);
-		mLogger.printInfo("Number of regular text-to-speech threads: " + regularTTSthreadNum);
-		mLogger.printInfo("Number of reserved text-to-speech threads: " + reservedThreadNum);
-		mLogger.printInfo("Max TTS memory footprint (encoding excluded): "
-		        + mAudioBufferTracker.getSpaceForTTS() / 1000000 + "MB");
-		mLogger.printInfo("Max encoding memory footprint: "
-		        + mAudioBufferTracker.getSpaceForEncoding() / 1000000 + "MB");
-
-		//input queue common to all the threads
-		BlockingQueue<ContiguousPCM> pcmQueue = new PriorityBlockingQueue<ContiguousPCM>();
+	public Iterable<SoundFileLink> blockingRun(AudioServices audioServices)
+	        throws SynthesisException, InterruptedException, EncodingException {
 
-		//start the TTS threads
-		TextToPcmThread[] tpt = new TextToPcmThread[totalTTSThreads];
-		List<ContiguousText> text = mOrganizedText.get(null);
-		if (text == null) {
-			text = Collections.EMPTY_LIST;
-		}
-		ConcurrentLinkedQueue<ContiguousText> stext = new ConcurrentLinkedQueue<ContiguousText>(
-		        text);
-		int i = 0;
-		for (; i < regularTTSthreadNum; ++i) {
-			tpt[i] = new TextToPcmThread();
-			tpt[i].start(stext, pcmQueue, mTTSRegistry, mVoiceManager, ssmlSplitter, this,
-			        mLogger, mAudioBufferTracker, maxMemPerTTSThread, mSSMLtransformers,
-			        mTTSlog);
-		}
-		for (Map.Entry<TTSEngine, List<ContiguousText>> e : mOrganizedText.entrySet()) {
-			TTSEngine tts = e.getKey();
-			if (tts != null) { //tts = null is handled by the previous loop
-				stext = new ConcurrentLinkedQueue<ContiguousText>(e.getValue());
-				for (int j = 0; j < tts.reservedThreadNum(); ++i, ++j) {
-					tpt[i] = new TextToPcmThread();
-					tpt[i].start(stext, pcmQueue, mTTSRegistry, mVoiceManager, ssmlSplitter,
-					        this, mLogger, mAudioBufferTracker, maxMemPerTTSThread,
-					        mSSMLtransformers, mTTSlog);
-				}
+		if (mStreaming) {
+			endSection();
+		} else {
+			reorganizeSections();
+			mProgress = 0;
+			mPrintedProgress = 0;
+			int reservedThreadNum = 0;
+			for (TTSEngine tts : mOrganizedText.keySet()) {
+				if (tts != null && tts.reservedThreadNum() > 0)
+					reservedThreadNum += tts.reservedThreadNum();
+			}
+			startThreads(audioServices, reservedThreadNum);
+			for (Map.Entry<TTSEngine, List<ContiguousText>> e : mOrganizedText.entrySet()) {
+				startPool(e.getKey());
+				mScheduler.addAll(e.getKey(), e.getValue());
 			}
 		}
-		mLogger.printInfo("Text-to-speech threads started.");
 
-		//start the encoding threads
-		EncodingThread[] encodingTh = new EncodingThread[encodingThreadNum];
-		for (int j = 0; j < encodingTh.length; ++j) {
-			encodingTh[j] = new EncodingThread();
-			encodingTh[j].start(audioServices, pcmQueue, mLogger, mAudioBufferTracker,
-			        mProperties, mTTSlog);
-		}
-		mLogger.printInfo("Encoding threads started.");
+		//notify the TTS threads that no more text will come
+		mScheduler.close();
 
 		//collect the sound fragments
-		Collection<SoundFileLink>[] fragments = new Collection[tpt.length];
-		for (int j = 0; j < tpt.length; ++j) {
-			fragments[j] = tpt[j].getSoundFragments();
+		Collection<SoundFileLink>[] fragments = new Collection[mTTSThreads.size()];
+		for (int j = 0; j < fragments.length; ++j) {
+			fragments[j] = mTTSThreads.get(j).getSoundFragments();
+		}
+		int cacheHits = 0;
+		int cacheMisses = 0;
+		for (int j = 0; j < mTTSThreads.size(); ++j) {
+			TextToPcmThread tpt = mTTSThreads.get(j);
+			mErrorCounter += tpt.getErrorCount();
+			cacheHits += tpt.getCacheHits();
+			cacheMisses += tpt.getCacheMisses();
+			String pool = tpt.getPoolKey() == null ? "regular" : "reserved to "
+			        + TTSServiceUtil.displayName(tpt.getPoolKey().getProvider());
+			mLogger.printInfo("Text-to-speech thread " + j + " (" + pool + "): busy "
+			        + tpt.getUtilization() + "% of the time, " + tpt.getSectionCount()
+			        + " section(s) including " + tpt.getStolenCount()
+			        + " taken from other pools");
 		}
-		for (int j = 0; j < tpt.length; ++j) {
-			mErrorCounter += tpt[j].getErrorCount();
+		if (mCache != null) {
+			String stats = mCache.getStatistics(cacheHits, cacheMisses);
+			mLogger.printInfo(stats);
+			mTTSlog.addGeneralError(ErrorCode.INFO, stats);
 		}
+		mLogger.printInfo(mVoiceManager.getResolutionStatistics());
 
 		//send END notifications and wait for the encoding threads to finish
 		mLogger.printInfo("Text-to-speech finished. Waiting for audio encoding to finish...");
-		for (int k = 0; k < encodingTh.length; ++k) {
-			pcmQueue.add(ContiguousPCM.EndOfQueue);
-		}
+		EncodingThread[] encodingTh = mEncodingThreads;
+		mPCMQueue.close();
 		for (int j = 0; j < encodingTh.length; ++j) {
 			try {
 				encodingTh[j].waitToFinish();
@@ -558,10 +798,129 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 		}
 
 		mLogger.printInfo("Audio encoding finished.");
+		mScheduler = null; //nothing to abort from now on
+		if (mSpillDir != null)
+			mSpillDir.delete();
+		mLogger.printInfo(mPCMQueue.getStatistics());
+		String poolStats = mAudioBufferTracker.getPoolStatistics();
+		if (poolStats != null)
+			mLogger.printInfo(poolStats);
 
 		return Iterables.concat(fragments);
 	}
 
+	/**
+	 * Stop the threads started by startStreaming() or blockingRun() without
+	 * synthesizing nor encoding the remaining sections, and wait for them to
+	 * release their TTS resources and their audio memory. Must be called when
+	 * the dispatching of the input or blockingRun() fails. Does nothing if the
+	 * threads have not been started.
+	 */
+	public void abort() {
+		if (mScheduler == null)
+			return;
+		mLogger.printInfo("Aborting text-to-speech and audio encoding...");
+		mScheduler.abort();
+		for (TextToPcmThread tpt : mTTSThreads)
+			tpt.getSoundFragments(); //wait for the thread to finish
+		mPCMQueue.abort();
+		for (EncodingThread encodingTh : mEncodingThreads) {
+			try {
+				encodingTh.waitToFinish();
+			} catch (EncodingException e) {
+				//already reported in the TTS log
+			}
+		}
+		if (mSpillDir != null)
+			mSpillDir.delete();
+		mScheduler = null;
+	}
+
+	/**
+	 * Start the encoding threads and the regular TTS threads. The threads
+	 * reserved to specific TTS engines are started by startPool().
+	 */
+	private void startThreads(AudioServices audioServices, int reservedThreadNum) {
+
+		//SSML mark splitter shared by the threads:
+		mSSMLSplitter = new SinglePassSSMLSplitter(mProc);
+
+		mLogger.printInfo("Number of encoding threads: " + mEncodingThreadNum);
+		mLogger.printInfo("Number of regular text-to-speech threads: " + mRegularTTSThreadNum
+		        + (mThreadFactory.isVirtual() ? " (virtual threads)" : ""));
+		if (!mStreaming)
+			mLogger.printInfo("Number of reserved text-to-speech threads: " + reservedThreadNum);
+		mLogger.printInfo("Max TTS memory footprint (encoding excluded): "
+		        + mAudioBufferTracker.getSpaceForTTS() / 1000000 + "MB");
+		mLogger.printInfo("Max encoding memory footprint: "
+		        + mAudioBufferTracker.getSpaceForEncoding() / 1000000 + "MB");
+
+		//input queue common to all the threads
+		mSpillDir = null;
+		if ("true".equalsIgnoreCase(mProperties.get("org.daisy.pipeline.tts.spill"))) {
+			mSpillDir = new File(mAudioDir, "spill");
+			mSpillDir.mkdirs();
+		}
+		mPCMQueue = new PCMQueue(mPCMQueueCapacity, mAudioBufferTracker, "true"
+		        .equalsIgnoreCase(mProperties.get("org.daisy.pipeline.tts.offheap")), mSpillDir);
+
+		//start the TTS threads
+		mScheduler = new SectionScheduler();
+		mStartedPools = new HashSet<TTSEngine>();
+		mStartedPools.add(null);
+		mTTSThreads = new ArrayList<TextToPcmThread>();
+		startTTSThreads(null, mRegularTTSThreadNum);
+		mLogger.printInfo("Text-to-speech threads started.");
+
+		//start the encoding threads
+		mEncodingThreads = new EncodingThread[mEncodingThreadNum];
+		for (int j = 0; j < mEncodingThreads.length; ++j) {
+			mEncodingThreads[j] = new EncodingThread();
+			mEncodingThreads[j].start(audioServices, mPCMQueue, mLogger, mAudioBufferTracker,
+			        mProperties, mTTSlog, mThreadFactory);
+		}
+		mLogger.printInfo("Encoding threads started.");
+	}
+
+	private void readThreadingLayout() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int ttsThreadNum = convertToInt(mProperties, "org.daisy.pipeline.tts.threads.number", cores);
+		mEncodingThreadNum = convertToInt(mProperties, "org.daisy.pipeline.tts.threads.encoding.number",
+		        ttsThreadNum);
+		mRegularTTSThreadNum = convertToInt(mProperties, "org.daisy.pipeline.tts.threads.speaking.number",
+		        ttsThreadNum);
+		mPCMQueueCapacity = convertToInt(mProperties, "org.daisy.pipeline.tts.encoding.queue.size",
+		        4 * mEncodingThreadNum);
+		mMaxMemPerTTSThread = convertToInt(mProperties, "org.daisy.pipeline.tts.threads.each.memlimit", 20)*1048576; //20MB
+		mMaxSectionDuration = convertToInt(mProperties, "org.daisy.pipeline.tts.section.duration", 120)*1000L;
+	}
+
+	/**
+	 * Start the threads reserved to @param poolkey, if not already started.
+	 * The regular threads, whose pool key is null, are started by
+	 * startThreads().
+	 */
+	private void startPool(TTSEngine poolkey) {
+		if (mStartedPools.add(poolkey)) {
+			if (mStreaming)
+				mLogger.printInfo("Number of text-to-speech threads reserved to "
+				        + TTSServiceUtil.displayName(poolkey.getProvider()) + ": "
+				        + poolkey.reservedThreadNum());
+			startTTSThreads(poolkey, poolkey.reservedThreadNum());
+		}
+	}
+
+	private void startTTSThreads(TTSEngine poolkey, int threadNum) {
+		for (int i = 0; i < threadNum; ++i) {
+			TextToPcmThread tpt = new TextToPcmThread();
+			tpt.start(mScheduler, poolkey, mPCMQueue, mTTSRegistry, mVoiceManager,
+			        mSSMLSplitter, this, mLogger, mAudioBufferTracker, mMaxMemPerTTSThread,
+			        mSSMLtransformers, mSSMLserializers, mTTSlog, mCache, mRequestPermits,
+			        mThreadFactory);
+			mTTSThreads.add(tpt);
+		}
+	}
+
 	int getErrorCount() {
 		return mErrorCounter;
 	}
@@ -581,30 +940,37 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 	private void reorganizeSections() {
 		mTotalTextSize = 0;
 		int sectionCount = 0;
-		for (List<ContiguousText> sections : mOrganizedText.values()) {
-			//compute the sections' size: needed for displaying the progress,
+		for (Map.Entry<TTSEngine, List<ContiguousText>> e : mOrganizedText.entrySet()) {
+			List<ContiguousText> sections = e.getValue();
+			//compute the sections' size and cost: needed for displaying the progress,
 			//splitting the sections and sorting them
-			for (ContiguousText section : sections)
-				section.computeSize();
-
+			long totalDuration = 0;
 			for (ContiguousText section : sections) {
+				section.computeSize();
 				mTotalTextSize += section.getStringSize();
+				totalDuration += section.getEstimatedDuration();
 			}
-			//split up the sections that are too big
-			int maxSize = (int) (mTotalTextSize / 15); //should it depend on the total size or be an absolute max?
+
+			//split up the sections that are too big for the threads to finish at about
+			//the same time. Small books thereby get smaller sections than the target
+			//duration.
+			int threadNum = e.getKey() == null ? mRegularTTSThreadNum : e.getKey()
+			        .reservedThreadNum();
+			long maxDuration = Math.min(mMaxSectionDuration, Math.max(MinSectionDuration,
+			        totalDuration / (SectionsPerThread * Math.max(1, threadNum))));
 			List<ContiguousText> newSections = new ArrayList<ContiguousText>();
 			List<ContiguousText> toRemove = new ArrayList<ContiguousText>();
 			for (ContiguousText section : sections) {
-				if (section.getStringSize() >= maxSize) {
+				if (section.getEstimatedDuration() > maxDuration && section.sentences.size() > 1) {
 					toRemove.add(section);
-					splitSection(section, maxSize, newSections);
+					splitSection(section, maxDuration, newSections);
 				}
 			}
 
 			sections.removeAll(toRemove);
 			sections.addAll(newSections);
 
-			//sort the sections according to their size in descending-order
+			//sort the sections according to their cost in descending-order
 			Collections.sort(sections);
 
 			//keep sorted only the smallest sections (50% of total) so the biggest sections won't
@@ -616,32 +982,31 @@ public class SSMLtoAudio implements IProgressListener, FormatSpecifications {
 		mLogger.printInfo("Number of synthesizable TTS sections: " + sectionCount);
 	}
 
-	//we can dispense with this function as soon as we take into consideration the size of the SSML
-	//sentences, rather than creating a new section every 10 sentences or so.
-	private void splitSection(ContiguousText section, int maxSize,
+	private void splitSection(ContiguousText section, long maxDuration,
 	        List<ContiguousText> newSections) {
 		int left = 0;
 		int count = 0;
-		ContiguousText currentSection = new ContiguousText(section.getDocumentPosition(),
-		        section.getAudioOutputDir());
-		currentSection.setStringsize(0);
+		long duration = 0;
 		for (int right = 0; right < section.sentences.size(); ++right) {
-			if (currentSection.getStringSize() > maxSize) {
-				currentSection.sentences = section.sentences.subList(left, right);
-				currentSection.setDocumentSplitPosition(count);
-				newSections.add(currentSection);
-				currentSection = new ContiguousText(section.getDocumentPosition(), section
-				        .getAudioOutputDir());
-				currentSection.setStringsize(0);
+			if (duration >= maxDuration) {
+				newSections.add(subSection(section, left, right, count));
 				left = right;
+				duration = 0;
 				++count;
 			}
-			currentSection.setStringsize(currentSection.getStringSize()
-			        + section.sentences.get(right).getSize());
+			duration += section.sentences.get(right).getEstimatedDuration();
 		}
-		currentSection.sentences = section.sentences.subList(left, section.sentences.size());
-		currentSection.setDocumentSplitPosition(count);
-		newSections.add(currentSection);
+		newSections.add(subSection(section, left, section.sentences.size(), count));
+	}
+
+	private static ContiguousText subSection(ContiguousText section, int left, int right,
+	        int splitPosition) {
+		ContiguousText sub = new ContiguousText(section.getDocumentPosition(), section
+		        .getAudioOutputDir());
+		sub.sentences = section.sentences.subList(left, right);
+		sub.setDocumentSplitPosition(splitPosition);
+		sub.computeSize();
+		return sub;
 	}
 
 	private static String getStack(Throwable t) {
@@ -0,0 +1,163 @@
+package org.daisy.pipeline.tts.synthesize;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.daisy.pipeline.tts.TTSEngine;
+
+/**
+ * Distributes the ContiguousText sections among the TextToPcmThreads. Every
+ * pool has its own deque: the pool whose key is null contains the sections
+ * that can be processed by any thread, while the other pools contain the
+ * sections of the TTS engines with reserved threads.
+ *
+ * A thread first takes the sections of its own pool, from the head. When its
+ * pool is empty, it steals from the tail of the other compatible pools rather
+ * than staying idle. The number of sections of a TTS engine processed at the
+ * same time never exceeds the engine's number of reserved threads, whichever
+ * threads process them.
+ *
+ * Once close() has been called, take() returns null as soon as all the pools
+ * are empty. Until then, the threads wait for sections to be added or for
+ * in-flight sections to be finished. After abort(), the pending sections are
+ * dropped and take() returns null right away.
+ */
+class SectionScheduler {
+
+	private Map<TTSEngine, Deque<ContiguousText>> mPools = new HashMap<TTSEngine, Deque<ContiguousText>>();
+	private Map<TTSEngine, Integer> mInFlight = new HashMap<TTSEngine, Integer>();
+	private Map<ContiguousText, TTSEngine> mTaken = new IdentityHashMap<ContiguousText, TTSEngine>();
+	private boolean mClosed = false;
+	private boolean mAborted = false;
+
+	SectionScheduler() {
+		mPools.put(null, new ArrayDeque<ContiguousText>());
+	}
+
+	synchronized void add(TTSEngine poolkey, ContiguousText section) {
+		getPool(poolkey).addLast(section);
+		notifyAll();
+	}
+
+	synchronized void addAll(TTSEngine poolkey, Collection<ContiguousText> sections) {
+		getPool(poolkey).addAll(sections);
+		notifyAll();
+	}
+
+	/**
+	 * Notify the threads that no more sections will be added
+	 */
+	synchronized void close() {
+		mClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Drop the sections that haven't been taken yet and close the scheduler.
+	 * The sections in progress are still given back with finished().
+	 */
+	synchronized void abort() {
+		for (Deque<ContiguousText> pool : mPools.values())
+			pool.clear();
+		mAborted = true;
+		mClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return true if abort() has been called, in which case the threads
+	 *         should stop processing their current section
+	 */
+	synchronized boolean isAborted() {
+		return mAborted;
+	}
+
+	/**
+	 * @param poolkey is the pool of the calling thread, null for the regular
+	 *            threads
+	 * @param stolen is set to true if the returned section has been taken
+	 *            from another pool
+	 * @return the next section to process, or null if the scheduler is closed
+	 *         and there is no more compatible section. Every returned section
+	 *         must be given back with finished().
+	 */
+	synchronized ContiguousText take(TTSEngine poolkey, boolean[] stolen)
+	        throws InterruptedException {
+		while (true) {
+			ContiguousText section = null;
+			TTSEngine from = poolkey;
+			if (isAvailable(poolkey)) {
+				section = mPools.get(poolkey).pollFirst();
+			} else {
+				//steal the smallest sections, from the tail, to keep the locality of
+				//the pool's owners and to finish at about the same time as them
+				if (poolkey != null && !mPools.get(null).isEmpty()) {
+					from = null;
+				} else {
+					for (TTSEngine engine : mPools.keySet()) {
+						if (engine != null && engine != poolkey && isAvailable(engine)) {
+							from = engine;
+							break;
+						}
+					}
+				}
+				if (from != poolkey)
+					section = mPools.get(from).pollLast();
+			}
+
+			if (section != null) {
+				stolen[0] = (from != poolkey);
+				if (from != null)
+					mInFlight.put(from, mInFlight.get(from) + 1);
+				mTaken.put(section, from);
+				return section;
+			}
+
+			if (mClosed && isEmpty())
+				return null;
+			wait();
+		}
+	}
+
+	/**
+	 * Must be called when a section returned by take() has been processed so
+	 * that other sections of the same TTS engine can be scheduled.
+	 */
+	synchronized void finished(ContiguousText section) {
+		TTSEngine from = mTaken.remove(section);
+		if (from != null)
+			mInFlight.put(from, mInFlight.get(from) - 1);
+		notifyAll();
+	}
+
+	private Deque<ContiguousText> getPool(TTSEngine poolkey) {
+		Deque<ContiguousText> pool = mPools.get(poolkey);
+		if (pool == null) {
+			pool = new ArrayDeque<ContiguousText>();
+			mPools.put(poolkey, pool);
+			mInFlight.put(poolkey, 0);
+		}
+		return pool;
+	}
+
+	/**
+	 * @return true if a section of @param poolkey can be processed now
+	 */
+	private boolean isAvailable(TTSEngine poolkey) {
+		Deque<ContiguousText> pool = mPools.get(poolkey);
+		if (pool == null || pool.isEmpty())
+			return false;
+		return poolkey == null || mInFlight.get(poolkey) < poolkey.reservedThreadNum();
+	}
+
+	private boolean isEmpty() {
+		for (Deque<ContiguousText> pool : mPools.values())
+			if (!pool.isEmpty())
+				return false;
+		return true;
+	}
+}
@@ -7,10 +7,20 @@ import net.sf.saxon.s9api.XdmSequenceIterator;
 
 import org.daisy.pipeline.tts.TTSEngine;
 import org.daisy.pipeline.tts.Voice;
+import org.daisy.pipeline.tts.Voice.MarkSupport;
 
 import com.google.common.base.CharMatcher;
 
 class Sentence implements FormatSpecifications {
+
+	/*
+	 * Rough figures of the cost model. They don't need to be accurate: they
+	 * are only used for packing the sentences into sections of similar sizes.
+	 */
+	private static final int CharsPerSecond = 13; //non-whitespace characters per second of speech
+	private static final int CharsPerWord = 5;
+	private static final int WordsPerExtraCall = 5; //overhead of a synthesis call, in words
+
 	Sentence(TTSEngine ttsProc, Voice voice, XdmNode text) {
 		mVoice = voice;
 		mText = text;
@@ -18,14 +28,44 @@ class Sentence implements FormatSpecifications {
 		mSize = -1;
 	}
 
+	/**
+	 * @return the number of non-whitespace characters
+	 */
 	int getSize() {
 		if (mSize == -1) {
 			mSize = 0;
+			mMarkCount = 0;
 			computeSize(mText);
 		}
 		return mSize;
 	}
 
+	int getMarkCount() {
+		getSize();
+		return mMarkCount;
+	}
+
+	/**
+	 * @return the estimated duration of the synthesized audio, in milliseconds
+	 */
+	int getEstimatedDuration() {
+		return 1000 * getSize() / CharsPerSecond;
+	}
+
+	/**
+	 * @return the estimated time spent by the TTS engine on the sentence, in
+	 *         milliseconds. Engines that cannot handle the marks are called
+	 *         once per mark, in addition to the main call.
+	 */
+	int getEstimatedCost() {
+		int msPerWord = mTTSproc.expectedMillisecPerWord();
+		int calls = 1;
+		if (mTTSproc.endingMark() == null
+		        || mVoice.getMarkSupport() == MarkSupport.MARK_NOT_SUPPORTED)
+			calls += getMarkCount();
+		return msPerWord * (getSize() / CharsPerWord + calls * WordsPerExtraCall);
+	}
+
 	Voice getVoice() {
 		return mVoice;
 	}
@@ -46,6 +86,9 @@ class Sentence implements FormatSpecifications {
 		if (node.getNodeKind() == XdmNodeKind.TEXT) {
 			mSize += CharMatcher.WHITESPACE.removeFrom(node.getStringValue()).length();
 		} else {
+			if (node.getNodeKind() == XdmNodeKind.ELEMENT
+			        && "mark".equals(node.getNodeName().getLocalName()))
+				++mMarkCount;
 			XdmSequenceIterator iter = node.axisIterator(Axis.CHILD);
 			while (iter.hasNext()) {
 				computeSize((XdmNode) iter.next());
@@ -54,6 +97,7 @@ class Sentence implements FormatSpecifications {
 	}
 
 	private int mSize;
+	private int mMarkCount;
 	private Voice mVoice;
 	private XdmNode mText;
 	private TTSEngine mTTSproc;
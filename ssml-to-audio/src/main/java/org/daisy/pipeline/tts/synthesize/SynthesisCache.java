@@ -0,0 +1,311 @@
+package org.daisy.pipeline.tts.synthesize;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferAllocator;
+import org.daisy.pipeline.tts.AudioBufferAllocator.MemoryException;
+import org.daisy.pipeline.tts.TTSEngine;
+import org.daisy.pipeline.tts.TTSService.Mark;
+import org.daisy.pipeline.tts.TTSServiceUtil;
+import org.daisy.pipeline.tts.Voice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of the PCM data produced by the TTS engines. Entries are
+ * content-addressed: the key is a digest of the TTS service's name and
+ * version, the voice, the engine-ready input (i.e. the SSML transformed by the
+ * service's XSLT) and the audio format. Every entry stores the PCM data
+ * together with the marks returned by the engine.
+ *
+ * The cache is shared by all the TextToPcmThreads and by all the steps using
+ * the same cache directory, and it persists across jobs. Its size on disk is
+ * bounded: the least recently used entries are evicted first. The access times are kept in the files' modification
+ * dates so that the LRU order survives restarts.
+ */
+class SynthesisCache {
+
+	private static final String FILE_EXT = ".pcm";
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Entry of the index. A new object is created every time a file is stored,
+	 * so that a reader can tell whether the file it failed to read is still
+	 * the current one.
+	 */
+	private static class Entry {
+		final long size; //size on disk
+
+		Entry(long size) {
+			this.size = size;
+		}
+	}
+
+	private Logger ServerLogger = LoggerFactory.getLogger(SynthesisCache.class);
+	private File mDirectory;
+	private long mMaxSize;
+	private long mCurrentSize;
+	private LinkedHashMap<String, Entry> mEntries; //digest => entry, in access-order
+	private AtomicLong mStores = new AtomicLong();
+	private AtomicLong mEvictions = new AtomicLong();
+
+	private static Map<File, SynthesisCache> Instances = new HashMap<File, SynthesisCache>();
+
+	/**
+	 * @return null if the cache is not enabled by the properties
+	 */
+	static SynthesisCache create(Map<String, String> properties, IPipelineLogger logger) {
+		String dir = properties.get("org.daisy.pipeline.tts.cache.dir");
+		if (dir == null || dir.isEmpty())
+			return null;
+		long maxSize = 1024;
+		String maxSizeProp = properties.get("org.daisy.pipeline.tts.cache.maxsize");
+		if (maxSizeProp != null) {
+			try {
+				maxSize = Long.valueOf(maxSizeProp);
+			} catch (NumberFormatException e) {
+				logger.printInfo(maxSizeProp
+				        + " is not a valid value for property org.daisy.pipeline.tts.cache.maxsize");
+			}
+		}
+		File directory = new File(dir).getAbsoluteFile();
+		directory.mkdirs();
+		if (!directory.isDirectory() || !directory.canWrite()) {
+			logger.printInfo("TTS cache directory " + dir + " is not writable. Cache disabled.");
+			return null;
+		}
+		synchronized (Instances) {
+			SynthesisCache cache = Instances.get(directory);
+			if (cache == null) {
+				cache = new SynthesisCache(directory, maxSize * 1048576);
+				Instances.put(directory, cache);
+			} else {
+				cache.setMaxSize(maxSize * 1048576);
+			}
+			return cache;
+		}
+	}
+
+	SynthesisCache(File directory, long maxSize) {
+		mDirectory = directory;
+		mMaxSize = maxSize;
+		mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		mCurrentSize = 0;
+
+		//rebuild the LRU order from the modification dates
+		File[] files = directory.listFiles();
+		if (files != null) {
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File f1, File f2) {
+					return Long.compare(f1.lastModified(), f2.lastModified());
+				}
+			});
+			for (File f : files) {
+				String name = f.getName();
+				if (name.endsWith(FILE_EXT)) {
+					mEntries.put(name.substring(0, name.length() - FILE_EXT.length()), new Entry(
+					        f.length()));
+					mCurrentSize += f.length();
+				} else if (name.endsWith(".tmp")) {
+					f.delete(); //left over by an interrupted store()
+				}
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * @return the key of the given synthesis request, or null if the request
+	 *         cannot be cached (e.g. because the audio format is not known
+	 *         yet)
+	 */
+	String key(TTSEngine engine, Voice voice, String ttsInput) {
+		AudioFormat format = engine.getAudioOutputFormat();
+		if (format == null)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		sb.append(TTSServiceUtil.displayName(engine.getProvider())).append('\u0000');
+		sb.append(voice.engine).append('\u0000').append(voice.name).append('\u0000');
+		sb.append(format.toString()).append('\u0000');
+		sb.append(ttsInput);
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(2 * digest.length);
+			for (byte b : digest)
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return null; //should not happen: SHA-256 is mandatory on every platform
+		}
+	}
+
+	/**
+	 * @param marks receives the marks stored along with the PCM data
+	 * @return null if there is no entry for @param key. The returned buffers
+	 *         are allocated with @param allocator.
+	 */
+	Collection<AudioBuffer> load(String key, List<Mark> marks, AudioBufferAllocator allocator)
+	        throws MemoryException {
+		Entry entry;
+		synchronized (this) {
+			entry = mEntries.get(key); //get() updates the access order
+			if (entry == null)
+				return null;
+		}
+		//the file is read without the lock: once opened, it can be deleted by
+		//evict() or replaced by store() without affecting the reading
+		File f = file(key);
+		List<Mark> storedMarks = new ArrayList<Mark>();
+		AudioBuffer buffer = null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+		        new FileInputStream(f)))) {
+			if (in.readInt() != FORMAT_VERSION)
+				throw new IOException("unexpected format version");
+			int markCount = in.readInt();
+			for (int i = 0; i < markCount; ++i) {
+				String name = in.readBoolean() ? in.readUTF() : null;
+				storedMarks.add(new Mark(name, in.readInt()));
+			}
+			int size = in.readInt();
+			buffer = allocator.allocateBuffer(size);
+			in.readFully(buffer.data, 0, size);
+			buffer.size = size;
+		} catch (FileNotFoundException e) {
+			//evicted in the meantime
+			return null;
+		} catch (IOException e) {
+			if (buffer != null)
+				allocator.releaseBuffer(buffer);
+			ServerLogger.warn("corrupted TTS cache entry " + f + ": " + e.getMessage());
+			remove(key, entry);
+			return null;
+		}
+		f.setLastModified(System.currentTimeMillis());
+		marks.addAll(storedMarks);
+		if (buffer.size == 0) {
+			allocator.releaseBuffer(buffer);
+			return Collections.emptyList();
+		}
+		return Collections.singletonList(buffer);
+	}
+
+	/**
+	 * Store the result of a synthesis. Errors are logged but not reported to
+	 * the caller since the cache is only an optimization.
+	 */
+	void store(String key, Iterable<AudioBuffer> pcm, List<Mark> marks) {
+		File tmp = new File(mDirectory, key + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			        new FileOutputStream(tmp)))) {
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(marks.size());
+				for (Mark m : marks) {
+					out.writeBoolean(m.name != null);
+					if (m.name != null)
+						out.writeUTF(m.name);
+					out.writeInt(m.offsetInAudio);
+				}
+				int size = 0;
+				for (AudioBuffer b : pcm)
+					size += b.size;
+				out.writeInt(size);
+				for (AudioBuffer b : pcm)
+					out.write(b.data, 0, b.size);
+			}
+			File dest = file(key);
+			synchronized (this) {
+				if (!tmp.renameTo(dest)) {
+					tmp.delete();
+					return;
+				}
+				Entry previous = mEntries.put(key, new Entry(dest.length()));
+				if (previous != null)
+					mCurrentSize -= previous.size;
+				mCurrentSize += dest.length();
+				mStores.incrementAndGet();
+				evict();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			ServerLogger.warn("could not store TTS cache entry " + key + ": " + e.getMessage());
+		}
+	}
+
+	synchronized void setMaxSize(long maxSize) {
+		mMaxSize = maxSize;
+		evict();
+	}
+
+	/**
+	 * @param hits is the number of requests served by the cache during the job
+	 * @param misses is the number of requests forwarded to the TTS engines
+	 */
+	String getStatistics(long hits, long misses) {
+		long total = hits + misses;
+		long size;
+		synchronized (this) {
+			size = mCurrentSize;
+		}
+		return "TTS cache: " + hits + " hit(s), " + misses + " miss(es)"
+		        + (total > 0 ? " (hit rate: " + (100 * hits / total) + "%)" : "") + ", "
+		        + mStores.get() + " new entries and " + mEvictions.get()
+		        + " eviction(s) since startup, " + size / 1048576 + "MB/" + mMaxSize / 1048576
+		        + "MB used";
+	}
+
+	/**
+	 * Remove @param entry, unless @param key has been stored again since the
+	 * entry was read, in which case the file on disk is a new one.
+	 */
+	private synchronized void remove(String key, Entry entry) {
+		if (mEntries.get(key) != entry)
+			return;
+		mEntries.remove(key);
+		mCurrentSize -= entry.size;
+		file(key).delete();
+	}
+
+	//must be called with the lock held
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+		while (mCurrentSize > mMaxSize && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			file(eldest.getKey()).delete();
+			mCurrentSize -= eldest.getValue().size;
+			it.remove();
+			mEvictions.incrementAndGet();
+		}
+	}
+
+	private File file(String key) {
+		return new File(mDirectory, key + FILE_EXT);
+	}
+}
@@ -135,8 +135,7 @@ public class SynthesizeStep extends DefaultStep implements FormatSpecifications,
 		if (SentenceTag.equals(node.getNodeName())) {
 			if (!pool.dispatchSSML(node))
 				mErrorCounter++;
-			if (++mSentenceCounter % 10 == 0)
-				pool.endSection();
+			++mSentenceCounter;
 		} else {
 			XdmSequenceIterator iter = node.axisIterator(Axis.CHILD);
 			while (iter.hasNext()) {
@@ -198,7 +197,9 @@ public class SynthesizeStep extends DefaultStep implements FormatSpecifications,
 		Iterable<SoundFileLink> soundFragments = Collections.EMPTY_LIST;
 		mErrorCounter = 0;
 		mSentenceCounter = 0;
+		boolean completed = false;
 		try {
+			ssmltoaudio.startStreaming(mAudioServices);
 			while (source.moreDocuments()) {
 				traverse(getFirstChild(source.read()), ssmltoaudio);
 				ssmltoaudio.endSection();
@@ -206,6 +207,7 @@ public class SynthesizeStep extends DefaultStep implements FormatSpecifications,
 			Iterable<SoundFileLink> newfrags = ssmltoaudio.blockingRun(mAudioServices);
 			mErrorCounter += ssmltoaudio.getErrorCount();
 			soundFragments = Iterables.concat(soundFragments, newfrags);
+			completed = true;
 		} catch (SynthesisException e) {
 			mRuntime.error(e);
 			return;
@@ -215,6 +217,9 @@ public class SynthesizeStep extends DefaultStep implements FormatSpecifications,
 			mRuntime.error(e);
 			return;
 		} finally {
+			//the threads started in streaming mode would otherwise wait forever for sections
+			if (!completed)
+				ssmltoaudio.abort();
 			mStartSemaphore.release();
 		}
 
@@ -20,7 +20,8 @@ public interface TTSLog {
 		AUDIO_MISSING,
 		CRITICAL_ERROR,
 		ERROR,
-		WARNING
+		WARNING,
+		INFO
 	}
 
 	public static class Error {
@@ -2,6 +2,7 @@ package org.daisy.pipeline.tts.synthesize;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -118,12 +119,14 @@ public class TTSLogImpl implements TTSLog {
 	}
 
 	public Entry getOrCreateEntry(String id) {
-		Entry res = mLog.get(id);
-		if (res != null)
+		synchronized (mLog) {
+			Entry res = mLog.get(id);
+			if (res != null)
+				return res;
+			res = new EntryImpl();
+			mLog.put(id, res);
 			return res;
-		res = new EntryImpl();
-		mLog.put(id, res);
-		return res;
+		}
 	}
 
 	public Entry getWritableEntry(String id) {
@@ -145,5 +148,6 @@ public class TTSLogImpl implements TTSLog {
 	}
 
 	private List<Error> generalErrors = new ArrayList<Error>();
-	private Map<String, Entry> mLog = new HashMap<String, Entry>();
+	//synchronized because entries can be created while the TTS threads are running
+	private Map<String, Entry> mLog = Collections.synchronizedMap(new HashMap<String, Entry>());
 }
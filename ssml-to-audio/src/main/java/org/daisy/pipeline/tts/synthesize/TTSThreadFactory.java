@@ -0,0 +1,66 @@
+package org.daisy.pipeline.tts.synthesize;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the TextToPcmThreads' and the EncodingThreads' threads: platform
+ * threads, or virtual threads if they are requested and supported by the JVM
+ * (Java 21 or later). Virtual threads are created by reflection since the code
+ * is compiled for Java 8.
+ */
+class TTSThreadFactory implements ThreadFactory {
+
+	private static final Method OfVirtual; //Thread.ofVirtual(), null if not supported
+	private static final Method Unstarted; //Thread.Builder.unstarted(Runnable)
+
+	static {
+		Method ofVirtual = null;
+		Method unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted",
+			        Runnable.class);
+			//fails on Java 19 and 20 unless the preview features are enabled
+			unstarted.invoke(ofVirtual.invoke(null), new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+		} catch (Throwable t) {
+			ofVirtual = null;
+			unstarted = null;
+		}
+		OfVirtual = ofVirtual;
+		Unstarted = unstarted;
+	}
+
+	private boolean mVirtual;
+
+	/**
+	 * @param virtual is ignored if the JVM doesn't support virtual threads
+	 */
+	TTSThreadFactory(boolean virtual) {
+		mVirtual = virtual && virtualThreadsSupported();
+	}
+
+	static boolean virtualThreadsSupported() {
+		return OfVirtual != null;
+	}
+
+	boolean isVirtual() {
+		return mVirtual;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		if (mVirtual) {
+			try {
+				return (Thread) Unstarted.invoke(OfVirtual.invoke(null), r);
+			} catch (ReflectiveOperationException e) {
+				//should not happen since it has been tried once already
+			}
+		}
+		return new Thread(r);
+	}
+}
@@ -4,14 +4,18 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import javax.sound.sampled.AudioFormat;
 
@@ -27,18 +31,21 @@ import org.daisy.common.xslt.ThreadUnsafeXslTransformer;
 import org.daisy.pipeline.audio.AudioBuffer;
 import org.daisy.pipeline.tts.AudioBufferAllocator.MemoryException;
 import org.daisy.pipeline.tts.AudioBufferTracker;
+import org.daisy.pipeline.tts.SSMLAdapter;
 import org.daisy.pipeline.tts.SSMLMarkSplitter;
 import org.daisy.pipeline.tts.SSMLMarkSplitter.Chunk;
+import org.daisy.pipeline.tts.SSMLUtil;
 import org.daisy.pipeline.tts.SoundUtil;
 import org.daisy.pipeline.tts.TTSEngine;
+import org.daisy.pipeline.tts.TTSEngine.SynthesisResult;
 import org.daisy.pipeline.tts.TTSRegistry;
 import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
 import org.daisy.pipeline.tts.TTSService;
 import org.daisy.pipeline.tts.TTSService.Mark;
 import org.daisy.pipeline.tts.TTSService.SynthesisException;
 import org.daisy.pipeline.tts.TTSServiceUtil;
-import org.daisy.pipeline.tts.TTSTimeout;
 import org.daisy.pipeline.tts.TTSTimeout.ThreadFreeInterrupter;
+import org.daisy.pipeline.tts.TTSTimeoutWheel;
 import org.daisy.pipeline.tts.Voice;
 import org.daisy.pipeline.tts.Voice.MarkSupport;
 import org.daisy.pipeline.tts.VoiceManager;
@@ -49,7 +56,8 @@ import org.slf4j.LoggerFactory;
 import com.google.common.collect.Iterables;
 
 /**
- * TextToPcmThread consumes text from a shared queue. It produces PCM data as
+ * TextToPcmThread consumes text provided by a SectionScheduler until the
+ * scheduler is closed and drained. It produces PCM data as
  * output, which in turn are pushed to another shared queue consumed by the
  * EncodingThreads. PCM is produced by calling TTS processors.
  *
@@ -67,6 +75,7 @@ public class TextToPcmThread implements FormatSpecifications {
 	private Logger ServerLogger = LoggerFactory.getLogger(TextToPcmThread.class);
 	private Map<TTSEngine, TTSResource> mResources = new HashMap<TTSEngine, TTSResource>();
 	private Map<TTSService, ThreadUnsafeXslTransformer> mTransforms = new HashMap<TTSService, ThreadUnsafeXslTransformer>();
+	private Map<TTSService, SSMLAdapter> mSSMLAdapters = new HashMap<TTSService, SSMLAdapter>();
 	private int mFileNrInSection; //usually = 0, but incremented when a flush occurs within a section
 	private List<SoundFileLink> mSoundFileLinks; //result provided back to the SynthesizeStep caller
 	private List<SoundFileLink> mLinksOfCurrentFile; //links under construction
@@ -81,17 +90,32 @@ public class TextToPcmThread implements FormatSpecifications {
 	private SSMLMarkSplitter mSSMLSplitter;
 	private Map<String, Object> mTransformParams = new TreeMap<String, Object>();
 	private Map<TTSService, CompiledStylesheet> mSSMLTransformers;
+	private Set<TTSService> mSSMLSerializers; //services whose SSMLAdapter replaces the XSLT
 	private VoiceManager mVoiceManager;
 	private TTSLog mTTSLog;
 	private int mErrorCounter;
+	private SynthesisCache mCache; //null if the cache is disabled
+	private Map<TTSEngine, Semaphore> mRequestPermits; //max requests in progress per engine
+	private int mCacheHits;
+	private int mCacheMisses;
+	private TTSEngine mPoolKey; //null for the regular threads
+	private int mSectionCount;
+	private int mStolenCount;
+	private long mBusyTime; //in nanoseconds
+	private long mLifeTime; //in nanoseconds
 
-	void start(final ConcurrentLinkedQueue<ContiguousText> input,
-	        final BlockingQueue<ContiguousPCM> pcmOutput, TTSRegistry ttsregistry,
+	void start(final SectionScheduler scheduler, final TTSEngine poolkey,
+	        final PCMQueue pcmOutput, TTSRegistry ttsregistry,
 	        VoiceManager voiceManager, SSMLMarkSplitter ssmlSplitter,
 	        final IProgressListener progressListener, IPipelineLogger pLogger,
 	        AudioBufferTracker AudioBufferTracker, final int maxQueueEltSize,
-	        Map<TTSService, CompiledStylesheet> ssmlTransformers, TTSLog ttsLog) {
+	        Map<TTSService, CompiledStylesheet> ssmlTransformers,
+	        Set<TTSService> ssmlSerializers, TTSLog ttsLog, SynthesisCache cache,
+	        Map<TTSEngine, Semaphore> requestPermits, ThreadFactory threadFactory) {
 		mSSMLTransformers = ssmlTransformers;
+		mSSMLSerializers = ssmlSerializers;
+		mCache = cache;
+		mRequestPermits = requestPermits;
 		mSSMLSplitter = ssmlSplitter;
 		mSoundFileLinks = new ArrayList<SoundFileLink>();
 		mTTSRegistry = ttsregistry;
@@ -100,42 +124,71 @@ public class TextToPcmThread implements FormatSpecifications {
 		mVoiceManager = voiceManager;
 		mTTSLog = ttsLog;
 		mErrorCounter = 0;
+		mPoolKey = poolkey;
 		flush(null, pcmOutput);
 
-		mThread = new Thread() {
+		mThread = threadFactory.newThread(new Runnable() {
 			@Override
 			public void run() {
-				TTSTimeout timeout = new TTSTimeout();
+				TTSTimeoutWheel.Timeout timeout = TTSTimeoutWheel.newTimeout();
+				long threadStart = System.nanoTime();
+				boolean[] stolen = new boolean[1];
 
 				/* Main loop */
 				while (true) {
-					ContiguousText section = input.poll();
-					if (section == null) { //queue is empty
+					ContiguousText section;
+					try {
+						section = scheduler.take(poolkey, stolen);
+					} catch (InterruptedException e) {
+						ServerLogger.warn("TextToPCMThread interruption");
+						break;
+					}
+					if (section == null) { //scheduler is closed and drained
 						break;
 					}
+					long sectionStart = System.nanoTime();
+					++mSectionCount;
+					if (stolen[0])
+						++mStolenCount;
 					mFileNrInSection = 0;
 					boolean breakloop = false;
-					for (Sentence sentence : section.sentences) {
-						if (breakloop) {
-							mErrorCounter++;
+					List<Sentence> sentences = section.sentences;
+					for (int i = 0; i < sentences.size();) {
+						Sentence sentence = sentences.get(i);
+						boolean async = sentence.getTTSproc().maxConcurrentRequests() > 1;
+						int end = async ? asyncEnd(sentences, i) : batchEnd(sentences, i);
+						if (breakloop || scheduler.isAborted()) {
+							mErrorCounter += end - i;
+							i = end;
 							continue;
 						}
 						try {
-							if (!speak(section, sentence, pcmOutput, timeout, maxQueueEltSize)) mErrorCounter++;
+							if (end - i > 1 && async)
+								mErrorCounter += speakAsync(section, sentences.subList(i, end),
+								        pcmOutput, timeout, maxQueueEltSize);
+							else if (end - i > 1)
+								mErrorCounter += speakBatch(section, sentences.subList(i, end),
+								        pcmOutput, timeout, maxQueueEltSize);
+							else if (!speak(section, sentence, pcmOutput, timeout, maxQueueEltSize))
+								mErrorCounter++;
 						} catch (Throwable t) {
 							StringWriter sw = new StringWriter();
 							t.printStackTrace(new PrintWriter(sw));
-							mErrorCounter++;
+							mErrorCounter += end - i;
 							mTTSLog.getWritableEntry(sentence.getID()).addError(
 							        new TTSLog.Error(TTSLog.ErrorCode.CRITICAL_ERROR,
 							                "the current thread is stopping because of error: "
 							                        + sw.toString()));
 							breakloop = true;
 						}
+						i = end;
 					}
 					flush(section, pcmOutput);
+					scheduler.finished(section);
+					mBusyTime += System.nanoTime() - sectionStart;
 					progressListener.notifyFinished(section);
 				}
+				mLifeTime = System.nanoTime() - threadStart;
 
 				//release the TTS resources
 				for (Map.Entry<TTSEngine, TTSResource> e : mResources.entrySet()) {
@@ -155,7 +208,7 @@ public class TextToPcmThread implements FormatSpecifications {
 
 				timeout.close();
 			}
-		};
+		});
 		mThread.start();
 	}
 
@@ -177,6 +230,40 @@ public class TextToPcmThread implements FormatSpecifications {
 		return mErrorCounter;
 	}
 
+	int getCacheHits() {
+		return mCacheHits;
+	}
+
+	int getCacheMisses() {
+		return mCacheMisses;
+	}
+
+	TTSEngine getPoolKey() {
+		return mPoolKey;
+	}
+
+	int getSectionCount() {
+		return mSectionCount;
+	}
+
+	/**
+	 * @return the number of sections taken from another pool than the
+	 *         thread's own pool
+	 */
+	int getStolenCount() {
+		return mStolenCount;
+	}
+
+	/**
+	 * @return the percentage of the thread's lifetime spent processing
+	 *         sections rather than waiting for them
+	 */
+	int getUtilization() {
+		if (mLifeTime == 0)
+			return 0;
+		return (int) (100 * mBusyTime / mLifeTime);
+	}
+
 	private void releaseResource(TTSEngine tts, TTSResource r) {
 		if (r == null) {
 			return;
@@ -194,7 +281,7 @@ public class TextToPcmThread implements FormatSpecifications {
 		}
 	}
 
-	private void flush(ContiguousText section, BlockingQueue<ContiguousPCM> pcmOutput) {
+	private void flush(ContiguousText section, PCMQueue pcmOutput) {
 		if (section != null && mLinksOfCurrentFile.size() > 0) {
 			if (mLastFormat == null) {
 				throw new RuntimeException("coding error"); // should not happen
@@ -209,12 +296,13 @@ public class TextToPcmThread implements FormatSpecifications {
 					clip.soundFileURIHolder = pcm.getURIholder();
 				}
 				try {
-					mAudioBufferTracker.transferToEncoding(mMemFootprint, pcm.sizeInBytes());
+					pcmOutput.put(pcm, mMemFootprint);
 				} catch (InterruptedException e) {
 					// Should never happen since interruptions only occur during calls to TTS processors.
+					// The clips are kept without URI so they will be reported as not encoded.
 					ServerLogger.warn("interruption of memory transfer");
+					mAudioBufferTracker.releaseTTSMemory(mMemFootprint);
 				}
-				pcmOutput.add(pcm);
 				pcm = null;
 				mSoundFileLinks.addAll(mLinksOfCurrentFile);
 				++mFileNrInSection;
@@ -228,19 +316,62 @@ public class TextToPcmThread implements FormatSpecifications {
 	}
 
 	/**
-	 * Wrapper around TTSService.synthesize() to transform the SSML into string
+	 * Wrapper around TTSService.synthesize() to transform the SSML into string.
+	 * The synthesis cache, if any, is consulted before calling the TTS engine.
 	 */
 	public Collection<AudioBuffer> synthesizeSSML(TTSEngine tts, XdmNode ssml,
 	        String sentenceId, Voice voice, TTSResource threadResources, List<Mark> marks,
 	        List<String> expectedMarks)
 	        throws SaxonApiException, SynthesisException, InterruptedException,
 	        MemoryException {
-		String transformed = transformSSML(ssml, tts, voice);
+		return synthesizeSSML(tts, ssml, transformSSML(ssml, tts, voice), sentenceId, voice,
+		        threadResources, marks, expectedMarks);
+	}
+
+	/**
+	 * @param transformed is the serialized version of @param ssml
+	 */
+	private Collection<AudioBuffer> synthesizeSSML(TTSEngine tts, XdmNode ssml,
+	        String transformed, String sentenceId, Voice voice, TTSResource threadResources,
+	        List<Mark> marks, List<String> expectedMarks) throws SynthesisException,
+	        InterruptedException, MemoryException {
 		TTSLog.Entry logEntry = mTTSLog.getWritableEntry(sentenceId);
 		logEntry.addTTSinput(transformed);
 		logEntry.setActualVoice(voice);
-		return tts.synthesize(transformed, ssml, voice, threadResources, marks, expectedMarks,
-		        mAudioBufferTracker, false);
+		String cacheKey = null;
+		if (mCache != null) {
+			cacheKey = mCache.key(tts, voice, transformed);
+			if (cacheKey != null) {
+				Collection<AudioBuffer> cached = mCache.load(cacheKey, marks,
+				        mAudioBufferTracker);
+				if (cached != null) {
+					++mCacheHits;
+					return cached;
+				}
+			}
+			++mCacheMisses;
+		}
+		Collection<AudioBuffer> result = tts.synthesize(transformed, ssml, voice,
+		        threadResources, marks, expectedMarks, mAudioBufferTracker, false);
+		if (mCache != null) {
+			if (cacheKey == null)
+				cacheKey = mCache.key(tts, voice, transformed); //the format may be known by now
+			if (cacheKey != null && isComplete(marks, expectedMarks))
+				mCache.store(cacheKey, result, marks);
+		}
+		return result;
+	}
+
+	/**
+	 * @return false if the ending mark is expected but missing, in which case
+	 *         the result must not be cached since it will be discarded.
+	 */
+	private static boolean isComplete(List<Mark> marks, List<String> expectedMarks) {
+		String endingMark = expectedMarks.get(expectedMarks.size() - 1);
+		if (endingMark == null)
+			return true;
+		return marks.size() == expectedMarks.size()
+		        && endingMark.equals(marks.get(marks.size() - 1).name);
 	}
 
 	/**
@@ -259,14 +390,15 @@ public class TextToPcmThread implements FormatSpecifications {
 			return synthesizeSSML(tts, ssml, sentenceId, voice, threadResources, marks, expectedMarks);
 		}
 		else {
-			Collection<Chunk> chunks = mSSMLSplitter.split(ssml);
+			Collection<Chunk> chunks = split(ssml, tts, voice);
 			Iterable<AudioBuffer> result = new ArrayList<AudioBuffer>();
 			int offset = 0;
 			for (Chunk chunk : chunks) {
 				Collection<AudioBuffer> buffers = null;
 				try {
-					buffers = synthesizeSSML(tts, chunk.ssml(), sentenceId, voice,
-					        threadResources, new ArrayList<Mark>(), expectedMarks);
+					buffers = synthesizeSSML(tts, chunkNode(chunk, ssml), transformSSML(chunk,
+					        tts, voice), sentenceId, voice, threadResources,
+					        new ArrayList<Mark>(), expectedMarks);
 				} catch (MemoryException | SaxonApiException | SynthesisException
 				        | InterruptedException e) {
 					//TODO: flush the buffers here
@@ -296,19 +428,20 @@ public class TextToPcmThread implements FormatSpecifications {
 	}
 
 	/**
+	 * Allocate a TTS resource if the thread doesn't have one yet for @param tts.
+	 * Errors are reported in the log entry of @param sentenceId.
+	 * 
 	 * @return null if something went wrong
 	 */
-	private Iterable<AudioBuffer> speakWithVoice(final Sentence sentence, Voice v,
-	        final TTSEngine tts, List<Mark> marks, List<String> expectedMarks, TTSTimeout timeout)
-	        		throws MemoryException {
-		//allocate a TTS resource if necessary
+	private TTSResource getResource(TTSEngine tts, String sentenceId,
+	        TTSTimeoutWheel.Timeout timeout) {
 		TTSResource resource = mResources.get(tts);
 		if (resource == null) {
 			try {
 				timeout.enableForCurrentThread(3); //3 seconds
 				resource = mTTSRegistry.allocateResourceFor(tts);
 			} catch (SynthesisException e) {
-				mTTSLog.getWritableEntry(sentence.getID()).addError(
+				mTTSLog.getWritableEntry(sentenceId).addError(
 				        new TTSLog.Error(ErrorCode.WARNING,
 				                "Error while allocating resources for "
 				                        + TTSServiceUtil.displayName(tts.getProvider()) + ": "
@@ -316,7 +449,7 @@ public class TextToPcmThread implements FormatSpecifications {
 
 				return null;
 			} catch (InterruptedException e) {
-				mTTSLog.getWritableEntry(sentence.getID()).addError(
+				mTTSLog.getWritableEntry(sentenceId).addError(
 				        new TTSLog.Error(ErrorCode.WARNING,
 				                "Timeout while trying to allocate resources for "
 				                        + TTSServiceUtil.displayName(tts.getProvider())));
@@ -326,7 +459,7 @@ public class TextToPcmThread implements FormatSpecifications {
 			}
 			if (resource == null) {
 				//TTS not working anymore?
-				mTTSLog.getWritableEntry(sentence.getID()).addError(
+				mTTSLog.getWritableEntry(sentenceId).addError(
 				        new TTSLog.Error(ErrorCode.WARNING, "Could not allocate resource for "
 				                + TTSServiceUtil.displayName(tts.getProvider())
 				                + " (it has probably been stopped)."));
@@ -335,17 +468,155 @@ public class TextToPcmThread implements FormatSpecifications {
 			mResources.put(tts, resource);
 
 			TTSService service = tts.getProvider();
-			if (!mTransforms.containsKey(service)) {
+			if (mSSMLSerializers.contains(service)) {
+				if (!mSSMLAdapters.containsKey(service))
+					mSSMLAdapters.put(service, service.newSSMLAdapter());
+			} else if (!mTransforms.containsKey(service)) {
 				mTransforms.put(service, mSSMLTransformers.get(service).newTransformer());
 			}
 		}
+		return resource;
+	}
+
+	/**
+	 * Asynchronous version of synthesizeSSML(). The request is sent to the
+	 * engine once one of the engine's permits is available, and the permit is
+	 * given back when the request completes. The permit is taken before
+	 * entering the resource's monitor so that the other users of the resource
+	 * are not blocked while waiting for it. The engine's future is added to
+	 * @param sent so that the caller can wait for it even if the result is
+	 * discarded.
+	 */
+	private CompletableFuture<SynthesisResult> synthesizeSSMLAsync(final TTSEngine tts,
+	        XdmNode ssml, final String transformed, String sentenceId, final Voice voice,
+	        TTSResource threadResources, final List<String> expectedMarks,
+	        final Semaphore permits, List<CompletableFuture<SynthesisResult>> sent)
+	        throws InterruptedException, MemoryException, SynthesisException {
+		TTSLog.Entry logEntry = mTTSLog.getWritableEntry(sentenceId);
+		logEntry.addTTSinput(transformed);
+		logEntry.setActualVoice(voice);
+		if (mCache != null) {
+			String cacheKey = mCache.key(tts, voice, transformed);
+			if (cacheKey != null) {
+				List<Mark> marks = new ArrayList<Mark>();
+				Collection<AudioBuffer> cached = mCache.load(cacheKey, marks,
+				        mAudioBufferTracker);
+				if (cached != null) {
+					++mCacheHits;
+					return CompletableFuture.completedFuture(new SynthesisResult(cached, marks));
+				}
+			}
+			++mCacheMisses;
+		}
+		permits.acquire();
+		CompletableFuture<SynthesisResult> result;
+		try {
+			synchronized (threadResources) {
+				if (threadResources.invalid)
+					throw new SynthesisException("Resource of "
+					        + TTSServiceUtil.displayName(tts.getProvider())
+					        + " is no longer valid");
+				result = tts.synthesizeAsync(transformed, ssml, voice, threadResources,
+				        expectedMarks, mAudioBufferTracker, false);
+			}
+		} catch (SynthesisException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		sent.add(result);
+		result.whenComplete((r, e) -> permits.release());
+		if (mCache == null)
+			return result;
+		return result.thenApply(r -> {
+			String cacheKey = mCache.key(tts, voice, transformed);
+			if (cacheKey != null && isComplete(r.marks, expectedMarks))
+				mCache.store(cacheKey, r.audio, r.marks);
+			return r;
+		});
+	}
+
+	/**
+	 * Asynchronous version of synthesize(). The chunks of the sentences split
+	 * at the marks are requested at the same time.
+	 */
+	private CompletableFuture<SynthesisResult> synthesizeAsync(final TTSEngine tts,
+	        Sentence sentence, Voice voice, TTSResource threadResources,
+	        List<String> expectedMarks, Semaphore permits,
+	        List<CompletableFuture<SynthesisResult>> sent) throws SaxonApiException,
+	        InterruptedException, MemoryException, SynthesisException {
+		mTTSLog.getWritableEntry(sentence.getID()).resetTTSinput();
+		if (tts.endingMark() != null
+		        && voice.getMarkSupport() != MarkSupport.MARK_NOT_SUPPORTED) {
+			expectedMarks.set(expectedMarks.size() - 1, tts.endingMark());
+			return synthesizeSSMLAsync(tts, sentence.getText(), transformSSML(sentence.getText(),
+			        tts, voice), sentence.getID(), voice, threadResources, expectedMarks, permits,
+			        sent);
+		}
+		final List<Chunk> chunks = new ArrayList<Chunk>(split(sentence.getText(), tts, voice));
+		final List<CompletableFuture<SynthesisResult>> parts = new ArrayList<CompletableFuture<SynthesisResult>>();
+		try {
+			for (Chunk chunk : chunks)
+				parts.add(synthesizeSSMLAsync(tts, chunkNode(chunk, sentence.getText()),
+				        transformSSML(chunk, tts, voice), sentence.getID(), voice,
+				        threadResources, expectedMarks, permits, sent));
+		} catch (SaxonApiException | InterruptedException | MemoryException
+		        | SynthesisException | RuntimeException e) {
+			for (CompletableFuture<SynthesisResult> part : parts)
+				discard(part);
+			throw e;
+		}
+		return CompletableFuture.allOf(parts.toArray(new CompletableFuture[parts.size()]))
+		        .handle((v, e) -> {
+			        if (e != null) {
+				        for (CompletableFuture<SynthesisResult> part : parts)
+					        discard(part);
+				        throw e instanceof CompletionException ? (CompletionException) e
+				                : new CompletionException(e);
+			        }
+			        List<AudioBuffer> audio = new ArrayList<AudioBuffer>();
+			        List<Mark> marks = new ArrayList<Mark>();
+			        int offset = 0;
+			        for (int i = 0; i < chunks.size(); ++i) {
+				        if (chunks.get(i).leftMark() != null)
+					        marks.add(new Mark(chunks.get(i).leftMark(), offset));
+				        for (AudioBuffer b : parts.get(i).join().audio) {
+					        offset += b.size;
+					        audio.add(b);
+				        }
+			        }
+			        //add an empty ending-mark
+			        marks.add(new Mark(tts.endingMark(), 0));
+			        return new SynthesisResult(audio, marks);
+		        });
+	}
+
+	/**
+	 * Release the buffers of a request whose result won't be used, as soon as
+	 * it completes.
+	 */
+	private void discard(CompletableFuture<SynthesisResult> request) {
+		request.whenComplete((r, e) -> {
+			if (r != null)
+				SoundUtil.cancelFootPrint(r.audio, mAudioBufferTracker);
+		});
+	}
+
+	/**
+	 * @return null if something went wrong
+	 */
+	private Iterable<AudioBuffer> speakWithVoice(final Sentence sentence, Voice v,
+	        final TTSEngine tts, List<Mark> marks, List<String> expectedMarks,
+	        TTSTimeoutWheel.Timeout timeout) throws MemoryException {
+		TTSResource resource = getResource(tts, sentence.getID(), timeout);
+		if (resource == null)
+			return null;
 
 		//convert the input sentence into PCM using the TTS processor
 		Iterable<AudioBuffer> pcm = null;
 		int timeoutSecs = 1 + 3 * tts.expectedMillisecPerWord() * sentence.getSize()
 		        / (6 * 1000); //~6 chars/word
 		final TTSResource fresource = resource;
-		TTSTimeout.ThreadFreeInterrupter interrupter = new ThreadFreeInterrupter() {
+		ThreadFreeInterrupter interrupter = new ThreadFreeInterrupter() {
 			@Override
 			public void threadFreeInterrupt() {
 				String msg = "Forcing interruption of the current work of "
@@ -357,6 +628,9 @@ public class TextToPcmThread implements FormatSpecifications {
 			}
 		};
 		mTTSLog.getWritableEntry(sentence.getID()).setTimeout(timeoutSecs);
+		Semaphore permits = mRequestPermits.get(tts);
+		if (permits != null)
+			permits.acquireUninterruptibly();
 		try {
 			timeout.enableForCurrentThread(interrupter, timeoutSecs);
 			synchronized (resource) {
@@ -397,42 +671,54 @@ public class TextToPcmThread implements FormatSpecifications {
 			return null;
 		} finally {
 			timeout.disable();
+			if (permits != null)
+				permits.release();
 		}
 
-		//check validity of the result by using the ending mark
+		if (!checkMarks(tts, sentence.getID(), pcm, marks, expectedMarks))
+			return null;
+		return pcm;
+	}
+
+	/**
+	 * Check the validity of the result by using the ending mark and the
+	 * expected marks. The buffers are released if the result is not valid.
+	 */
+	private boolean checkMarks(TTSEngine tts, String sentenceId, Iterable<AudioBuffer> pcm,
+	        List<Mark> marks, List<String> expectedMarks) {
 		if (marks.size() == 0 || (tts.endingMark() != null && !tts.endingMark().equals(
 		                marks.get(marks.size() - 1).name))) {
 			SoundUtil.cancelFootPrint(pcm, mAudioBufferTracker);
-			mTTSLog.getWritableEntry(sentence.getID()).addError(
+			mTTSLog.getWritableEntry(sentenceId).addError(
 			        new TTSLog.Error(ErrorCode.WARNING, "missing ending mark with "
 			                + TTSServiceUtil.displayName(tts.getProvider())
 			                + ". Number of marks received: " + marks.size()));
-			return null;
+			return false;
 		}
 		
 		int marksReceived = marks.size();
 		if (expectedMarks.size() != marksReceived){
 			SoundUtil.cancelFootPrint(pcm, mAudioBufferTracker);
-			mTTSLog.getWritableEntry(sentence.getID()).addError(
+			mTTSLog.getWritableEntry(sentenceId).addError(
 			        new TTSLog.Error(ErrorCode.WARNING, "wrong number of marks with "
 			                + TTSServiceUtil.displayName(tts.getProvider())
 			                + ". Number of marks received: " + marksReceived +", expected number: "+expectedMarks.size()));
-			return null;
+			return false;
 		}
 		for (int i = 0; i < expectedMarks.size(); ++i){
 			String expectedMark = expectedMarks.get(i);
 			String actualMark = marks.get(i).name;
 			if ((actualMark == null && expectedMark != null) || (actualMark != null && !actualMark.equals(expectedMark))){
 				SoundUtil.cancelFootPrint(pcm, mAudioBufferTracker);
-				mTTSLog.getWritableEntry(sentence.getID()).addError(
+				mTTSLog.getWritableEntry(sentenceId).addError(
 				        new TTSLog.Error(ErrorCode.WARNING, "mark name mismatch with "
 				                + TTSServiceUtil.displayName(tts.getProvider())
 				                + " actual: " + actualMark+", expected: "+expectedMark));
-				return null;
+				return false;
 			}
 		}
 		
-		return pcm;
+		return true;
 	}
 	
 	private List<String> getMarkNames(XdmNode ssml){
@@ -451,7 +737,7 @@ public class TextToPcmThread implements FormatSpecifications {
 	 * @return true when the sentence was successfully converted to speech, false when there was an error
 	 */
 	private boolean speak(ContiguousText section, Sentence sentence,
-	        BlockingQueue<ContiguousPCM> pcmOutput, TTSTimeout timeout, int maxQueueEltSize) {
+	        PCMQueue pcmOutput, TTSTimeoutWheel.Timeout timeout, int maxQueueEltSize) {
 		
 		List<String> expectedMarks = getMarkNames(sentence.getText());
 		expectedMarks.add(null); //makes room for the ending-mark
@@ -508,6 +794,17 @@ public class TextToPcmThread implements FormatSpecifications {
 			if (mLastFormat != null && !tts.getAudioOutputFormat().matches(mLastFormat))
 				flush(section, pcmOutput);
 		}
+		addSentence(section, sentence, tts, pcm, marks, pcmOutput, maxQueueEltSize);
+		return true;
+	}
+
+	/**
+	 * Append the PCM of a sentence successfully synthesized to the current
+	 * file and keep track of its clips.
+	 */
+	private void addSentence(ContiguousText section, Sentence sentence, TTSEngine tts,
+	        Iterable<AudioBuffer> pcm, List<Mark> marks, PCMQueue pcmOutput,
+	        int maxQueueEltSize) {
 		mLastFormat = tts.getAudioOutputFormat();
 
 		int begin = mOffsetInFile;
@@ -576,9 +873,351 @@ public class TextToPcmThread implements FormatSpecifications {
 			 */
 			flush(section, pcmOutput);
 		}
+	}
+
+	/**
+	 * Wait for the engine's @param requests to complete, whatever their
+	 * outcome. The requests that are still running after a couple of seconds
+	 * are interrupted with @param interrupter.
+	 * 
+	 * @return false if some requests are still running nevertheless
+	 */
+	private boolean awaitCompletion(List<CompletableFuture<SynthesisResult>> requests,
+	        ThreadFreeInterrupter interrupter, TTSTimeoutWheel.Timeout timeout) {
+		for (CompletableFuture<SynthesisResult> request : requests) {
+			try {
+				timeout.enableForCurrentThread(interrupter, 2);
+				request.get();
+			} catch (InterruptedException e) {
+				return false;
+			} catch (ExecutionException e) {
+				//already reported, or the result is discarded
+			} finally {
+				timeout.disable();
+			}
+		}
 		return true;
 	}
 
+	/**
+	 * @return the end (exclusive) of the batch of sentences starting at @param
+	 *         begin: the following sentences are added to the batch as long as
+	 *         they share the same engine and the same voice, up to the
+	 *         engine's maxBatchSize(). Only the engines that handle the marks
+	 *         are given batches, since the others need the sentences to be
+	 *         split at the marks.
+	 */
+	private static int batchEnd(List<Sentence> sentences, int begin) {
+		Sentence first = sentences.get(begin);
+		TTSEngine tts = first.getTTSproc();
+		int max = tts.maxBatchSize();
+		if (max <= 1 || tts.endingMark() == null
+		        || first.getVoice().getMarkSupport() == MarkSupport.MARK_NOT_SUPPORTED)
+			return begin + 1;
+		int end = begin + 1;
+		while (end < sentences.size() && end - begin < max
+		        && sentences.get(end).getTTSproc() == tts
+		        && first.getVoice().equals(sentences.get(end).getVoice()))
+			++end;
+		return end;
+	}
+
+	/**
+	 * @return the end (exclusive) of the window of sentences starting at
+	 *         @param begin that are requested at the same time from an engine
+	 *         called asynchronously: the following sentences are added as long
+	 *         as they share the same engine, up to the engine's
+	 *         maxConcurrentRequests().
+	 */
+	private static int asyncEnd(List<Sentence> sentences, int begin) {
+		TTSEngine tts = sentences.get(begin).getTTSproc();
+		int max = tts.maxConcurrentRequests();
+		int end = begin + 1;
+		while (end < sentences.size() && end - begin < max
+		        && sentences.get(end).getTTSproc() == tts)
+			++end;
+		return end;
+	}
+
+	/**
+	 * Send the requests of consecutive sentences to an engine called
+	 * asynchronously, then wait for the results in the order of the sentences.
+	 * The number of requests outstanding for the engine, all threads
+	 * included, is bounded by the engine's permits. The sentences whose
+	 * request failed are synthesized again with speak() once all the requests
+	 * are completed, including the ones discarded after a timeout, since
+	 * speak() may release the resource they share.
+	 * 
+	 * @return the number of sentences that could not be synthesized
+	 */
+	private int speakAsync(ContiguousText section, List<Sentence> window, PCMQueue pcmOutput,
+	        TTSTimeoutWheel.Timeout timeout, int maxQueueEltSize) {
+		final Sentence first = window.get(0);
+		final TTSEngine tts = first.getTTSproc();
+		Semaphore permits = mRequestPermits.get(tts);
+		List<CompletableFuture<SynthesisResult>> requests = new ArrayList<CompletableFuture<SynthesisResult>>();
+		List<CompletableFuture<SynthesisResult>> sent = new ArrayList<CompletableFuture<SynthesisResult>>(); //engine's futures
+		List<List<String>> expectedMarks = new ArrayList<List<String>>();
+		int[] timeoutSecs = new int[window.size()];
+		boolean failed = false;
+
+		//send the requests
+		final TTSResource resource = getResource(tts, first.getID(), timeout);
+		for (int i = 0; i < window.size(); ++i) {
+			Sentence sentence = window.get(i);
+			List<String> expected = getMarkNames(sentence.getText());
+			expected.add(null); //makes room for the ending-mark
+			expectedMarks.add(expected);
+			timeoutSecs[i] = 1 + 3 * tts.expectedMillisecPerWord() * sentence.getSize()
+			        / (6 * 1000); //~6 chars/word
+			mTTSLog.getWritableEntry(sentence.getID()).setTimeout(timeoutSecs[i]);
+			CompletableFuture<SynthesisResult> request = null;
+			if (resource != null && !failed) {
+				try {
+					timeout.enableForCurrentThread(timeoutSecs[i]);
+					request = synthesizeAsync(tts, sentence, sentence.getVoice(), resource,
+					        expected, permits, sent);
+				} catch (Exception e) {
+					mTTSLog.getWritableEntry(sentence.getID()).addError(
+					        new TTSLog.Error(ErrorCode.WARNING, "error while sending request to "
+					                + TTSServiceUtil.displayName(tts.getProvider()) + " : " + e));
+					failed = true;
+				} finally {
+					timeout.disable();
+				}
+			}
+			requests.add(request);
+		}
+
+		//wait for the results
+		ThreadFreeInterrupter interrupter = new ThreadFreeInterrupter() {
+			@Override
+			public void threadFreeInterrupt() {
+				String msg = "Forcing interruption of the current work of "
+				        + TTSServiceUtil.displayName(tts.getProvider()) + "...";
+				ServerLogger.warn(msg);
+				mTTSLog.getWritableEntry(first.getID()).addError(
+				        new TTSLog.Error(ErrorCode.WARNING, msg));
+				tts.interruptCurrentWork(resource);
+			}
+		};
+		List<SynthesisResult> results = new ArrayList<SynthesisResult>();
+		for (int i = 0; i < window.size(); ++i) {
+			Sentence sentence = window.get(i);
+			CompletableFuture<SynthesisResult> request = requests.get(i);
+			SynthesisResult result = null;
+			if (request != null) {
+				try {
+					timeout.enableForCurrentThread(interrupter, timeoutSecs[i]);
+					result = request.get();
+				} catch (InterruptedException e) {
+					mTTSLog.getWritableEntry(sentence.getID()).addError(
+					        new TTSLog.Error(ErrorCode.WARNING, "timeout (" + timeoutSecs[i]
+					                + " seconds) fired while speaking with "
+					                + TTSServiceUtil.displayName(tts.getProvider())));
+					tts.interruptCurrentWork(resource);
+					for (int j = i; j < requests.size(); ++j)
+						if (requests.get(j) != null)
+							discard(requests.get(j));
+					Collections.fill(requests.subList(i, requests.size()), null);
+					failed = true;
+				} catch (ExecutionException e) {
+					mTTSLog.getWritableEntry(sentence.getID()).addError(
+					        new TTSLog.Error(ErrorCode.WARNING, "error while speaking with "
+					                + TTSServiceUtil.displayName(tts.getProvider()) + " : "
+					                + e.getCause()));
+					failed = true;
+				} finally {
+					timeout.disable();
+				}
+			}
+			results.add(result);
+		}
+		if (failed || resource == null) {
+			//same as speak() after a failure: release the resource and try again one by one,
+			//but not before the discarded requests are over since they still use the resource
+			final TTSResource toRelease = mResources.get(tts);
+			if (awaitCompletion(sent, interrupter, timeout))
+				releaseResource(tts, toRelease);
+			else
+				CompletableFuture.allOf(sent.toArray(new CompletableFuture[sent.size()]))
+				        .whenComplete((v, e) -> releaseResource(tts, toRelease));
+			mResources.remove(tts);
+		}
+
+		//add the results in the order of the sentences
+		int errors = 0;
+		for (int i = 0; i < window.size(); ++i) {
+			Sentence sentence = window.get(i);
+			SynthesisResult result = results.get(i);
+			if (result != null
+			        && checkMarks(tts, sentence.getID(), result.audio, result.marks,
+			                expectedMarks.get(i))) {
+				if (mLastFormat != null && !tts.getAudioOutputFormat().matches(mLastFormat))
+					flush(section, pcmOutput); //after a fallback on another voice
+				addSentence(section, sentence, tts, result.audio, result.marks, pcmOutput,
+				        maxQueueEltSize);
+			} else if (!speak(section, sentence, pcmOutput, timeout, maxQueueEltSize))
+				++errors;
+		}
+		return errors;
+	}
+
+	/**
+	 * Synthesize consecutive sentences sharing the same engine and voice with
+	 * a single call to TTSEngine.synthesizeBatch(). The sentences found in the
+	 * cache are not sent to the engine. The sentences whose result is invalid
+	 * are synthesized again with speak(), which can fall back on another
+	 * voice. If the whole batch fails, all the sentences are handed over to
+	 * speak().
+	 * 
+	 * @return the number of sentences that could not be synthesized
+	 */
+	private int speakBatch(ContiguousText section, List<Sentence> batch, PCMQueue pcmOutput,
+	        TTSTimeoutWheel.Timeout timeout, int maxQueueEltSize) {
+		final Sentence first = batch.get(0);
+		final TTSEngine tts = first.getTTSproc();
+		Voice voice = first.getVoice();
+
+		List<Iterable<AudioBuffer>> results = null;
+		List<List<Mark>> marks = new ArrayList<List<Mark>>();
+		List<List<String>> expectedMarks = new ArrayList<List<String>>();
+		List<String> transformedSentences = new ArrayList<String>();
+		List<String> cacheKeys = new ArrayList<String>();
+		boolean[] fromCache = new boolean[batch.size()];
+		final TTSResource resource = getResource(tts, first.getID(), timeout);
+		if (resource != null) {
+			results = new ArrayList<Iterable<AudioBuffer>>();
+			List<String> inputs = new ArrayList<String>();
+			List<XdmNode> xmlInputs = new ArrayList<XdmNode>();
+			List<List<Mark>> inputMarks = new ArrayList<List<Mark>>();
+			List<List<String>> inputExpectedMarks = new ArrayList<List<String>>();
+			int timeoutSecs = 1;
+			try {
+				for (Sentence sentence : batch) {
+					List<String> expected = getMarkNames(sentence.getText());
+					expected.add(tts.endingMark());
+					List<Mark> sentenceMarks = new ArrayList<Mark>();
+					expectedMarks.add(expected);
+					marks.add(sentenceMarks);
+					String transformed = transformSSML(sentence.getText(), tts, voice);
+					transformedSentences.add(transformed);
+					TTSLog.Entry logEntry = mTTSLog.getWritableEntry(sentence.getID());
+					logEntry.resetTTSinput();
+					logEntry.addTTSinput(transformed);
+					logEntry.setActualVoice(voice);
+					String cacheKey = null;
+					Collection<AudioBuffer> cached = null;
+					if (mCache != null) {
+						cacheKey = mCache.key(tts, voice, transformed);
+						if (cacheKey != null)
+							cached = mCache.load(cacheKey, sentenceMarks, mAudioBufferTracker);
+						if (cached != null) {
+							++mCacheHits;
+							fromCache[results.size()] = true;
+						} else
+							++mCacheMisses;
+					}
+					cacheKeys.add(cacheKey);
+					results.add(cached);
+					if (cached == null) {
+						inputs.add(transformed);
+						xmlInputs.add(sentence.getText());
+						inputMarks.add(sentenceMarks);
+						inputExpectedMarks.add(expected);
+						timeoutSecs += 3 * tts.expectedMillisecPerWord() * sentence.getSize()
+						        / (6 * 1000); //~6 chars/word
+					}
+				}
+				if (!inputs.isEmpty()) {
+					ThreadFreeInterrupter interrupter = new ThreadFreeInterrupter() {
+						@Override
+						public void threadFreeInterrupt() {
+							String msg = "Forcing interruption of the current work of "
+							        + TTSServiceUtil.displayName(tts.getProvider()) + "...";
+							ServerLogger.warn(msg);
+							mTTSLog.getWritableEntry(first.getID()).addError(
+							        new TTSLog.Error(ErrorCode.WARNING, msg));
+							tts.interruptCurrentWork(resource);
+						}
+					};
+					mTTSLog.getWritableEntry(first.getID()).setTimeout(timeoutSecs);
+					List<Collection<AudioBuffer>> synthesized;
+					Semaphore permits = mRequestPermits.get(tts);
+					if (permits != null)
+						permits.acquireUninterruptibly();
+					try {
+						timeout.enableForCurrentThread(interrupter, timeoutSecs);
+						synchronized (resource) {
+							if (resource.invalid)
+								throw new SynthesisException("Resource of "
+								        + TTSServiceUtil.displayName(tts.getProvider())
+								        + " is no longer valid");
+							synthesized = tts.synthesizeBatch(inputs, xmlInputs, voice,
+							        resource, inputMarks, inputExpectedMarks,
+							        mAudioBufferTracker, false);
+						}
+					} finally {
+						timeout.disable();
+						if (permits != null)
+							permits.release();
+					}
+					int k = 0;
+					for (int i = 0; i < results.size(); ++i) {
+						if (results.get(i) == null)
+							results.set(i, synthesized.get(k++));
+					}
+				}
+			} catch (Exception e) {
+				String msg;
+				if (e instanceof InterruptedException)
+					msg = "timeout (" + timeoutSecs + " seconds) fired while speaking a batch of "
+					        + batch.size() + " sentences with ";
+				else
+					msg = "error while speaking a batch of " + batch.size()
+					        + " sentences with ";
+				mTTSLog.getWritableEntry(first.getID()).addError(
+				        new TTSLog.Error(ErrorCode.WARNING, msg
+				                + TTSServiceUtil.displayName(tts.getProvider()) + " : " + e));
+				for (Iterable<AudioBuffer> pcm : results)
+					if (pcm != null)
+						SoundUtil.cancelFootPrint(pcm, mAudioBufferTracker);
+				results = null;
+			}
+		}
+		if (results == null) {
+			//same as speak() after a failure: release the resource and try again one by one
+			releaseResource(tts, mResources.get(tts));
+			mResources.remove(tts);
+		}
+
+		int errors = 0;
+		for (int i = 0; i < batch.size(); ++i) {
+			Sentence sentence = batch.get(i);
+			if (results != null) {
+				Iterable<AudioBuffer> pcm = results.get(i);
+				List<Mark> sentenceMarks = marks.get(i);
+				if (checkMarks(tts, sentence.getID(), pcm, sentenceMarks, expectedMarks.get(i))) {
+					String cacheKey = cacheKeys.get(i);
+					if (mCache != null && !fromCache[i]) {
+						if (cacheKey == null) //the format may be known by now
+							cacheKey = mCache.key(tts, voice, transformedSentences.get(i));
+						if (cacheKey != null)
+							mCache.store(cacheKey, pcm, sentenceMarks);
+					}
+					if (mLastFormat != null && !tts.getAudioOutputFormat().matches(mLastFormat))
+						flush(section, pcmOutput); //after a fallback on another voice
+					addSentence(section, sentence, tts, pcm, sentenceMarks, pcmOutput,
+					        maxQueueEltSize);
+					continue;
+				}
+			}
+			if (!speak(section, sentence, pcmOutput, timeout, maxQueueEltSize))
+				++errors;
+		}
+		return errors;
+	}
+
 	private void printMemError(Sentence sentence, MemoryException e) {
 		String msg = "out of memory when processing sentence";
 		ServerLogger.error(msg + " with @id=" + sentence.getID());
@@ -598,8 +1237,39 @@ public class TextToPcmThread implements FormatSpecifications {
 		return (bytes / (format.getFrameRate() * format.getFrameSize()));
 	}
 
+	/**
+	 * Split @param sentence at its marks. The chunks are serialized by the
+	 * splitter if the service has an SSMLAdapter, so that no tree is built for
+	 * them.
+	 */
+	private Collection<Chunk> split(XdmNode sentence, TTSEngine engine, Voice v) {
+		SSMLAdapter adapter = mSSMLAdapters.get(engine.getProvider());
+		if (adapter != null)
+			return mSSMLSplitter.split(sentence, v.name, adapter, engine.endingMark());
+		return mSSMLSplitter.split(sentence);
+	}
+
+	private String transformSSML(Chunk chunk, TTSEngine engine, Voice v)
+	        throws SaxonApiException {
+		if (chunk.serialized() != null)
+			return chunk.serialized();
+		return transformSSML(chunk.ssml(), engine, v);
+	}
+
+	/**
+	 * @return the XML version of @param chunk given to the TTS engine: the
+	 *         whole @param sentence if the chunk has been serialized by the
+	 *         splitter
+	 */
+	private static XdmNode chunkNode(Chunk chunk, XdmNode sentence) {
+		return chunk.ssml() != null ? chunk.ssml() : sentence;
+	}
+
 	private String transformSSML(XdmNode ssml, TTSEngine engine, Voice v)
 	        throws SaxonApiException {
+		SSMLAdapter adapter = mSSMLAdapters.get(engine.getProvider());
+		if (adapter != null)
+			return SSMLUtil.toString(ssml, v.name, adapter, engine.endingMark());
 		mTransformParams.put("voice", v.name);
 		if (engine.endingMark() != null)
 			mTransformParams.put("ending-mark", engine.endingMark());
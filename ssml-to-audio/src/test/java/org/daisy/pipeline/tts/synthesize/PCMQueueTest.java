@@ -0,0 +1,290 @@
+package org.daisy.pipeline.tts.synthesize;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferTracker;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PCMQueueTest {
+
+	private static final AudioFormat Format = new AudioFormat(8000, 16, 1, true, false);
+
+	private AudioBufferTracker mTracker;
+	private File mSpillDir;
+
+	private static class Buffer extends AudioBuffer {
+		Buffer(int size, byte value) {
+			data = new byte[size];
+			this.size = size;
+			for (int i = 0; i < size; ++i)
+				data[i] = value;
+		}
+	}
+
+	/**
+	 * Thread calling put() once
+	 */
+	private static class Producer extends Thread {
+		PCMQueue queue;
+		ContiguousPCM pcm;
+		volatile boolean returned;
+
+		Producer(PCMQueue queue, ContiguousPCM pcm) {
+			this.queue = queue;
+			this.pcm = pcm;
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				queue.put(pcm, 0);
+				returned = true;
+			} catch (InterruptedException e) {
+			}
+		}
+
+		/**
+		 * @return true if put() is still blocked after @param millis
+		 */
+		boolean blocked(long millis) throws InterruptedException {
+			join(millis);
+			return !returned;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		//1MB for the encoding space
+		System.setProperty("org.daisy.pipeline.tts.maxmem", "3");
+		mTracker = new AudioBufferTracker();
+		System.clearProperty("org.daisy.pipeline.tts.maxmem");
+		mSpillDir = File.createTempFile("spill", "");
+		mSpillDir.delete();
+		mSpillDir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : mSpillDir.listFiles())
+			f.delete();
+		mSpillDir.delete();
+	}
+
+	/**
+	 * @return a packet whose approximate encoding time is @param time
+	 */
+	private static ContiguousPCM packet(int time) {
+		return new ContiguousPCM(Format, Collections.<AudioBuffer> singletonList(new Buffer(
+		        time * Format.getSampleSizeInBits(), (byte) time)), null, "p" + time);
+	}
+
+	/**
+	 * @return a packet of @param size bytes in the encoding space
+	 */
+	private static ContiguousPCM bigPacket(int size) {
+		int overhead = packet(0).sizeInBytes();
+		return new ContiguousPCM(Format, Collections.<AudioBuffer> singletonList(new Buffer(size
+		        - overhead, (byte) 0)), null, "big");
+	}
+
+	/**
+	 * Same as the EncodingThreads: the memory is released once the packet has
+	 * been encoded
+	 */
+	private ContiguousPCM encode(PCMQueue queue) throws InterruptedException {
+		ContiguousPCM pcm = queue.take();
+		if (pcm != null && !pcm.isSpilled())
+			mTracker.releaseEncodersMemory(pcm.sizeInBytes());
+		return pcm;
+	}
+
+	@Test
+	public void biggestFirst() throws InterruptedException {
+		PCMQueue queue = new PCMQueue(10, mTracker, false, null);
+		for (int time : new int[]{1, 9, 100, 3, 15, 8})
+			queue.put(packet(time), 0);
+		queue.close();
+		//9, 15 and 8 are in the same bucket: they come in FIFO order
+		for (int time : new int[]{100, 9, 15, 8, 3, 1})
+			Assert.assertEquals(time, encode(queue).getEncodingTimeApprox());
+		Assert.assertNull(encode(queue));
+		Assert.assertEquals(0, mTracker.getUnreleasedEncondingMem());
+	}
+
+	@Test
+	public void blockedOnCount() throws InterruptedException {
+		PCMQueue queue = new PCMQueue(2, mTracker, false, null);
+		queue.addConsumer();
+		queue.put(packet(1), 0);
+		queue.put(packet(2), 0);
+		Producer producer = new Producer(queue, packet(3));
+		Assert.assertTrue(producer.blocked(200));
+
+		Assert.assertEquals(2, encode(queue).getEncodingTimeApprox());
+		Assert.assertFalse(producer.blocked(2000));
+		Assert.assertEquals(3, encode(queue).getEncodingTimeApprox());
+		Assert.assertEquals(1, encode(queue).getEncodingTimeApprox());
+	}
+
+	@Test
+	public void boundNotEnforcedWithoutConsumers() throws InterruptedException {
+		//the encoders may all have stopped because of errors
+		PCMQueue queue = new PCMQueue(1, mTracker, false, null);
+		queue.put(packet(1), 0);
+		Assert.assertFalse(new Producer(queue, packet(2)).blocked(2000));
+	}
+
+	@Test
+	public void blockedOnBytes() throws InterruptedException {
+		PCMQueue queue = new PCMQueue(10, mTracker, false, null);
+		queue.addConsumer();
+		int size = 2 * mTracker.getSpaceForEncoding() / 3;
+		queue.put(bigPacket(size), 0);
+		Producer producer = new Producer(queue, bigPacket(size));
+		Assert.assertTrue(producer.blocked(200));
+
+		//taking the packet is not enough: the memory is released once encoded
+		ContiguousPCM pcm = queue.take();
+		Assert.assertTrue(producer.blocked(200));
+		mTracker.releaseEncodersMemory(pcm.sizeInBytes());
+		Assert.assertFalse(producer.blocked(2000));
+		Assert.assertNotNull(encode(queue));
+		Assert.assertEquals(0, mTracker.getUnreleasedEncondingMem());
+	}
+
+	@Test
+	public void closeDrains() throws InterruptedException {
+		PCMQueue queue = new PCMQueue(10, mTracker, false, null);
+		queue.put(packet(1), 0);
+		queue.put(packet(2), 0);
+		queue.close();
+		Assert.assertEquals(2, encode(queue).getEncodingTimeApprox());
+		Assert.assertEquals(1, encode(queue).getEncodingTimeApprox());
+		Assert.assertNull(encode(queue));
+		Assert.assertNull(encode(queue));
+	}
+
+	@Test
+	public void closeWakesConsumers() throws InterruptedException {
+		final PCMQueue queue = new PCMQueue(10, mTracker, false, null);
+		final ContiguousPCM[] taken = new ContiguousPCM[]{packet(1)};
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					taken[0] = queue.take();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		consumer.setDaemon(true);
+		consumer.start();
+		consumer.join(200);
+		Assert.assertTrue(consumer.isAlive());
+		queue.close();
+		consumer.join(2000);
+		Assert.assertFalse(consumer.isAlive());
+		Assert.assertNull(taken[0]);
+	}
+
+	@Test
+	public void abortReleasesProducers() throws InterruptedException {
+		PCMQueue queue = new PCMQueue(3, mTracker, false, null);
+		queue.addConsumer();
+		int size = 2 * mTracker.getSpaceForEncoding() / 3;
+		queue.put(bigPacket(size), 0);
+		Producer onBytes = new Producer(queue, bigPacket(size));
+		Assert.assertTrue(onBytes.blocked(200));
+		queue.put(packet(1), 0); //the second slot is held by the blocked producer
+		Producer onCount = new Producer(queue, packet(2));
+		Assert.assertTrue(onCount.blocked(200));
+
+		queue.abort();
+		Assert.assertFalse(onBytes.blocked(2000));
+		Assert.assertFalse(onCount.blocked(2000));
+		Assert.assertNull(queue.take());
+		//the packets have been discarded and their memory released
+		Assert.assertEquals(0, mTracker.getUnreleasedEncondingMem());
+	}
+
+	@Test
+	public void spilledAfterMemory() throws InterruptedException {
+		PCMQueue queue = new PCMQueue(1, mTracker, false, mSpillDir);
+		queue.addConsumer();
+		queue.put(packet(1), 0);
+		queue.put(packet(2), 0); //doesn't block
+		queue.put(packet(3), 0);
+		Assert.assertEquals(2, mSpillDir.listFiles().length);
+		queue.close();
+
+		Assert.assertEquals(1, encode(queue).getEncodingTimeApprox());
+		for (int time : new int[]{2, 3}) {
+			ContiguousPCM pcm = encode(queue);
+			Assert.assertTrue(pcm.isSpilled());
+			int size = 0;
+			for (AudioBuffer b : pcm.getBuffers()) {
+				for (int i = 0; i < b.size; ++i)
+					Assert.assertEquals(time, b.data[i]);
+				size += b.size;
+			}
+			Assert.assertEquals(time * Format.getSampleSizeInBits(), size);
+			pcm.deleteSpillFile();
+		}
+		Assert.assertNull(encode(queue));
+		Assert.assertEquals(0, mSpillDir.listFiles().length);
+	}
+
+	@Test
+	public void offHeap() throws InterruptedException {
+		System.setProperty("org.daisy.pipeline.tts.bufferpool.maxsize", "16");
+		AudioBufferTracker tracker = new AudioBufferTracker();
+		System.clearProperty("org.daisy.pipeline.tts.bufferpool.maxsize");
+		PCMQueue queue = new PCMQueue(10, tracker, true, null);
+		//bigger than a chunk
+		int time = 1048576 / Format.getSampleSizeInBits() + 1;
+		queue.put(packet(time), 0);
+		queue.close();
+		ContiguousPCM pcm = queue.take();
+		for (int pass = 0; pass < 2; ++pass) {
+			int size = 0, chunks = 0;
+			for (AudioBuffer b : pcm.getBuffers()) {
+				for (int i = 0; i < b.size; ++i)
+					Assert.assertEquals((byte) time, b.data[i]);
+				size += b.size;
+				++chunks;
+			}
+			Assert.assertEquals(time * Format.getSampleSizeInBits(), size);
+			Assert.assertEquals(2, chunks);
+		}
+		tracker.releaseEncodersMemory(pcm.sizeInBytes());
+		pcm.recycle(tracker);
+		Assert.assertEquals(0, tracker.getUnreleasedEncondingMem());
+		//the chunks of both passes: 1MB + 1KB each
+		Assert.assertTrue(tracker.getPoolStatistics(), tracker.getPoolStatistics().contains(
+		        "occupancy: 2MB"));
+	}
+
+	@Test
+	public void abortDeletesSpilledPackets() throws InterruptedException {
+		PCMQueue queue = new PCMQueue(1, mTracker, false, mSpillDir);
+		queue.addConsumer();
+		queue.put(packet(1), 0);
+		queue.put(packet(2), 0);
+		queue.abort();
+		Assert.assertEquals(0, mSpillDir.listFiles().length);
+		queue.put(packet(3), 0);
+		Assert.assertEquals(0, mSpillDir.listFiles().length);
+		Assert.assertNull(queue.take());
+		Assert.assertEquals(0, mTracker.getUnreleasedEncondingMem());
+	}
+}
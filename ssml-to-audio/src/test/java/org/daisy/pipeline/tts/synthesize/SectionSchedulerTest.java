@@ -0,0 +1,229 @@
+package org.daisy.pipeline.tts.synthesize;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+
+import net.sf.saxon.s9api.XdmNode;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferAllocator;
+import org.daisy.pipeline.tts.TTSEngine;
+import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
+import org.daisy.pipeline.tts.TTSService.Mark;
+import org.daisy.pipeline.tts.Voice;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SectionSchedulerTest {
+
+	private static class Engine extends TTSEngine {
+		int reserved;
+
+		Engine(int reserved) {
+			super(null);
+			this.reserved = reserved;
+		}
+
+		@Override
+		public Collection<AudioBuffer> synthesize(String sentence, XdmNode xmlSentence,
+		        Voice voice, TTSResource threadResources, List<Mark> marks,
+		        List<String> expectedMarks, AudioBufferAllocator bufferAllocator, boolean retry) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public AudioFormat getAudioOutputFormat() {
+			return null;
+		}
+
+		@Override
+		public Collection<Voice> getAvailableVoices() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public int reservedThreadNum() {
+			return reserved;
+		}
+	}
+
+	/**
+	 * Thread calling take() once
+	 */
+	private static class Taker extends Thread {
+		SectionScheduler scheduler;
+		TTSEngine poolkey;
+		boolean[] stolen = new boolean[1];
+		volatile ContiguousText taken;
+		volatile boolean returned;
+
+		Taker(SectionScheduler scheduler, TTSEngine poolkey) {
+			this.scheduler = scheduler;
+			this.poolkey = poolkey;
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				taken = scheduler.take(poolkey, stolen);
+				returned = true;
+			} catch (InterruptedException e) {
+			}
+		}
+
+		/**
+		 * @return true if take() is still waiting after @param millis
+		 */
+		boolean waiting(long millis) throws InterruptedException {
+			join(millis);
+			return !returned;
+		}
+	}
+
+	private static ContiguousText section(int position) {
+		return new ContiguousText(position, null);
+	}
+
+	@Test
+	public void ownerFromHeadThievesFromTail() throws InterruptedException {
+		SectionScheduler scheduler = new SectionScheduler();
+		Engine engine = new Engine(2);
+		ContiguousText s1 = section(1), s2 = section(2), s3 = section(3);
+		scheduler.addAll(engine, Arrays.asList(s1, s2, s3));
+		boolean[] stolen = new boolean[1];
+
+		Assert.assertSame(s1, scheduler.take(engine, stolen));
+		Assert.assertFalse(stolen[0]);
+		Assert.assertSame(s3, scheduler.take(null, stolen));
+		Assert.assertTrue(stolen[0]);
+	}
+
+	@Test
+	public void ownPoolFirst() throws InterruptedException {
+		SectionScheduler scheduler = new SectionScheduler();
+		Engine a = new Engine(1);
+		Engine b = new Engine(1);
+		ContiguousText regular = section(1), ofA = section(2), ofB = section(3);
+		scheduler.add(null, regular);
+		scheduler.add(a, ofA);
+		scheduler.add(b, ofB);
+		boolean[] stolen = new boolean[1];
+
+		Assert.assertSame(ofA, scheduler.take(a, stolen));
+		Assert.assertFalse(stolen[0]);
+		//the threads of an engine help with the regular sections before the
+		//sections of the other engines
+		Assert.assertSame(regular, scheduler.take(a, stolen));
+		Assert.assertTrue(stolen[0]);
+		Assert.assertSame(ofB, scheduler.take(a, stolen));
+		Assert.assertTrue(stolen[0]);
+	}
+
+	@Test
+	public void regularThreadsTakeRegularSectionsFirst() throws InterruptedException {
+		SectionScheduler scheduler = new SectionScheduler();
+		Engine engine = new Engine(1);
+		ContiguousText regular = section(1), reserved = section(2);
+		scheduler.add(engine, reserved);
+		scheduler.add(null, regular);
+		boolean[] stolen = new boolean[1];
+
+		Assert.assertSame(regular, scheduler.take(null, stolen));
+		Assert.assertFalse(stolen[0]);
+		Assert.assertSame(reserved, scheduler.take(null, stolen));
+		Assert.assertTrue(stolen[0]);
+	}
+
+	@Test
+	public void inFlightCap() throws InterruptedException {
+		SectionScheduler scheduler = new SectionScheduler();
+		Engine engine = new Engine(1);
+		ContiguousText s1 = section(1), s2 = section(2);
+		scheduler.addAll(engine, Arrays.asList(s1, s2));
+		boolean[] stolen = new boolean[1];
+
+		//stolen by a regular thread: it still counts for the engine
+		Assert.assertSame(s2, scheduler.take(null, stolen));
+		Taker owner = new Taker(scheduler, engine);
+		Taker thief = new Taker(scheduler, null);
+		Assert.assertTrue(owner.waiting(200));
+		Assert.assertTrue(thief.waiting(10));
+
+		scheduler.finished(s2);
+		owner.join(2000);
+		thief.join(2000);
+		//one of them gets s1, the other one waits for s1 to be finished
+		Assert.assertTrue(owner.returned != thief.returned);
+		Taker winner = owner.returned ? owner : thief;
+		Assert.assertSame(s1, winner.taken);
+
+		//nothing left to take once closed, even though s1 is still in progress
+		Taker loser = owner.returned ? thief : owner;
+		Assert.assertTrue(loser.waiting(200));
+		scheduler.close();
+		Assert.assertFalse(loser.waiting(2000));
+		Assert.assertNull(loser.taken);
+	}
+
+	@Test
+	public void closeUnblocks() throws InterruptedException {
+		SectionScheduler scheduler = new SectionScheduler();
+		Taker taker = new Taker(scheduler, null);
+		Assert.assertTrue(taker.waiting(200));
+
+		ContiguousText section = section(1);
+		scheduler.add(null, section);
+		Assert.assertFalse(taker.waiting(2000));
+		Assert.assertSame(section, taker.taken);
+
+		taker = new Taker(scheduler, null);
+		Assert.assertTrue(taker.waiting(200));
+		scheduler.close();
+		Assert.assertFalse(taker.waiting(2000));
+		Assert.assertNull(taker.taken);
+	}
+
+	@Test
+	public void closedSchedulerIsDrained() throws InterruptedException {
+		SectionScheduler scheduler = new SectionScheduler();
+		ContiguousText s1 = section(1), s2 = section(2);
+		scheduler.addAll(null, Arrays.asList(s1, s2));
+		scheduler.close();
+		boolean[] stolen = new boolean[1];
+
+		Assert.assertSame(s1, scheduler.take(null, stolen));
+		Assert.assertSame(s2, scheduler.take(null, stolen));
+		Assert.assertNull(scheduler.take(null, stolen));
+	}
+
+	@Test
+	public void abortUnblocks() throws InterruptedException {
+		SectionScheduler scheduler = new SectionScheduler();
+		Engine engine = new Engine(1);
+		ContiguousText s1 = section(1), s2 = section(2);
+		scheduler.addAll(engine, Arrays.asList(s1, s2));
+		boolean[] stolen = new boolean[1];
+		Assert.assertSame(s1, scheduler.take(engine, stolen));
+
+		//s2 can't be taken until s1 is finished
+		Taker taker = new Taker(scheduler, engine);
+		Assert.assertTrue(taker.waiting(200));
+		Assert.assertFalse(scheduler.isAborted());
+
+		scheduler.abort();
+		Assert.assertFalse(taker.waiting(2000));
+		Assert.assertNull(taker.taken);
+		Assert.assertTrue(scheduler.isAborted());
+
+		//the section in progress is given back as usual, s2 has been dropped
+		scheduler.finished(s1);
+		Assert.assertNull(scheduler.take(engine, stolen));
+		Assert.assertNull(scheduler.take(null, stolen));
+	}
+}
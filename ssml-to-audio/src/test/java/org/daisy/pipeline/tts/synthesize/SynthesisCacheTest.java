@@ -0,0 +1,241 @@
+package org.daisy.pipeline.tts.synthesize;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.sound.sampled.AudioFormat;
+
+import net.sf.saxon.s9api.XdmNode;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferAllocator;
+import org.daisy.pipeline.tts.StraightBufferAllocator;
+import org.daisy.pipeline.tts.TTSEngine;
+import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
+import org.daisy.pipeline.tts.TTSService;
+import org.daisy.pipeline.tts.TTSService.Mark;
+import org.daisy.pipeline.tts.Voice;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SynthesisCacheTest {
+
+	private static final AudioBufferAllocator Allocator = new StraightBufferAllocator();
+
+	private static class Service implements TTSService {
+		String version = "1";
+
+		@Override
+		public TTSEngine newEngine(Map<String, String> params) {
+			return new Engine(this, new AudioFormat(8000, 8, 1, true, false));
+		}
+
+		@Override
+		public String getName() {
+			return "mock";
+		}
+
+		@Override
+		public String getVersion() {
+			return version;
+		}
+
+		@Override
+		public URL getSSMLxslTransformerURL() {
+			return null;
+		}
+	}
+
+	private static class Engine extends TTSEngine {
+		AudioFormat format;
+
+		Engine(TTSService provider, AudioFormat format) {
+			super(provider);
+			this.format = format;
+		}
+
+		@Override
+		public Collection<AudioBuffer> synthesize(String sentence, XdmNode xmlSentence,
+		        Voice voice, TTSResource threadResources, List<Mark> marks,
+		        List<String> expectedMarks, AudioBufferAllocator bufferAllocator, boolean retry) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public AudioFormat getAudioOutputFormat() {
+			return format;
+		}
+
+		@Override
+		public Collection<Voice> getAvailableVoices() {
+			return Collections.emptyList();
+		}
+	}
+
+	private File mDir;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("tts-cache", "");
+		mDir.delete();
+		mDir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : mDir.listFiles())
+			f.delete();
+		mDir.delete();
+	}
+
+	private static List<AudioBuffer> pcm(String data) throws Exception {
+		AudioBuffer b = Allocator.allocateBuffer(data.length());
+		System.arraycopy(data.getBytes("US-ASCII"), 0, b.data, 0, b.size);
+		return Collections.singletonList(b);
+	}
+
+	private static String load(SynthesisCache cache, String key, List<Mark> marks)
+	        throws Exception {
+		Collection<AudioBuffer> pcm = cache.load(key, marks, Allocator);
+		if (pcm == null)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		for (AudioBuffer b : pcm)
+			sb.append(new String(b.data, 0, b.size, "US-ASCII"));
+		return sb.toString();
+	}
+
+	private static String load(SynthesisCache cache, String key) throws Exception {
+		return load(cache, key, new ArrayList<Mark>());
+	}
+
+	private File file(String key) {
+		return new File(mDir, key + ".pcm");
+	}
+
+	@Test
+	public void key() {
+		Service service = new Service();
+		SynthesisCache cache = new SynthesisCache(mDir, 1000);
+		Engine engine = new Engine(service, new AudioFormat(8000, 8, 1, true, false));
+		Voice voice = new Voice("mock", "alice");
+		String key = cache.key(engine, voice, "<s>hello</s>");
+		Assert.assertNotNull(key);
+		Assert.assertEquals(key, cache.key(engine, new Voice("mock", "alice"), "<s>hello</s>"));
+		Assert.assertFalse(key.equals(cache.key(engine, voice, "<s>hello!</s>")));
+		Assert.assertFalse(key.equals(cache.key(engine, new Voice("mock", "bob"),
+		        "<s>hello</s>")));
+		Assert.assertFalse(key.equals(cache.key(new Engine(service, new AudioFormat(16000, 16, 1,
+		        true, false)), voice, "<s>hello</s>")));
+		service.version = "2";
+		Assert.assertFalse(key.equals(cache.key(engine, voice, "<s>hello</s>")));
+		Assert.assertNull(cache.key(new Engine(service, null), voice, "<s>hello</s>"));
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		SynthesisCache cache = new SynthesisCache(mDir, 1000);
+		Assert.assertNull(load(cache, "a"));
+		List<AudioBuffer> pcm = new ArrayList<AudioBuffer>(pcm("abc"));
+		pcm.addAll(pcm("defg"));
+		cache.store("a", pcm, Arrays.asList(new Mark("m1", 2), new Mark(null, 5), new Mark(
+		        "ending-mark", 7)));
+		List<Mark> marks = new ArrayList<Mark>();
+		Assert.assertEquals("abcdefg", load(cache, "a", marks));
+		Assert.assertEquals(3, marks.size());
+		Assert.assertEquals("m1", marks.get(0).name);
+		Assert.assertEquals(2, marks.get(0).offsetInAudio);
+		Assert.assertNull(marks.get(1).name);
+		Assert.assertEquals(5, marks.get(1).offsetInAudio);
+		Assert.assertEquals("ending-mark", marks.get(2).name);
+		Assert.assertEquals(7, marks.get(2).offsetInAudio);
+
+		//empty audio
+		cache.store("b", Collections.<AudioBuffer> emptyList(), Collections.<Mark> emptyList());
+		Assert.assertEquals("", load(cache, "b"));
+	}
+
+	@Test
+	public void leastRecentlyUsedEvicted() throws Exception {
+		SynthesisCache cache = cacheOfTwo();
+		cache.store("c", pcm("cccc"), Collections.<Mark> emptyList());
+		//"b" has not been used since "a" was loaded
+		Assert.assertNull(load(cache, "b"));
+		Assert.assertFalse(file("b").exists());
+		Assert.assertEquals("aaaa", load(cache, "a"));
+		Assert.assertEquals("cccc", load(cache, "c"));
+	}
+
+	/**
+	 * @return a cache whose size only allows two entries of 4 bytes, holding
+	 *         "a" and "b", "a" being the most recently used
+	 */
+	private SynthesisCache cacheOfTwo() throws Exception {
+		SynthesisCache probe = new SynthesisCache(mDir, 1000);
+		probe.store("probe", pcm("pppp"), Collections.<Mark> emptyList());
+		long entrySize = file("probe").length();
+		file("probe").delete();
+
+		SynthesisCache cache = new SynthesisCache(mDir, 2 * entrySize);
+		cache.store("a", pcm("aaaa"), Collections.<Mark> emptyList());
+		cache.store("b", pcm("bbbb"), Collections.<Mark> emptyList());
+		Assert.assertEquals("aaaa", load(cache, "a"));
+		return cache;
+	}
+
+	@Test
+	public void orderRebuiltFromModificationDates() throws Exception {
+		SynthesisCache cache = new SynthesisCache(mDir, 1000);
+		for (String key : new String[]{"a", "b", "c"})
+			cache.store(key, pcm(key + key + key + key), Collections.<Mark> emptyList());
+		long entrySize = file("a").length();
+		long now = System.currentTimeMillis();
+		file("a").setLastModified(now - 1000);
+		file("b").setLastModified(now - 3000);
+		file("c").setLastModified(now - 2000);
+		File tmp = new File(mDir, "d.1.tmp");
+		tmp.createNewFile();
+
+		//room for two entries: "b" is the oldest
+		cache = new SynthesisCache(mDir, 2 * entrySize);
+		Assert.assertFalse(tmp.exists());
+		Assert.assertFalse(file("b").exists());
+		Assert.assertEquals("aaaa", load(cache, "a"));
+		Assert.assertEquals("cccc", load(cache, "c"));
+	}
+
+	@Test
+	public void corruptedEntryRemoved() throws Exception {
+		SynthesisCache cache = new SynthesisCache(mDir, 1000);
+		cache.store("a", pcm("aaaa"), Collections.<Mark> emptyList());
+		try (FileOutputStream out = new FileOutputStream(file("a"))) {
+			out.write(new byte[]{0, 0, 0, 1, 0});
+		}
+		Assert.assertNull(load(cache, "a"));
+		Assert.assertFalse(file("a").exists());
+
+		cache.store("a", pcm("aaaa"), Collections.<Mark> emptyList());
+		Assert.assertEquals("aaaa", load(cache, "a"));
+	}
+
+	@Test
+	public void deletedFileIsAMiss() throws Exception {
+		SynthesisCache cache = new SynthesisCache(mDir, 1000);
+		cache.store("a", pcm("aaaa"), Collections.<Mark> emptyList());
+		file("a").delete(); //as if evicted by another instance
+		Assert.assertNull(load(cache, "a"));
+
+		cache.store("a", pcm("aaaa"), Collections.<Mark> emptyList());
+		Assert.assertEquals("aaaa", load(cache, "a"));
+	}
+}
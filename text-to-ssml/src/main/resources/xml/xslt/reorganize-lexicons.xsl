@@ -6,10 +6,10 @@
 
   <!-- Reorganize the lexicons according to: -->
   <!-- # the language; -->
-  <!-- # whether or not the phoneme is a regex; -->
   <!-- # whether or not it includes a phoneme or an alias; -->
   <!-- # alphabet; -->
   <!-- It will speed up the next steps. -->
+  <!-- The regex lexemes are left out: they are handled by px:apply-regex-lexicons. -->
 
   <xsl:template match="/" priority="2">
     <!-- primary result -->
@@ -20,13 +20,6 @@
 	</xsl:apply-templates>
       </tmp:lexicons>
     </xsl:result-document>
-    <xsl:result-document method="xml" href="regex-lexicons.xml">
-      <tmp:lexicons>
-	<xsl:apply-templates select="collection()" mode="copy-subset">
-	  <xsl:with-param name="regex" select="'true'"/>
-	</xsl:apply-templates>
-      </tmp:lexicons>
-    </xsl:result-document>
   </xsl:template>
 
   <xsl:template match="node()" priority="1">
@@ -2,7 +2,6 @@ package org.daisy.pipeline.tts.acapela;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -47,12 +46,14 @@ public class AcapelaEngine extends TTSEngine {
 	private int mMsPerWord;
 	private int mReserved;
 	private int mPriority;
+	private int mBatchSize;
 
 	public AcapelaEngine(AcapelaService provider, AudioFormat format,
-	        LoadBalancer loadBalancer, int speed, int reserved, int priority)
+	        LoadBalancer loadBalancer, int speed, int reserved, int priority, int batchSize)
 	        throws SynthesisException {
 		super(provider);
 		mPriority = priority;
+		mBatchSize = batchSize;
 		mAudioFormat = format;
 		mMsPerWord = speed;
 		mReserved = reserved;
@@ -60,6 +61,7 @@ public class AcapelaEngine extends TTSEngine {
 	}
 
 	private static class ThreadResources extends TTSResource {
+		Host host; //null if the host has not been chosen by the load balancer
 		Pointer dispatcher;
 		NativeLong channelId;
 		PointerByReference channelLock;
@@ -189,7 +191,24 @@ public class AcapelaEngine extends TTSEngine {
 	@Override
 	public TTSResource allocateThreadResources() throws SynthesisException,
 	        InterruptedException {
-		return allocateThreadResources(mLoadBalancer.selectHost());
+		return bind(mLoadBalancer.selectHost());
+	}
+
+	/**
+	 * Allocate resources on @param h, returned by the load balancer. If it
+	 * fails, the host is given back to the load balancer as a failing host.
+	 */
+	private ThreadResources bind(Host h) throws SynthesisException, InterruptedException {
+		try {
+			ThreadResources th = allocateThreadResources(h);
+			th.host = h;
+			return th;
+		} catch (SynthesisException e) {
+			mLoadBalancer.requestStarted(h);
+			mLoadBalancer.requestFinished(h, 0, false);
+			mLoadBalancer.release(h);
+			throw e;
+		}
 	}
 
 	ThreadResources allocateThreadResources(Host h) throws SynthesisException,
@@ -284,6 +303,10 @@ public class AcapelaEngine extends TTSEngine {
 	@Override
 	public void releaseThreadResources(TTSResource resources) throws SynthesisException {
 		ThreadResources th = (ThreadResources) resources;
+		if (th.host != null) {
+			mLoadBalancer.release(th.host);
+			th.host = null;
+		}
 		if (th.channelId != null && th.server != null)
 			NscubeLibrary.INSTANCE.nscCloseChannel(th.server, th.channelId);
 		if (th.dispatcher != null)
@@ -291,6 +314,10 @@ public class AcapelaEngine extends TTSEngine {
 		if (th.server != null) {
 			NscubeLibrary.INSTANCE.nscReleaseServerContext(th.server);
 		}
+		//the resources may be released again if they cannot be moved to another host
+		th.channelId = null;
+		th.dispatcher = null;
+		th.server = null;
 	}
 
 	@Override
@@ -300,9 +327,18 @@ public class AcapelaEngine extends TTSEngine {
 	        InterruptedException, MemoryException {
 
 		ThreadResources th = (ThreadResources) threadResources;
-		if (retry) {
+		//the resource is moved to another host if its host is failing, or if the
+		//load balancer has a better host, e.g. a host that has recovered
+		Host target = null;
+		if (!retry && th.host != null && mLoadBalancer.isAvailable(th.host)) {
+			target = mLoadBalancer.rebalance(th.host);
+			if (target != null)
+				th.host = null; //already given back by rebalance()
+		}
+		if (retry || target != null || (th.host != null && !mLoadBalancer.isAvailable(th.host))) {
 			releaseThreadResources(th);
-			ThreadResources newth = (ThreadResources) allocateThreadResources();
+			ThreadResources newth = bind(target != null ? target : mLoadBalancer.selectHost());
+			th.host = newth.host;
 			th.server = newth.server;
 			th.dispatcher = newth.dispatcher;
 			th.channelId = newth.channelId;
@@ -314,7 +350,50 @@ public class AcapelaEngine extends TTSEngine {
 		}
 		
 		//note: the Acapela's markup for SSML interpretation is active by default.
-		return speak(ssml, th, marks, bufferAllocator);
+		Host host = th.host;
+		if (host == null)
+			return speak(ssml, th, marks, bufferAllocator);
+		boolean succeeded = false;
+		boolean hostFailed = false;
+		long start = System.nanoTime();
+		mLoadBalancer.requestStarted(host);
+		try {
+			Collection<AudioBuffer> result = speak(ssml, th, marks, bufferAllocator);
+			succeeded = true;
+			return result;
+		} catch (SynthesisException e) {
+			hostFailed = true;
+			throw e;
+		} finally {
+			if (succeeded || hostFailed)
+				mLoadBalancer.requestFinished(host, System.nanoTime() - start, succeeded);
+			else
+				mLoadBalancer.requestAborted(host); //e.g. out of memory
+		}
+	}
+
+	/**
+	 * The sentences are sent to the server in a single request, since the
+	 * marks are identified by their order and the footer of every sentence
+	 * puts its ending mark before the break. The audio is then split at the
+	 * ending marks.
+	 */
+	@Override
+	public List<Collection<AudioBuffer>> synthesizeBatch(List<String> sentences,
+	        List<XdmNode> xmlSentences, Voice voice, TTSResource threadResources,
+	        List<List<Mark>> marks, List<List<String>> expectedMarks,
+	        AudioBufferAllocator bufferAllocator, boolean retry) throws SynthesisException,
+	        InterruptedException, MemoryException {
+		StringBuilder ssml = new StringBuilder();
+		for (String sentence : sentences)
+			ssml.append(sentence);
+		List<String> allExpected = new ArrayList<String>();
+		for (List<String> expected : expectedMarks)
+			allExpected.addAll(expected);
+		List<Mark> allMarks = new ArrayList<Mark>();
+		Collection<AudioBuffer> audio = synthesize(ssml.toString(), null, voice,
+		        threadResources, allMarks, allExpected, bufferAllocator, retry);
+		return splitBatch(audio, allMarks, expectedMarks, marks, bufferAllocator);
 	}
 
 	Collection<AudioBuffer> speak(String ssml, TTSResource tr, List<Mark> marks,
@@ -330,12 +409,12 @@ public class AcapelaEngine extends TTSEngine {
 
 		int ret = lib.nscLockChannel(th.server, th.channelId, th.dispatcher, th.channelLock);
 		if (ret != NscubeLibrary.NSC_OK)
-			return Collections.EMPTY_LIST; //TODO: proper error
+			throw new SynthesisException("nscLockChannel returned error code: " + ret);
 
 		ret = lib.nscAddTextUTF8(th.channelLock.getValue(), ssml, null);
 		if (ret != NscubeLibrary.NSC_OK) {
 			lib.nscUnlockChannel(th.channelLock.getValue());
-			return Collections.EMPTY_LIST;
+			throw new SynthesisException("nscAddTextUTF8 returned error code: " + ret);
 		}
 
 		ret = lib.nscExecChannel(th.channelLock.getValue(), th.execData);
@@ -425,6 +504,11 @@ public class AcapelaEngine extends TTSEngine {
 		return mReserved;
 	}
 
+	@Override
+	public int maxBatchSize() {
+		return mBatchSize;
+	}
+
 	@Override
 	public int expectedMillisecPerWord() {
 		return mMsPerWord;
@@ -0,0 +1,56 @@
+package org.daisy.pipeline.tts.acapela;
+
+import net.sf.saxon.s9api.QName;
+
+import org.daisy.pipeline.tts.BasicSSMLAdapter;
+
+/**
+ * Java counterpart of transform-ssml.xsl. The marks are renamed with their
+ * position in the sentence, which is enough since AcapelaEngine identifies the
+ * bookmarks by their order. Not thread-safe.
+ */
+class AcapelaSSMLAdapter extends BasicSSMLAdapter {
+
+	private int mMarkCount;
+
+	@Override
+	public String getHeader(String voiceName) {
+		mMarkCount = 0;
+		if (voiceName.isEmpty())
+			return "";
+		return "\\voice{" + voiceName + "}";
+	}
+
+	@Override
+	public String getFooter(String voiceName, String endingMark) {
+		String footer = "<break time=\"250ms\"></break>";
+		if (endingMark != null && !endingMark.isEmpty())
+			footer = "<mark name=\"" + (++mMarkCount) + "\"/>" + footer;
+		return footer;
+	}
+
+	@Override
+	public QName adaptAttributeName(QName element, QName attr, String value) {
+		if (isSSML(element, "mark") && !"name".equals(attr.getLocalName()))
+			return null;
+		return super.adaptAttributeName(element, attr, value);
+	}
+
+	@Override
+	public String adaptAttributeValue(QName element, QName attr, String value) {
+		if (isSSML(element, "mark"))
+			return String.valueOf(++mMarkCount);
+		return value;
+	}
+
+	@Override
+	public String getContentPrefix(QName element) {
+		//Acapela can fail notifying marks if the sentence doesn't start with a white space
+		return isSSML(element, "s") ? " " : "";
+	}
+
+	@Override
+	public boolean useEmptyElementTag(QName element) {
+		return isSSML(element, "mark");
+	}
+}
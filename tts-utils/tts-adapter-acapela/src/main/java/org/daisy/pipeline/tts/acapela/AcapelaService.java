@@ -5,7 +5,8 @@ import java.util.Map;
 import javax.sound.sampled.AudioFormat;
 
 import org.daisy.pipeline.tts.AbstractTTSService;
-import org.daisy.pipeline.tts.RoundRobinLoadBalancer;
+import org.daisy.pipeline.tts.LeastLoadedLoadBalancer;
+import org.daisy.pipeline.tts.SSMLAdapter;
 import org.daisy.pipeline.tts.TTSEngine;
 import org.daisy.pipeline.tts.TTSService;
 
@@ -39,6 +40,7 @@ public class AcapelaService extends AbstractTTSService {
 		int reserved = convertToInt(params, "org.daisy.pipeline.tts.acapela.threads.reserved", 3);
 		int speed = convertToInt(params, "org.daisy.pipeline.tts.acapela.speed", 300);
 		int priority = convertToInt(params, "org.daisy.pipeline.tts.acapela.priority", 15);
+		int batchSize = convertToInt(params, "org.daisy.pipeline.tts.acapela.batch.size", 8);
 
 		AudioFormat format = new AudioFormat((float) sampleRate, 16, 1, true, false);
 
@@ -48,9 +50,9 @@ public class AcapelaService extends AbstractTTSService {
 		if (serverVal == null) {
 			serverVal = "localhost:0";
 		}
-		RoundRobinLoadBalancer balancer;
+		LeastLoadedLoadBalancer balancer;
 		try {
-			balancer = new RoundRobinLoadBalancer(serverVal, this);
+			balancer = new LeastLoadedLoadBalancer(serverVal);
 		} catch (Exception e) {
 			throw new SynthesisException("invalid value for property " + serversProperty);
 		}
@@ -58,7 +60,7 @@ public class AcapelaService extends AbstractTTSService {
 		//try loading the library where we have a chance to catch errors
 		Native.loadLibrary(NscubeLibrary.JNA_LIBRARY_NAME, NscubeLibrary.class);
 
-		return new AcapelaEngine(this, format, balancer, speed, reserved, priority);
+		return new AcapelaEngine(this, format, balancer, speed, reserved, priority, batchSize);
 	}
 
 	@Override
@@ -66,6 +68,11 @@ public class AcapelaService extends AbstractTTSService {
 		return "acapela";
 	}
 
+	@Override
+	public SSMLAdapter newSSMLAdapter() {
+		return new AcapelaSSMLAdapter();
+	}
+
 	@Override
 	public String getVersion() {
 		return "jna";
@@ -0,0 +1,92 @@
+package org.daisy.pipeline.tts.acapela;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.daisy.common.xslt.ThreadUnsafeXslTransformer;
+import org.daisy.common.xslt.XslTransformCompiler;
+import org.daisy.pipeline.tts.SSMLUtil;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that AcapelaSSMLAdapter gives the same result as transform-ssml.xsl
+ */
+public class AcapelaSerializerTest {
+
+	private ThreadUnsafeXslTransformer Transformer;
+	private static Processor Proc = new Processor(false);
+	private static String SsmlNs = "http://www.w3.org/2001/10/synthesis";
+
+	private static String[] Sentences = new String[]{
+	        "<speak xmlns='" + SsmlNs + "' version='1.0'><s xml:lang='en' id='s1'>"
+	                + "<token>Hello</token> <mark name='s1___w2'/><token>world</token>,"
+	                + " <say-as interpret-as='characters'>ABC</say-as> <break time='3ms'/>"
+	                + "<prosody rate='fast'>fast &amp; &lt;loud&gt; \"quoted\"</prosody>"
+	                + "<span xmlns=''>not <b>SSML</b></span><emphasis/></s></speak>",
+	        "<s xmlns='" + SsmlNs + "'><mark name='m1'/><token>a</token><mark name='m2'/>b</s>",
+	        "<ssml:s xmlns:ssml='" + SsmlNs + "' xmlns:tmp='urn:tmp' tmp:id='1'>"
+	                + "<ssml:token>x</ssml:token><!--comment--><tmp:y tmp:a='v'>y</tmp:y></ssml:s>",
+	        "<x xmlns='" + SsmlNs + "'><y attr='attr-val'/>this is text</x>",
+	        "<s xmlns='" + SsmlNs + "'/>"
+	};
+
+	@Before
+	public void setUp() throws SaxonApiException {
+		InputStream is = this.getClass().getResourceAsStream("/transform-ssml.xsl");
+		Transformer = new XslTransformCompiler(Proc.getUnderlyingConfiguration())
+		        .compileStylesheet(is).newTransformer();
+	}
+
+	private static XdmNode parse(String sentence) throws SaxonApiException {
+		return Proc.newDocumentBuilder().build(new StreamSource(new StringReader(sentence)));
+	}
+
+	private String transform(XdmNode ssml, String voice, String endingMark)
+	        throws SaxonApiException {
+		Map<String, Object> params = new TreeMap<String, Object>();
+		params.put("voice", voice);
+		if (endingMark != null)
+			params.put("ending-mark", endingMark);
+		return Transformer.transformToString(ssml, params);
+	}
+
+	/**
+	 * The XSLT names the marks with generate-id()
+	 */
+	private static String anonymizeMarks(String serialized) {
+		return serialized.replaceAll("<mark name=\"[^\"]*\"/>", "<mark/>");
+	}
+
+	@Test
+	public void marksRenamed() throws SaxonApiException {
+		Assert.assertEquals("<s> <mark name=\"1\"/>a<mark name=\"2\"/>b</s>"
+		        + "<mark name=\"3\"/><break time=\"250ms\"></break>", SSMLUtil.toString(
+		        parse(Sentences[1]), "", new AcapelaSSMLAdapter(), "ending-mark"));
+	}
+
+	@Test
+	public void sameAsXSLT() throws SaxonApiException {
+		AcapelaSSMLAdapter adapter = new AcapelaSSMLAdapter();
+		for (String sentence : Sentences) {
+			XdmNode doc = parse(sentence);
+			XdmNode root = (XdmNode) doc.axisIterator(Axis.CHILD).next();
+			for (XdmNode ssml : new XdmNode[]{doc, root})
+				for (String voice : new String[]{"", "john"})
+					for (String endingMark : new String[]{null, "emark"})
+						Assert.assertEquals(anonymizeMarks(transform(ssml, voice, endingMark)),
+						        anonymizeMarks(SSMLUtil.toString(ssml, voice, adapter,
+						                endingMark)));
+		}
+	}
+}
@@ -58,7 +58,7 @@ public class AcapelaTest {
 	public void setUp() throws SynthesisException, InterruptedException {
 		tts = new AcapelaEngine(new AcapelaService(),
 		        new AudioFormat(22050, 16, 1, true, true), new RoundRobinLoadBalancer(
-		                "localhost:0", this), 300, 3, 10);
+		                "localhost:0", this), 300, 3, 10, 8);
 	}
 
 	@Test
@@ -130,6 +130,37 @@ public class AcapelaTest {
 					l.get(1).offsetInAudio - l.get(0).offsetInAudio < l.get(0).offsetInAudio);
 	}
 
+	@Test
+	public void batch() throws SynthesisException, InterruptedException, MemoryException {
+		TTSResource r = tts.allocateThreadResources();
+		String footer = "<mark name=\"end\"/><break time=\"250ms\"></break>";
+		List<String> sentences = Arrays.asList(format("one two three" + footer),
+		        format("<mark name=\"m\"/>four five six seven" + footer), format("eight"
+		                + footer));
+		List<List<String>> expected = new ArrayList<List<String>>();
+		List<List<Mark>> marks = new ArrayList<List<Mark>>();
+		for (int i = 0; i < sentences.size(); ++i) {
+			expected.add(new ArrayList<String>(Arrays.asList(tts.endingMark())));
+			marks.add(new ArrayList<Mark>());
+		}
+		expected.get(1).add(0, "m");
+		List<Collection<AudioBuffer>> audio = tts.synthesizeBatch(sentences, Arrays.asList(
+		        null, null, null), null, r, marks, expected, BufferAllocator, false);
+		tts.releaseThreadResources(r);
+
+		Assert.assertEquals(3, audio.size());
+		for (int i = 0; i < sentences.size(); ++i) {
+			int size = getSize(audio.get(i));
+			Assert.assertTrue("audio output must be big enough", size > 2000);
+			Assert.assertEquals(expected.get(i).size(), marks.get(i).size());
+			Mark ending = marks.get(i).get(marks.get(i).size() - 1);
+			Assert.assertTrue("the ending mark must be within the sentence's audio",
+			        ending.offsetInAudio <= size);
+		}
+		Assert.assertTrue("the second sentence is the longest",
+		        getSize(audio.get(1)) > getSize(audio.get(2)));
+	}
+
 	private int[] findSize(final String[] sentences, int startShift)
 	        throws InterruptedException {
 
@@ -24,10 +24,11 @@ import net.sf.saxon.s9api.XdmNode;
 import org.daisy.common.shell.BinaryFinder;
 import org.daisy.pipeline.tts.AbstractTTSService;
 import org.daisy.pipeline.tts.BasicSSMLAdapter;
+import org.daisy.pipeline.tts.LeastLoadedLoadBalancer;
 import org.daisy.pipeline.tts.LoadBalancer.Host;
-import org.daisy.pipeline.tts.RoundRobinLoadBalancer;
 import org.daisy.pipeline.tts.SSMLAdapter;
 import org.daisy.pipeline.tts.SSMLUtil;
+import org.daisy.pipeline.tts.ScratchAudioFile;
 import org.daisy.pipeline.tts.SoundUtil;
 import org.daisy.pipeline.tts.TTSRegistry;
 import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
@@ -54,18 +55,22 @@ public class ATTBin extends AbstractTTSService {
 	private String mATTPath;
 	private int mSampleRate;
 	private Pattern mMarkPattern;
-	private RoundRobinLoadBalancer mLoadBalancer;
+	private LeastLoadedLoadBalancer mLoadBalancer;
 	private SSMLAdapter mSSMLAdapter;
 
 	private static class ThreadResource extends TTSResource {
 		Host host;
+		ScratchAudioFile outFile; //reused from one sentence to the next
 	}
 
 	public void onBeforeOneExecution() throws SynthesisException {
 		mSSMLAdapter = new BasicSSMLAdapter() {
 			@Override
-			public String getFooter() {
-				return "</voice>";
+			public String getFooter(String voiceName, String endingMark) {
+				if (endingMark == null) {
+					return "</voice>";
+				}
+				return "<mark name=\"" + endingMark + "\"/></voice>";
 			}
 
 			@Override
@@ -77,8 +82,8 @@ public class ATTBin extends AbstractTTSService {
 			}
 		};
 
-		mLoadBalancer = new RoundRobinLoadBalancer(System.getProperty("org.daisy.pipeline.tts.att.servers",
-		        "localhost:8888"), null);
+		mLoadBalancer = new LeastLoadedLoadBalancer(System.getProperty("org.daisy.pipeline.tts.att.servers",
+		        "localhost:8888"));
 		mMarkPattern = Pattern
 		        .compile("([0-9]+)\\s+BOOKMARK:\\s+([^\\s]+)", Pattern.MULTILINE);
 		mSampleRate = 16000;
@@ -124,13 +129,19 @@ public class ATTBin extends AbstractTTSService {
 		ThreadResource th = (ThreadResource) resources;
 		File dest;
 		try {
-			dest = File.createTempFile("attbin", ".wav");
+			if (th.outFile == null)
+				th.outFile = new ScratchAudioFile("attbin");
+			th.outFile.reset();
+			dest = th.outFile.getFile();
 		} catch (IOException e) {
 			throw new SynthesisException(e.getMessage(), e.getCause());
 		}
 
 		Process p = null;
 		String[] cmd = null;
+		boolean success = false;
+		long start = System.nanoTime();
+		mLoadBalancer.requestStarted(th.host);
 		try {
 			cmd = new String[]{
 			        mATTPath, "-ssml", "-v0", "-s", th.host.address, "-p",
@@ -150,17 +161,17 @@ public class ATTBin extends AbstractTTSService {
 				marks.add(new AbstractMap.SimpleEntry<String, Integer>(mr.group(2), bytes));
 			}
 			is.close();
-			p.waitFor();
+			success = (p.waitFor() == 0);
 		} catch (InterruptedException e) {
-			dest.delete();
 			if (p != null)
 				p.destroy();
 			throw e;
 		} catch (Exception e) {
-			dest.delete();
 			if (p != null)
 				p.destroy();
 			throw new SynthesisException(e.getMessage(), e.getCause());
+		} finally {
+			mLoadBalancer.requestFinished(th.host, System.nanoTime() - start, success);
 		}
 
 		// read the audio data from the resulting WAV file
@@ -168,8 +179,6 @@ public class ATTBin extends AbstractTTSService {
 			SoundUtil.readWave(dest, audioBuffer);
 		} catch (Exception e) {
 			throw new SynthesisException(e.getMessage(), e.getCause());
-		} finally {
-			dest.delete();
 		}
 	}
 
@@ -0,0 +1,38 @@
+package org.daisy.pipeline.tts.attnative;
+
+import net.sf.saxon.s9api.QName;
+
+import org.daisy.pipeline.tts.BasicSSMLAdapter;
+
+/**
+ * Java counterpart of transform-ssml.xsl
+ */
+class ATTSSMLAdapter extends BasicSSMLAdapter {
+
+	@Override
+	public String getHeader(String voiceName) {
+		String header = "<speak version=\"1.0\">";
+		if (!voiceName.isEmpty())
+			header += "<voice name=\"" + voiceName + "\">";
+		return header;
+	}
+
+	@Override
+	public String getFooter(String voiceName, String endingMark) {
+		StringBuilder footer = new StringBuilder();
+		if (endingMark != null && !endingMark.isEmpty())
+			footer.append("<mark name=\"").append(endingMark).append("\"></mark>");
+		//the break must come after the mark, otherwise some voices don't see the mark
+		footer.append("<break time=\"250ms\"></break>");
+		if (!voiceName.isEmpty())
+			footer.append("</voice>");
+		return footer.append("</speak>").toString();
+	}
+
+	@Override
+	public QName adaptElement(QName element) {
+		if (isSSML(element, "s") || isSSML(element, "speak"))
+			return null;
+		return super.adaptElement(element);
+	}
+}
@@ -6,6 +6,7 @@ import javax.sound.sampled.AudioFormat;
 
 import org.daisy.pipeline.tts.AbstractTTSService;
 import org.daisy.pipeline.tts.RoundRobinLoadBalancer;
+import org.daisy.pipeline.tts.SSMLAdapter;
 import org.daisy.pipeline.tts.TTSEngine;
 import org.daisy.pipeline.tts.TTSService;
 
@@ -53,6 +54,11 @@ public class ATTService extends AbstractTTSService {
 		return "att";
 	}
 
+	@Override
+	public SSMLAdapter newSSMLAdapter() {
+		return new ATTSSMLAdapter();
+	}
+
 	@Override
 	public String getVersion() {
 		return "native";
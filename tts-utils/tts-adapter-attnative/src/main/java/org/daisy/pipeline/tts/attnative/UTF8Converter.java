@@ -1,5 +1,6 @@
 package org.daisy.pipeline.tts.attnative;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
@@ -24,7 +25,7 @@ public class UTF8Converter {
 		CharBuffer input = CharBuffer.wrap(toConvert);
 		while (true) {
 			ByteBuffer bbuf = ByteBuffer.wrap(result.buffer);
-			bbuf.position(result.size); //size bytes have already been encoded
+			((Buffer) bbuf).position(result.size); //size bytes have already been encoded
 			CoderResult cr = encoder.encode(input, bbuf, true);
 			result.size = result.buffer.length - bbuf.remaining();
 			if (!cr.isOverflow() && bbuf.remaining() >= 2) {
@@ -1,6 +1,5 @@
 package org.daisy.pipeline.tts.espeak;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -15,8 +14,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 
 import net.sf.saxon.s9api.XdmNode;
 
@@ -30,13 +27,13 @@ import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
 import org.daisy.pipeline.tts.TTSService.Mark;
 import org.daisy.pipeline.tts.TTSService.SynthesisException;
 import org.daisy.pipeline.tts.Voice;
+import org.daisy.pipeline.tts.WaveStreamReader;
 
 public class ESpeakEngine extends MarklessTTSEngine {
 
 	private AudioFormat mAudioFormat;
 	private String[] mCmd;
 	private String mESpeakPath;
-	private final static int MIN_CHUNK_SIZE = 2048;
 	private int mPriority;
 
 	public ESpeakEngine(ESpeakService eSpeakService, String eSpeakPath, int priority) {
@@ -64,26 +61,14 @@ public class ESpeakEngine extends MarklessTTSEngine {
 			out.close();
 
 			//read the wave on the standard output
-			BufferedInputStream in = new BufferedInputStream(p.getInputStream());
-			AudioInputStream fi = AudioSystem.getAudioInputStream(in);
+			InputStream in = p.getInputStream();
+			WaveStreamReader wav = new WaveStreamReader(in);
 
 			if (mAudioFormat == null)
-				mAudioFormat = fi.getFormat();
-
-			while (true) {
-				AudioBuffer b = bufferAllocator
-				        .allocateBuffer(MIN_CHUNK_SIZE + fi.available());
-				int ret = fi.read(b.data, 0, b.size);
-				if (ret == -1) {
-					//note: perhaps it would be better to call allocateBuffer()
-					//somewhere else in order to avoid this extra call:
-					bufferAllocator.releaseBuffer(b);
-					break;
-				}
-				b.size = ret;
-				result.add(b);
-			}
-			fi.close();
+				mAudioFormat = wav.getFormat();
+
+			result = wav.readAll(bufferAllocator);
+			in.close();
 			waitFor(p, mCmd);
 		} catch (MemoryException e) {
 			SoundUtil.cancelFootPrint(result, bufferAllocator);
@@ -0,0 +1,192 @@
+package org.daisy.pipeline.tts.espeak;
+
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sound.sampled.AudioFormat;
+
+import net.sf.saxon.s9api.XdmNode;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferAllocator;
+import org.daisy.pipeline.tts.AudioBufferAllocator.MemoryException;
+import org.daisy.pipeline.tts.MarklessTTSEngine;
+import org.daisy.pipeline.tts.SoundUtil;
+import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
+import org.daisy.pipeline.tts.TTSService.SynthesisException;
+import org.daisy.pipeline.tts.Voice;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+/**
+ * eSpeak engine calling libespeak-ng in-process instead of running the eSpeak
+ * program for every sentence, which saves the process creation, the loading of
+ * the voice data and the parsing of the WAV header.
+ *
+ * The library is not reentrant: the sentences are synthesized one at a time,
+ * whichever thread they come from.
+ */
+public class ESpeakLibEngine extends MarklessTTSEngine {
+
+	//the state of the library is global, hence the static fields
+	private static final ReentrantLock LibraryLock = new ReentrantLock();
+	private static int SampleRate = 0; //0 until the library is initialized
+	private static ThreadResource Current; //resource of the sentence being synthesized
+	private static ESpeakLibrary.SynthCallback Callback; //referenced to prevent garbage collection
+
+	private ESpeakLibrary mLibrary;
+	private AudioFormat mAudioFormat;
+	private int mPriority;
+
+	private static class ThreadResource extends TTSResource {
+		Collection<AudioBuffer> result;
+		AudioBufferAllocator allocator;
+		MemoryException memoryException;
+		volatile boolean aborted;
+	}
+
+	/**
+	 * @throws SynthesisException if the library cannot be initialized
+	 */
+	ESpeakLibEngine(ESpeakService eSpeakService, ESpeakLibrary library, int priority)
+	        throws SynthesisException {
+		super(eSpeakService);
+		mLibrary = library;
+		mPriority = priority;
+		int sampleRate;
+		LibraryLock.lock();
+		try {
+			if (SampleRate == 0) {
+				sampleRate = mLibrary.espeak_Initialize(ESpeakLibrary.AUDIO_OUTPUT_SYNCHRONOUS,
+				        0, null, 0);
+				if (sampleRate <= 0)
+					throw new SynthesisException("could not initialize libespeak");
+				Callback = new ESpeakLibrary.SynthCallback() {
+					@Override
+					public int invoke(Pointer wav, int numsamples, Pointer events) {
+						return onAudio(wav, numsamples);
+					}
+				};
+				mLibrary.espeak_SetSynthCallback(Callback);
+				SampleRate = sampleRate;
+			}
+			sampleRate = SampleRate;
+		} finally {
+			LibraryLock.unlock();
+		}
+		mAudioFormat = new AudioFormat(sampleRate, 16, 1, true,
+		        ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+	}
+
+	//called by the library in the thread calling espeak_Synth(), with the lock held
+	private static int onAudio(Pointer wav, int numsamples) {
+		ThreadResource tr = Current;
+		if (tr.aborted || Thread.currentThread().isInterrupted())
+			return 1;
+		if (wav == null || numsamples <= 0)
+			return 0;
+		int size = 2 * numsamples;
+		try {
+			AudioBuffer b = tr.allocator.allocateBuffer(size);
+			wav.read(0, b.data, 0, size);
+			tr.result.add(b);
+		} catch (MemoryException e) {
+			tr.memoryException = e;
+			return 1;
+		}
+		return 0;
+	}
+
+	@Override
+	public Collection<AudioBuffer> synthesize(String sentence, XdmNode xmlSentence,
+	        Voice voice, TTSResource threadResources, AudioBufferAllocator bufferAllocator,
+	        boolean retry) throws SynthesisException, InterruptedException, MemoryException {
+
+		ThreadResource tr = (ThreadResource) threadResources;
+		tr.result = new ArrayList<AudioBuffer>();
+		tr.allocator = bufferAllocator;
+		tr.memoryException = null;
+		tr.aborted = false;
+
+		byte[] text = (sentence + "\0").getBytes(StandardCharsets.UTF_8);
+		int ret;
+		LibraryLock.lockInterruptibly();
+		try {
+			Current = tr;
+			ret = mLibrary.espeak_Synth(text, new NativeLong(text.length), 0,
+			        ESpeakLibrary.POS_CHARACTER, 0, ESpeakLibrary.espeakCHARS_UTF8
+			                | ESpeakLibrary.espeakSSML, null, null);
+		} finally {
+			Current = null;
+			LibraryLock.unlock();
+		}
+
+		if (tr.memoryException != null) {
+			SoundUtil.cancelFootPrint(tr.result, bufferAllocator);
+			throw tr.memoryException;
+		}
+		if (tr.aborted || Thread.interrupted()) {
+			SoundUtil.cancelFootPrint(tr.result, bufferAllocator);
+			throw new InterruptedException("libespeak synthesis interrupted");
+		}
+		if (ret != ESpeakLibrary.EE_OK) {
+			SoundUtil.cancelFootPrint(tr.result, bufferAllocator);
+			throw new SynthesisException("libespeak error " + ret + " while synthesizing: "
+			        + sentence);
+		}
+		return tr.result;
+	}
+
+	@Override
+	public AudioFormat getAudioOutputFormat() {
+		return mAudioFormat;
+	}
+
+	@Override
+	public Collection<Voice> getAvailableVoices() throws SynthesisException,
+	        InterruptedException {
+		List<Voice> result = new ArrayList<Voice>();
+		LibraryLock.lockInterruptibly();
+		try {
+			Pointer list = mLibrary.espeak_ListVoices(null);
+			if (list == null)
+				throw new SynthesisException("could not list the voices of libespeak");
+			//White spaces are not allowed in voice names
+			for (Pointer v : list.getPointerArray(0)) {
+				String name = v.getPointer(0).getString(0).trim().split("\\s+")[0];
+				if (!name.isEmpty())
+					result.add(new Voice(getProvider().getName(), name));
+			}
+		} finally {
+			LibraryLock.unlock();
+		}
+		return result;
+	}
+
+	@Override
+	public int getOverallPriority() {
+		return mPriority;
+	}
+
+	@Override
+	public int reservedThreadNum() {
+		//the synthesis is serialized by LibraryLock: more threads would only wait for it
+		return 1;
+	}
+
+	@Override
+	public TTSResource allocateThreadResources() throws SynthesisException,
+	        InterruptedException {
+		return new ThreadResource();
+	}
+
+	@Override
+	public void interruptCurrentWork(TTSResource resource) {
+		((ThreadResource) resource).aborted = true;
+	}
+}
@@ -0,0 +1,49 @@
+package org.daisy.pipeline.tts.espeak;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Library;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+/**
+ * Minimal JNA binding of libespeak-ng (speak_lib.h), restricted to the
+ * synchronous mode. The library keeps global state: it must be initialized
+ * once and cannot be used by several threads at the same time.
+ */
+interface ESpeakLibrary extends Library {
+
+	int AUDIO_OUTPUT_SYNCHRONOUS = 2;
+	int POS_CHARACTER = 1;
+	int espeakCHARS_UTF8 = 1;
+	int espeakSSML = 0x10;
+	int EE_OK = 0;
+
+	interface SynthCallback extends Callback {
+		/**
+		 * @param wav is null at the end of the synthesis
+		 * @return 0 to continue, 1 to abort the synthesis
+		 */
+		int invoke(Pointer wav, int numsamples, Pointer events);
+	}
+
+	/**
+	 * @return the sample rate in Hz, or -1 if the initialization failed
+	 */
+	int espeak_Initialize(int output, int buflength, String path, int options);
+
+	void espeak_SetSynthCallback(SynthCallback callback);
+
+	/**
+	 * @param size is not used in synchronous mode
+	 */
+	int espeak_Synth(byte[] text, NativeLong size, int position, int position_type,
+	        int end_position, int flags, Pointer unique_identifier, Pointer user_data);
+
+	/**
+	 * @return a null-terminated array of pointers to espeak_VOICE structures,
+	 *         whose first field is the name of the voice
+	 */
+	Pointer espeak_ListVoices(Pointer voice_spec);
+
+	String espeak_Info(Pointer path_data);
+}
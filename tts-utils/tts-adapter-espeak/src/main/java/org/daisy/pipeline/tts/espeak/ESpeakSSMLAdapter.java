@@ -0,0 +1,38 @@
+package org.daisy.pipeline.tts.espeak;
+
+import net.sf.saxon.s9api.QName;
+
+import org.daisy.pipeline.tts.BasicSSMLAdapter;
+
+/**
+ * Java counterpart of transform-ssml.xsl
+ */
+class ESpeakSSMLAdapter extends BasicSSMLAdapter {
+
+	@Override
+	public String getHeader(String voiceName) {
+		if (voiceName.isEmpty())
+			return "";
+		return "<voice name=\"" + voiceName + "\">";
+	}
+
+	@Override
+	public String getFooter(String voiceName, String endingMark) {
+		//eSpeak's marks are not used
+		return (voiceName.isEmpty() ? "" : "</voice>") + "<break time=\"250ms\"></break>";
+	}
+
+	@Override
+	public QName adaptElement(QName element) {
+		if (isSSML(element, "speak") || isSSML(element, "mark"))
+			return null;
+		return super.adaptElement(element);
+	}
+
+	@Override
+	public QName adaptAttributeName(QName element, QName attr, String value) {
+		if (isSSML(element, "s"))
+			return null;
+		return super.adaptAttributeName(element, attr, value);
+	}
+}
@@ -5,19 +5,26 @@ import java.util.Optional;
 
 import org.daisy.common.shell.BinaryFinder;
 import org.daisy.pipeline.tts.AbstractTTSService;
+import org.daisy.pipeline.tts.SSMLAdapter;
 import org.daisy.pipeline.tts.TTSEngine;
 import org.daisy.pipeline.tts.TTSService;
 
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Native;
 
 @Component(
 	name = "espeak-tts-service",
 	service = { TTSService.class }
 )
 public class ESpeakService extends AbstractTTSService {
-	
+
+	private Logger mLogger = LoggerFactory.getLogger(ESpeakService.class);
+
 	@Activate
 	protected void loadSSMLadapter() {
 		super.loadSSMLadapter("/transform-ssml.xsl", ESpeakService.class);
@@ -26,6 +33,31 @@ public class ESpeakService extends AbstractTTSService {
 	@Override
 	public TTSEngine newEngine(Map<String, String> params) throws Throwable {
 		// settings
+		String priority = params.get("org.daisy.pipeline.tts.espeak.priority");
+		int intPriority = 2;
+		if (priority != null) {
+			try {
+				intPriority = Integer.valueOf(priority);
+			} catch (NumberFormatException e) {
+
+			}
+		}
+
+		// in-process library, if requested
+		String libProp = "org.daisy.pipeline.tts.espeak.library";
+		String libName = params.get(libProp);
+		if (libName != null && !libName.isEmpty()) {
+			try {
+				ESpeakLibrary lib = (ESpeakLibrary) Native.loadLibrary(libName,
+				        ESpeakLibrary.class);
+				return new ESpeakLibEngine(this, lib, intPriority);
+			} catch (UnsatisfiedLinkError | SynthesisException e) {
+				mLogger.warn("cannot use eSpeak's library '" + libName + "' (" + e.getMessage()
+				        + "), falling back on eSpeak's executable");
+			}
+		}
+
+		// executable
 		String eSpeakPath = null;
 		String prop = "org.daisy.pipeline.tts.espeak.path";
 		eSpeakPath = params.get(prop);
@@ -38,16 +70,6 @@ public class ESpeakService extends AbstractTTSService {
 			eSpeakPath = epath.get();
 		}
 
-		String priority = params.get("org.daisy.pipeline.tts.espeak.priority");
-		int intPriority = 2;
-		if (priority != null) {
-			try {
-				intPriority = Integer.valueOf(priority);
-			} catch (NumberFormatException e) {
-
-			}
-		}
-
 		return new ESpeakEngine(this, eSpeakPath, intPriority);
 	}
 
@@ -56,6 +78,11 @@ public class ESpeakService extends AbstractTTSService {
 		return "espeak";
 	}
 
+	@Override
+	public SSMLAdapter newSSMLAdapter() {
+		return new ESpeakSSMLAdapter();
+	}
+
 	@Override
 	public String getVersion() {
 		return "cli";
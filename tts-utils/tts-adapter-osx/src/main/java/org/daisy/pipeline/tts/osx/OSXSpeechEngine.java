@@ -1,6 +1,5 @@
 package org.daisy.pipeline.tts.osx;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -15,8 +14,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 
 import net.sf.saxon.s9api.XdmNode;
 
@@ -30,13 +27,13 @@ import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
 import org.daisy.pipeline.tts.TTSService.Mark;
 import org.daisy.pipeline.tts.TTSService.SynthesisException;
 import org.daisy.pipeline.tts.Voice;
+import org.daisy.pipeline.tts.WaveStreamReader;
 
 public class OSXSpeechEngine extends MarklessTTSEngine {
 
 	private AudioFormat mAudioFormat;
 	private String mSayPath;
 	private int mPriority;
-	private final static int MIN_CHUNK_SIZE = 2048;
 
 	public OSXSpeechEngine(OSXSpeechService service, String osxPath, int priority) {
 		super(service);
@@ -71,27 +68,17 @@ public class OSXSpeechEngine extends MarklessTTSEngine {
 
 			// read the wave on the standard output
 
-			BufferedInputStream in = new BufferedInputStream(new FileInputStream(waveOut));
-			AudioInputStream fi = AudioSystem.getAudioInputStream(in);
-
-			if (mAudioFormat == null)
-				mAudioFormat = fi.getFormat();
-
-			while (true) {
-				AudioBuffer b = bufferAllocator
-				        .allocateBuffer(MIN_CHUNK_SIZE + fi.available());
-				int ret = fi.read(b.data, 0, b.size);
-				if (ret == -1) {
-					//note: perhaps it would be better to call allocateBuffer()
-					//somewhere else in order to avoid this extra call:
-					bufferAllocator.releaseBuffer(b);
-					break;
-				}
-				b.size = ret;
-				result.add(b);
-			}
+			InputStream in = new FileInputStream(waveOut);
+			try {
+				WaveStreamReader wav = new WaveStreamReader(in);
 
-			fi.close();
+				if (mAudioFormat == null)
+					mAudioFormat = wav.getFormat();
+
+				result = wav.readAll(bufferAllocator);
+			} finally {
+				in.close();
+			}
 		} catch (MemoryException e) {
 			SoundUtil.cancelFootPrint(result, bufferAllocator);
 			p.destroy();
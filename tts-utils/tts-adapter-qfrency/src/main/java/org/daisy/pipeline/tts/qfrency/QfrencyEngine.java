@@ -1,8 +1,5 @@
 package org.daisy.pipeline.tts.qfrency;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
@@ -15,38 +12,70 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 
 import net.sf.saxon.s9api.XdmNode;
 
 import org.daisy.pipeline.audio.AudioBuffer;
 import org.daisy.pipeline.tts.AudioBufferAllocator;
 import org.daisy.pipeline.tts.AudioBufferAllocator.MemoryException;
+import org.daisy.pipeline.tts.ProcessWatcher;
+import org.daisy.pipeline.tts.ScratchAudioFile;
 import org.daisy.pipeline.tts.SoundUtil;
 import org.daisy.pipeline.tts.TTSEngine;
 import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
 import org.daisy.pipeline.tts.TTSService.Mark;
 import org.daisy.pipeline.tts.TTSService.SynthesisException;
 import org.daisy.pipeline.tts.Voice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class QfrencyEngine extends TTSEngine {
 
+	//reads the output of the asynchronous requests, which would otherwise be
+	//read one after the other by the ProcessWatcher's thread
+	private static final ExecutorService OutputReaders = Executors
+	        .newCachedThreadPool(new ThreadFactory() {
+		        @Override
+		        public Thread newThread(Runnable r) {
+			        Thread t = new Thread(r, "qfrency-output-reader");
+			        t.setDaemon(true);
+			        return t;
+		        }
+	        });
+
 	private AudioFormat mAudioFormat;
 	private String mHostAddress;
 	private String mQfrencyPath;
-	private final static int MIN_CHUNK_SIZE = 2048;
 	private int mPriority;
+	private int mConcurrency;
+	private Logger mLogger = LoggerFactory.getLogger(QfrencyEngine.class);
+
+	private static class ThreadResource extends TTSResource {
+		ScratchAudioFile outFile; //reused from one sentence to the next
+		//files of the asynchronous requests, one per request in progress
+		ConcurrentLinkedQueue<ScratchAudioFile> spareFiles = new ConcurrentLinkedQueue<ScratchAudioFile>();
+		List<ScratchAudioFile> allFiles = new ArrayList<ScratchAudioFile>();
+		Set<Process> running = ConcurrentHashMap.newKeySet();
+	}
 
-	public QfrencyEngine(QfrencyService qfrencyService, String qfrencyPath, String address, int priority) {
+	public QfrencyEngine(QfrencyService qfrencyService, String qfrencyPath, String address,
+	        int priority, int concurrency) {
 		super(qfrencyService);
 		mQfrencyPath = qfrencyPath;
 		mPriority = priority;
 		mHostAddress = address;
+		mConcurrency = concurrency;
 	}
 
 	@Override
@@ -57,72 +86,127 @@ public class QfrencyEngine extends TTSEngine {
 
 		Collection<AudioBuffer> result = new ArrayList<AudioBuffer>();
 		Process proc = null;
-		File outFile = null;
-		String outPath = null;
-		sentence = stripSSML(sentence);
+		ThreadResource tr = (ThreadResource) threadResources;
+		ScratchAudioFile outFile = tr.outFile;
 		try {
-					outFile = File.createTempFile("dp2_qfrency_", ".wav");
-		outFile.deleteOnExit();
-		outPath = outFile.getPath();
-			String [] lCmd = new String[7];
-			lCmd[0]=mQfrencyPath;
-			lCmd[1]="-a";
-			lCmd[2]=mHostAddress;
-			lCmd[3]="-s";
-			lCmd[4]=outPath;
-			lCmd[5]=voice.name;
-			lCmd[6]="\'"+sentence+"\'";
-
-			proc = Runtime.getRuntime().exec(lCmd);
+			outFile.reset();
+			proc = Runtime.getRuntime().exec(command(sentence, voice, outFile));
+			tr.running.add(proc);
 			proc.waitFor();
+			tr.running.remove(proc);
 
-			BufferedInputStream in = new BufferedInputStream(new FileInputStream(outFile));
-			AudioInputStream fi = AudioSystem.getAudioInputStream(in);
+			result = outFile.read(bufferAllocator);
 
 			if (mAudioFormat == null)
-				mAudioFormat = fi.getFormat();
-
-			while (true) {
-				AudioBuffer b = bufferAllocator
-					.allocateBuffer(MIN_CHUNK_SIZE + fi.available());
-				int ret = fi.read(b.data, 0, b.size);
-				if (ret == -1) {
-					bufferAllocator.releaseBuffer(b);
-					break;
-				}
-				b.size = ret;
-				result.add(b);
-			}
-			fi.close();
+				mAudioFormat = outFile.getFormat();
 
-
-							} catch (MemoryException e) {
+		} catch (MemoryException e) {
 			SoundUtil.cancelFootPrint(result, bufferAllocator);
 			proc.destroy();
+			tr.running.remove(proc);
 			throw e;
 		} catch (InterruptedException e) {
 			SoundUtil.cancelFootPrint(result, bufferAllocator);
-			if (proc != null)
+			if (proc != null) {
 				proc.destroy();
+				tr.running.remove(proc);
+			}
 			throw e;
 		} catch (Exception e) {
 			SoundUtil.cancelFootPrint(result, bufferAllocator);
 			StringWriter sw = new StringWriter();
 			e.printStackTrace(new PrintWriter(sw));
-			if (proc != null)
+			if (proc != null) {
 				proc.destroy();
+				tr.running.remove(proc);
+			}
 			throw new SynthesisException(e);
 		}
-		outFile.delete();
-		new File(outPath+".sutt").delete();
-		new File(outPath+".TextGrid").delete();
 		return result;
 	}
 
+	/**
+	 * Run one synth process per request, without waiting for it: the
+	 * processes are watched by the ProcessWatcher, and their output is read
+	 * by the OutputReaders once they have exited.
+	 */
+	@Override
+	public CompletableFuture<SynthesisResult> synthesizeAsync(String sentence,
+	        XdmNode xmlSentence, Voice voice, TTSResource threadResources,
+	        List<String> expectedMarks, final AudioBufferAllocator bufferAllocator,
+	        boolean retry) {
+		final ThreadResource tr = (ThreadResource) threadResources;
+		CompletableFuture<SynthesisResult> result = new CompletableFuture<SynthesisResult>();
+		ScratchAudioFile file = tr.spareFiles.poll();
+		try {
+			if (file == null) {
+				file = new ScratchAudioFile("dp2_qfrency_");
+				synchronized (tr.allFiles) {
+					tr.allFiles.add(file);
+				}
+			}
+			file.reset();
+			final Process proc = Runtime.getRuntime().exec(command(sentence, voice, file));
+			tr.running.add(proc);
+			final ScratchAudioFile outFile = file;
+			return ProcessWatcher.onExit(proc).handleAsync((exitValue, e) -> {
+				tr.running.remove(proc);
+				try {
+					if (e != null)
+						throw new SynthesisException(e);
+					if (exitValue != 0)
+						throw new SynthesisException("synth exited with code " + exitValue);
+					Collection<AudioBuffer> audio = outFile.read(bufferAllocator);
+					if (mAudioFormat == null)
+						mAudioFormat = outFile.getFormat();
+					return new SynthesisResult(audio, new ArrayList<Mark>());
+				} catch (MemoryException | SynthesisException ex) {
+					throw new CompletionException(ex);
+				} catch (Exception ex) {
+					throw new CompletionException(new SynthesisException(ex));
+				} finally {
+					tr.spareFiles.add(outFile);
+				}
+			}, OutputReaders);
+		} catch (IOException e) {
+			if (file != null)
+				tr.spareFiles.add(file);
+			result.completeExceptionally(new SynthesisException(e));
+			return result;
+		}
+	}
+
+	@Override
+	public int maxConcurrentRequests() {
+		return mConcurrency;
+	}
+
+	/**
+	 * Destroy the synth processes of @param resource, which are then
+	 * reported as failed.
+	 */
+	@Override
+	public void interruptCurrentWork(TTSResource resource) {
+		for (Process proc : ((ThreadResource) resource).running)
+			proc.destroy();
+	}
+
 	public int reservedThreadNum() {
 		return 1;
 	}
 
+	private String[] command(String sentence, Voice voice, ScratchAudioFile outFile) {
+		String [] lCmd = new String[7];
+		lCmd[0]=mQfrencyPath;
+		lCmd[1]="-a";
+		lCmd[2]=mHostAddress;
+		lCmd[3]="-s";
+		lCmd[4]=outFile.getFile().getPath();
+		lCmd[5]=voice.name;
+		lCmd[6]="\'"+stripSSML(sentence)+"\'";
+		return lCmd;
+	}
+
 	
 	@Override
 	public AudioFormat getAudioOutputFormat() {
@@ -163,7 +247,32 @@ public class QfrencyEngine extends TTSEngine {
 	@Override
 	public TTSResource allocateThreadResources() throws SynthesisException,
 														InterruptedException {
-		return new TTSResource();
+		ThreadResource tr = new ThreadResource();
+		try {
+			tr.outFile = new ScratchAudioFile("dp2_qfrency_");
+		} catch (IOException e) {
+			throw new SynthesisException(e);
+		}
+		return tr;
+	}
+
+	@Override
+	public void releaseThreadResources(TTSResource resource) throws SynthesisException,
+														InterruptedException {
+		ThreadResource tr = (ThreadResource) resource;
+		interruptCurrentWork(tr); //in case requests are still in progress
+		List<ScratchAudioFile> files = new ArrayList<ScratchAudioFile>();
+		files.add(tr.outFile);
+		synchronized (tr.allFiles) {
+			files.addAll(tr.allFiles);
+		}
+		for (ScratchAudioFile outFile : files) {
+			mLogger.info("qfrency: " + outFile.getStatistics());
+			String outPath = outFile.getFile().getPath();
+			outFile.delete();
+			new File(outPath+".sutt").delete();
+			new File(outPath+".TextGrid").delete();
+		}
 	}
 
 	
@@ -36,7 +36,17 @@ public class QfrencyService extends AbstractTTSService {
 			}
 		}
 
-		return new QfrencyEngine(this, qfrencyPath, address, intPriority);
+		String concurrency = params.get("org.daisy.pipeline.tts.qfrency.concurrency");
+		int intConcurrency = 1;
+		if (concurrency != null) {
+			try {
+				intConcurrency = Math.max(1, Integer.valueOf(concurrency));
+			} catch (NumberFormatException e) {
+
+			}
+		}
+
+		return new QfrencyEngine(this, qfrencyPath, address, intPriority, intConcurrency);
 	}
 
 	@Override
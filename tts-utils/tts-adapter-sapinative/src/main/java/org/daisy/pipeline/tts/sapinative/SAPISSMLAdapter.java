@@ -0,0 +1,107 @@
+package org.daisy.pipeline.tts.sapinative;
+
+import net.sf.saxon.s9api.QName;
+
+import org.daisy.pipeline.tts.BasicSSMLAdapter;
+
+/**
+ * Java counterpart of transform-ssml.xsl, which copies the SSML into a speak
+ * element serialized as XML. The output only differs in the namespace
+ * declarations, which are the ones needed by the element and attribute names
+ * rather than copies of the input's, and in the comments, which are dropped.
+ */
+class SAPISSMLAdapter extends BasicSSMLAdapter {
+
+	@Override
+	public String getHeader(String voiceName) {
+		return "<ssml:speak xmlns:ssml=\"" + SsmlNs + "\" version=\"1.0\">";
+	}
+
+	@Override
+	public String getFooter(String voiceName, String endingMark) {
+		String footer = "<ssml:break time=\"250ms\"/>";
+		if (endingMark != null && !endingMark.isEmpty())
+			footer += "<ssml:mark name=\"" + escape(endingMark, true) + "\"/>";
+		return footer + "</ssml:speak>";
+	}
+
+	@Override
+	public QName adaptElement(QName element) {
+		//the speak element is replaced with the one of the header
+		if ("speak".equals(element.getLocalName()))
+			return null;
+		//tokens are not SSML1.0-compliant and not SAPI-compliant
+		if (isSSML(element, "token"))
+			return null;
+		return element;
+	}
+
+	@Override
+	public String adaptText(String text) {
+		return escape(text, false);
+	}
+
+	@Override
+	public QName adaptAttributeName(QName element, QName attr, String value) {
+		//not copied in order to prevent inconsistency with the current voice
+		if ("xml".equals(attr.getPrefix()) && "lang".equals(attr.getLocalName()))
+			return null;
+		return attr;
+	}
+
+	@Override
+	public String adaptAttributeValue(QName element, QName attr, String value) {
+		return escape(value, true);
+	}
+
+	@Override
+	public boolean useEmptyElementTag(QName element) {
+		return true;
+	}
+
+	/**
+	 * Same escaping as Saxon's XML serializer
+	 */
+	private static String escape(String text, boolean inAttribute) {
+		StringBuilder sb = null;
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+			String replacement;
+			switch (c) {
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '\r':
+				replacement = "&#xD;";
+				break;
+			case '"':
+				replacement = inAttribute ? "&#34;" : null;
+				break;
+			case '\n':
+				replacement = inAttribute ? "&#xA;" : null;
+				break;
+			case '\t':
+				replacement = inAttribute ? "&#x9;" : null;
+				break;
+			default:
+				if ((c >= 0x7F && c <= 0x9F) || c == 0x2028)
+					replacement = "&#x" + Integer.toHexString(c) + ";";
+				else
+					replacement = null;
+			}
+			if (replacement != null) {
+				if (sb == null)
+					sb = new StringBuilder(text.substring(0, i));
+				sb.append(replacement);
+			} else if (sb != null)
+				sb.append(c);
+		}
+		return sb == null ? text : sb.toString();
+	}
+}
@@ -6,6 +6,7 @@ import javax.naming.directory.InvalidAttributeValueException;
 import javax.sound.sampled.AudioFormat;
 
 import org.daisy.pipeline.tts.AbstractTTSService;
+import org.daisy.pipeline.tts.SSMLAdapter;
 import org.daisy.pipeline.tts.TTSEngine;
 import org.daisy.pipeline.tts.TTSService;
 
@@ -62,6 +63,11 @@ public class SAPIservice extends AbstractTTSService {
 		return "sapi";
 	}
 
+	@Override
+	public SSMLAdapter newSSMLAdapter() {
+		return new SAPISSMLAdapter();
+	}
+
 	@Override
 	public String getVersion() {
 		return "native";
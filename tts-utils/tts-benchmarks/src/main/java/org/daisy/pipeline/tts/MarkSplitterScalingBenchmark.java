@@ -0,0 +1,64 @@
+package org.daisy.pipeline.tts;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time spent by DefaultSSMLMarkSplitter on marks nested in elements, as in
+ * GenericMarkSplitterTest.splitScaling. The split is linear if the time with
+ * 10000 marks is about 10 times the time with 1000 marks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarkSplitterScalingBenchmark {
+
+	private static final String SsmlNs = "http://www.w3.org/2001/10/synthesis";
+
+	@Param({"1000", "10000"})
+	public int marks;
+
+	private XdmNode mSSML;
+	private SSMLMarkSplitter mSplitter;
+
+	@Setup
+	public void setUp() throws SaxonApiException {
+		Processor proc = new Processor(false);
+		mSplitter = new DefaultSSMLMarkSplitter(proc);
+		StringBuilder sb = new StringBuilder();
+		sb.append("<speak xmlns='" + SsmlNs + "'>");
+		for (int i = 1; i <= marks; ++i) {
+			sb.append("<a xmlns=''><k>text" + i + "</k>");
+			sb.append("<mark xmlns='" + SsmlNs + "' name='mark" + i + "'/></a>");
+		}
+		sb.append("</speak>");
+		mSSML = proc.newDocumentBuilder().build(
+		        new StreamSource(new StringReader(sb.toString())));
+	}
+
+	@Benchmark
+	public Object split() {
+		return mSplitter.split(mSSML);
+	}
+}
@@ -0,0 +1,112 @@
+package org.daisy.pipeline.tts;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.daisy.pipeline.tts.SSMLMarkSplitter.Chunk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Splitting of a sentence whose marks are right under the s element, as
+ * produced by the SSML steps, with the three splitters. The "serialize"
+ * benchmarks include the serialization of the chunks for the TTS engine, as
+ * done by TextToPcmThread when the service has an SSMLAdapter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SplitterBenchmark {
+
+	private static final String SsmlNs = "http://www.w3.org/2001/10/synthesis";
+
+	@Param({"1", "10", "100"})
+	public int marks;
+
+	private XdmNode mSentence;
+	private SSMLMarkSplitter mDefault;
+	private SSMLMarkSplitter mStructured;
+	private SSMLMarkSplitter mSinglePass;
+	private SSMLAdapter mAdapter = new BasicSSMLAdapter();
+
+	@Setup
+	public void setUp() throws SaxonApiException {
+		Processor proc = new Processor(false);
+		mDefault = new DefaultSSMLMarkSplitter(proc);
+		mStructured = new StructuredSSMLSplitter(proc);
+		mSinglePass = new SinglePassSSMLSplitter(proc);
+		StringBuilder sb = new StringBuilder();
+		sb.append("<speak xmlns='" + SsmlNs + "'><s xml:lang='en'>");
+		for (int i = 0; i < marks; ++i) {
+			sb.append("<token>word" + i + "</token> <say-as interpret-as='characters'>w" + i
+			        + "</say-as>");
+			sb.append("<mark name='m" + i + "'/>");
+		}
+		sb.append("<token>last</token></s></speak>");
+		XdmNode doc = proc.newDocumentBuilder().build(
+		        new StreamSource(new StringReader(sb.toString())));
+		XdmNode speak = (XdmNode) doc.axisIterator(Axis.CHILD).next();
+		mSentence = (XdmNode) speak.axisIterator(Axis.CHILD).next();
+	}
+
+	@Benchmark
+	public Object splitDefault() {
+		return mDefault.split(mSentence);
+	}
+
+	@Benchmark
+	public Object splitStructured() {
+		return mStructured.split(mSentence);
+	}
+
+	@Benchmark
+	public Object splitSinglePass() {
+		return mSinglePass.split(mSentence);
+	}
+
+	@Benchmark
+	public void serializeDefault(Blackhole bh) {
+		serialize(mDefault, bh);
+	}
+
+	@Benchmark
+	public void serializeStructured(Blackhole bh) {
+		serialize(mStructured, bh);
+	}
+
+	@Benchmark
+	public void serializeSinglePassTrees(Blackhole bh) {
+		serialize(mSinglePass, bh);
+	}
+
+	@Benchmark
+	public void serializeSinglePass(Blackhole bh) {
+		for (Chunk chunk : mSinglePass.split(mSentence, "voice", mAdapter, null))
+			bh.consume(chunk.serialized());
+	}
+
+	private void serialize(SSMLMarkSplitter splitter, Blackhole bh) {
+		for (Chunk chunk : splitter.split(mSentence))
+			bh.consume(SSMLUtil.toString(chunk.ssml(), "voice", mAdapter, null));
+	}
+}
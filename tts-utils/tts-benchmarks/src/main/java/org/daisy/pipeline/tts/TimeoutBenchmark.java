@@ -0,0 +1,92 @@
+package org.daisy.pipeline.tts;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of guarding a TTS or encoding call with a timeout that never expires,
+ * for TTSTimeout (one watchdog thread per worker) and for TTSTimeoutWheel
+ * (one shared thread). The "lifecycle" benchmarks include the creation and
+ * the closing of the timeout, as done once per worker thread.
+ *
+ * Run with -t to change the number of concurrent workers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class TimeoutBenchmark {
+
+	@State(Scope.Thread)
+	public static class Watchdog {
+		TTSTimeout timeout;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			timeout = new TTSTimeout();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			timeout.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Wheel {
+		TTSTimeoutWheel.Timeout timeout;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			timeout = TTSTimeoutWheel.newTimeout();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			timeout.close();
+		}
+	}
+
+	@Benchmark
+	public void watchdogEnableDisable(Watchdog state) throws InterruptedException {
+		state.timeout.enableForCurrentThread(60);
+		state.timeout.disable();
+	}
+
+	@Benchmark
+	public void wheelEnableDisable(Wheel state) throws InterruptedException {
+		state.timeout.enableForCurrentThread(60);
+		state.timeout.disable();
+	}
+
+	@Benchmark
+	public void watchdogLifecycle() throws InterruptedException {
+		TTSTimeout timeout = new TTSTimeout();
+		timeout.enableForCurrentThread(60);
+		timeout.disable();
+		timeout.close();
+	}
+
+	@Benchmark
+	public void wheelLifecycle() throws InterruptedException {
+		TTSTimeoutWheel.Timeout timeout = TTSTimeoutWheel.newTimeout();
+		timeout.enableForCurrentThread(60);
+		timeout.disable();
+		timeout.close();
+	}
+}
@@ -0,0 +1,75 @@
+package org.daisy.pipeline.tts.espeak;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.daisy.common.xslt.ThreadUnsafeXslTransformer;
+import org.daisy.common.xslt.XslTransformCompiler;
+import org.daisy.pipeline.tts.SSMLUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of a sentence for eSpeak, with transform-ssml.xsl as before
+ * and with ESpeakSSMLAdapter. Both give the same string, as checked by
+ * ESpeakSerializerTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+	private static final String SsmlNs = "http://www.w3.org/2001/10/synthesis";
+
+	private static final String Sentence = "<speak xmlns='" + SsmlNs + "' version='1.0'>"
+	        + "<s xml:lang='en' id='s1'><token>Hello</token> <mark name='s1___w2'/>"
+	        + "<token>world</token>, <say-as interpret-as='characters'>ABC</say-as>"
+	        + " <break time='3ms'/><prosody rate='fast'>fast &amp; &lt;loud&gt;</prosody>"
+	        + "<span xmlns=''>not <b>SSML</b></span></s></speak>";
+
+	private XdmNode mSSML;
+	private ThreadUnsafeXslTransformer mTransformer;
+	private Map<String, Object> mParams = new TreeMap<String, Object>();
+	private ESpeakSSMLAdapter mAdapter = new ESpeakSSMLAdapter();
+
+	@Setup
+	public void setUp() throws SaxonApiException {
+		Processor proc = new Processor(false);
+		mSSML = proc.newDocumentBuilder().build(new StreamSource(new StringReader(Sentence)));
+		InputStream is = ESpeakSSMLAdapter.class.getResourceAsStream("/transform-ssml.xsl");
+		mTransformer = new XslTransformCompiler(proc.getUnderlyingConfiguration())
+		        .compileStylesheet(is).newTransformer();
+		mParams.put("voice", "john");
+		mParams.put("ending-mark", "emark");
+	}
+
+	@Benchmark
+	public String xslt() throws SaxonApiException {
+		return mTransformer.transformToString(mSSML, mParams);
+	}
+
+	@Benchmark
+	public String java() {
+		return SSMLUtil.toString(mSSML, "john", mAdapter, "emark");
+	}
+}
@@ -0,0 +1,102 @@
+package org.daisy.pipeline.tts;
+
+import java.util.ArrayDeque;
+
+/**
+ * Free-lists of byte arrays whose lengths are powers of two. Requests are
+ * rounded up to the next power of two so that the arrays released by the
+ * encoders can be handed out again to the TTS processors, rather than
+ * allocating a new array for every chunk of audio.
+ *
+ * The total size of the arrays kept in the free-lists is bounded. Arrays that
+ * don't fit, or whose length is not one of the classes (e.g. after a call to
+ * SoundUtil.realloc()), are left to the garbage collector.
+ */
+class AudioBufferPool {
+	private static final int MinClass = 10; //1KB
+	private static final int MaxClass = 24; //16MB
+
+	private ArrayDeque<byte[]>[] mFreeLists;
+	private long mMaxSize;
+	private long mFreeSize;
+	private long mHits;
+	private long mMisses;
+
+	@SuppressWarnings("unchecked")
+	AudioBufferPool(long maxSize) {
+		mMaxSize = maxSize;
+		mFreeLists = new ArrayDeque[MaxClass + 1];
+		for (int i = MinClass; i <= MaxClass; ++i)
+			mFreeLists[i] = new ArrayDeque<byte[]>();
+	}
+
+	/**
+	 * @return the length of the arrays returned by acquire(@param size)
+	 */
+	static int capacityFor(int size) {
+		if (size > (1 << MaxClass))
+			return size;
+		return 1 << classOf(size);
+	}
+
+	/**
+	 * @return an array of capacityFor(@param size) bytes. Its content is
+	 *         undefined.
+	 */
+	byte[] acquire(int size) {
+		if (size > (1 << MaxClass)) {
+			synchronized (this) {
+				++mMisses;
+			}
+			return new byte[size];
+		}
+		int c = classOf(size);
+		synchronized (this) {
+			byte[] data = mFreeLists[c].pollFirst();
+			if (data != null) {
+				++mHits;
+				mFreeSize -= data.length;
+				return data;
+			}
+			++mMisses;
+		}
+		return new byte[1 << c];
+	}
+
+	void release(byte[] data) {
+		int c = Integer.numberOfTrailingZeros(data.length);
+		if (data.length != (1 << c) || c < MinClass || c > MaxClass)
+			return;
+		synchronized (this) {
+			if (mFreeSize + data.length <= mMaxSize) {
+				mFreeLists[c].addFirst(data); //LIFO keeps the hottest arrays in the cache
+				mFreeSize += data.length;
+			}
+		}
+	}
+
+	synchronized long getHits() {
+		return mHits;
+	}
+
+	synchronized long getMisses() {
+		return mMisses;
+	}
+
+	synchronized long getFreeSize() {
+		return mFreeSize;
+	}
+
+	synchronized String getStatistics() {
+		long total = mHits + mMisses;
+		return "audio buffer pool: " + mHits + " hit(s), " + mMisses + " miss(es)"
+		        + (total > 0 ? " (hit rate: " + (100 * mHits / total) + "%)" : "")
+		        + ", occupancy: " + mFreeSize / 1048576 + "MB/" + mMaxSize / 1048576 + "MB";
+	}
+
+	private static int classOf(int size) {
+		if (size <= (1 << MinClass))
+			return MinClass;
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+}
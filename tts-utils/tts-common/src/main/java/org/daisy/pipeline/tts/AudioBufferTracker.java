@@ -14,6 +14,11 @@ import org.slf4j.LoggerFactory;
  * on blocking requests. The latter can afford to block on the requests, since
  * if the space is full, it will be consumed by the encoding threads.
  * 
+ * If org.daisy.pipeline.tts.bufferpool.maxsize is set, the byte arrays are
+ * taken from an AudioBufferPool and are given back to it once encoded (see
+ * recycle()). The footprint of a buffer is then the length of its array, which
+ * can be bigger than the requested size.
+ * 
  */
 public class AudioBufferTracker implements AudioBufferAllocator {
 	private Logger ServerLogger = LoggerFactory.getLogger(AudioBufferTracker.class);
@@ -41,15 +46,23 @@ public class AudioBufferTracker implements AudioBufferAllocator {
 
 		mTTSCounter = new Semaphore(mSpaceForTTS, false);
 		mEncodingCounter = new Semaphore(mSpaceForEncoding, false);
+
+		String poolSizeProp = System.getProperty("org.daisy.pipeline.tts.bufferpool.maxsize");
+		if (poolSizeProp != null) {
+			long poolSize = Long.valueOf(poolSizeProp) * 1048576;
+			if (poolSize > 0)
+				mPool = new AudioBufferPool(poolSize);
+		}
 	}
 
 	@Override
 	public AudioBuffer allocateBuffer(int size) throws MemoryException {
-		if (!mTTSCounter.tryAcquire(size))
+		int footprint = (mPool == null ? size : AudioBufferPool.capacityFor(size));
+		if (!mTTSCounter.tryAcquire(footprint))
 			throw new MemoryException(size);
 
 		AllocatableBuffer res = new AllocatableBuffer();
-		res.data = new byte[size];
+		res.data = (mPool == null ? new byte[size] : mPool.acquire(size));
 		res.size = size;
 
 		return res;
@@ -62,6 +75,41 @@ public class AudioBufferTracker implements AudioBufferAllocator {
 	@Override
 	public void releaseBuffer(AudioBuffer b) {
 		releaseTTSMemory(getFootPrint(b));
+		if (mPool != null)
+			mPool.release(b.data);
+	}
+
+	/**
+	 * Give the arrays of buffers that are no longer used back to the pool, if
+	 * any. It must be called by the encoders after releaseEncodersMemory(),
+	 * once the buffers have been encoded.
+	 */
+	public void recycle(Iterable<AudioBuffer> buffers) {
+		if (mPool == null)
+			return;
+		for (AudioBuffer b : buffers) {
+			mPool.release(b.data);
+			b.data = null;
+		}
+	}
+
+	/**
+	 * @return an array of at least @param size bytes, taken from the pool if
+	 *         any, for copying data that are already accounted in the encoding
+	 *         space back to the heap (e.g. off-heap or spilled PCM). It must
+	 *         be given back with recycle() once encoded.
+	 */
+	public byte[] acquireArray(int size) {
+		return (mPool == null ? new byte[size] : mPool.acquire(size));
+	}
+
+	/**
+	 * @return null if the buffers are not pooled
+	 */
+	public String getPoolStatistics() {
+		if (mPool == null)
+			return null;
+		return mPool.getStatistics();
 	}
 
 	/**
@@ -74,6 +122,18 @@ public class AudioBufferTracker implements AudioBufferAllocator {
 		mTTSCounter.release(ttsMemSize);
 	}
 
+	/**
+	 * Same as transferToEncoding() but returns false instead of blocking if
+	 * there is not enough space in the encoding area. Nothing is transferred
+	 * in that case.
+	 */
+	public boolean tryTransferToEncoding(int ttsMemSize, int encodingMemSize) {
+		if (!mEncodingCounter.tryAcquire(Math.min(encodingMemSize, mPaddedEncodingSpace)))
+			return false;
+		mTTSCounter.release(ttsMemSize);
+		return true;
+	}
+
 	public int getSpaceForTTS() {
 		return mSpaceForTTS;
 	}
@@ -124,5 +184,6 @@ public class AudioBufferTracker implements AudioBufferAllocator {
 	private int mSpaceForEncoding;
 	private Semaphore mTTSCounter;
 	private Semaphore mEncodingCounter;
+	private AudioBufferPool mPool; //null if the buffers are not pooled
 
 }
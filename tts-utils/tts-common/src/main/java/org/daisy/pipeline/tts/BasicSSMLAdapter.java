@@ -0,0 +1,62 @@
+package org.daisy.pipeline.tts;
+
+import net.sf.saxon.s9api.QName;
+
+/**
+ * Serializes the SSML the same way as the "serialize" mode of the XSLTs of the
+ * TTS engines that take the SSML as plain text: the SSML elements are written
+ * with their local names and attributes, without namespaces nor escaping, while
+ * the tokens and the non-SSML elements are replaced with their content. There
+ * is no header nor footer.
+ */
+public class BasicSSMLAdapter implements SSMLAdapter {
+
+	protected static final String SsmlNs = "http://www.w3.org/2001/10/synthesis";
+
+	@Override
+	public String getHeader(String voiceName) {
+		return "";
+	}
+
+	@Override
+	public String getFooter(String voiceName, String endingMark) {
+		return "";
+	}
+
+	@Override
+	public QName adaptElement(QName element) {
+		if (!SsmlNs.equals(element.getNamespaceURI()) || "token".equals(element.getLocalName()))
+			return null;
+		return new QName(element.getLocalName());
+	}
+
+	@Override
+	public String adaptText(String text) {
+		return text;
+	}
+
+	@Override
+	public QName adaptAttributeName(QName element, QName attr, String value) {
+		return new QName(attr.getLocalName());
+	}
+
+	@Override
+	public String adaptAttributeValue(QName element, QName attr, String value) {
+		return value;
+	}
+
+	@Override
+	public String getContentPrefix(QName element) {
+		return "";
+	}
+
+	@Override
+	public boolean useEmptyElementTag(QName element) {
+		return false;
+	}
+
+	protected static boolean isSSML(QName element, String localName) {
+		return SsmlNs.equals(element.getNamespaceURI())
+		        && localName.equals(element.getLocalName());
+	}
+}
@@ -1,11 +1,15 @@
 package org.daisy.pipeline.tts;
 
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.NamespaceReducer;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.expr.parser.ExplicitLocation;
+import net.sf.saxon.om.NameOfNode;
+import net.sf.saxon.om.NamespaceBinding;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.s9api.Axis;
 import net.sf.saxon.s9api.Processor;
@@ -13,103 +17,144 @@ import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
 import net.sf.saxon.s9api.XdmSequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Untyped;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-import com.xmlcalabash.util.TreeWriter;
-
+/**
+ * Splits the SSML at marks located anywhere in the tree. The chunk of a mark
+ * contains all the nodes that follow the mark and precede the next one, along
+ * with the ancestors of these nodes.
+ *
+ * The SSML is traversed only once. Since the marks are met in document order,
+ * the nodes of a chunk are all visited before the nodes of the next chunk,
+ * except for their ancestors, which can belong to an interval of consecutive
+ * chunks. Thus the chunks are built one after the other: an ancestor is opened
+ * in a chunk the first time a descendant of it is written into that chunk, and
+ * it is closed when the chunk is completed, i.e. when the next mark is met.
+ */
 public class DefaultSSMLMarkSplitter implements SSMLMarkSplitter {
 
 	private static Logger ServerLogger = LoggerFactory
 	        .getLogger(DefaultSSMLMarkSplitter.class);
 
-	private Processor mProc;
+	private Configuration mConfig;
 
 	public DefaultSSMLMarkSplitter(Processor proc) {
-		mProc = proc;
+		mConfig = proc.getUnderlyingConfiguration();
 	}
 
 	@Override
 	public Collection<Chunk> split(XdmNode ssml) {
-		List<String> sortedMarkNames = new ArrayList<String>();
-		Multimap<NodeInfo, String> marksScope = HashMultimap.create();
-		sortedMarkNames.add(null); //null means 'no mark'
-		findMarks(ssml, marksScope, sortedMarkNames);
-
-		Collection<Chunk> chunks = new ArrayList<Chunk>();
-
 		if (ssml.getNodeKind() == XdmNodeKind.DOCUMENT) {
 			XdmSequenceIterator iter = ssml.axisIterator(Axis.CHILD);
 			while (ssml.getNodeKind() != XdmNodeKind.ELEMENT && iter.hasNext()) {
 				ssml = (XdmNode) iter.next();
 			}
 		}
-		URI docURI = null;
+
+		ChunkWriter writer = new ChunkWriter();
 		try {
-			docURI = new URI("http://tmp");
-		} catch (URISyntaxException e) {
+			writer.startChunk(null); //null means 'no mark'
+			if (ssml.getNodeKind() == XdmNodeKind.ELEMENT)
+				writer.write(ssml);
+			writer.endChunk();
+		} catch (XPathException e) {
+			//not expected since the nodes are copied from a valid tree
+			ServerLogger.error("cannot split the SSML: " + e.getMessage());
+			throw new IllegalStateException(e);
 		}
 
-		for (String markName : sortedMarkNames) {
-			TreeWriter tw = new TreeWriter(mProc);
-			tw.startDocument(docURI);
-			tw.startContent();
-			toXML(ssml, tw, markName, marksScope);
-			tw.endDocument();
-			chunks.add(new Chunk(tw.getResult(), markName));
-		}
+		return writer.chunks;
+	}
 
-		return chunks;
+	/**
+	 * @return the receiver through which the nodes of a chunk are copied into
+	 *         @param builder. Overridden by the tests to count the copies.
+	 */
+	Receiver newChunkReceiver(TinyBuilder builder) {
+		return new NamespaceReducer(builder);
 	}
 
-	private static void findMarks(XdmNode ssml, Multimap<NodeInfo, String> marksScope,
-	        List<String> sortedMarkNames) {
-		String markName = sortedMarkNames.get(sortedMarkNames.size() - 1);
-		marksScope.put(ssml.getUnderlyingNode(), markName);
-		XdmSequenceIterator iter = ssml.axisIterator(Axis.ANCESTOR);
-		while (iter.hasNext()) {
-			XdmNode parent = (XdmNode) iter.next();
-			marksScope.put(parent.getUnderlyingNode(), markName);
-		}
-		if (ssml.getNodeName() != null
-		        && markNode.getLocalName().equals(ssml.getNodeName().getLocalName())) {
-			sortedMarkNames.add(ssml.getAttributeValue(markNameAttr));
-		}
-		iter = ssml.axisIterator(Axis.CHILD);
-		while (iter.hasNext()) {
-			findMarks((XdmNode) iter.next(), marksScope, sortedMarkNames);
+	private class ChunkWriter {
+		Collection<Chunk> chunks = new ArrayList<Chunk>();
+		String leftMark;
+		TinyBuilder builder;
+		Receiver out;
+		List<NodeInfo> ancestors = new ArrayList<NodeInfo>(); //of the current node
+		int opened; //number of ancestors opened in the current chunk
+
+		void startChunk(String mark) throws XPathException {
+			leftMark = mark;
+			builder = new TinyBuilder(mConfig.makePipelineConfiguration());
+			builder.setSystemId(DocURI);
+			out = newChunkReceiver(builder);
+			out.open();
+			out.startDocument(0);
+			opened = 0;
 		}
-	}
 
-	private static void toXML(XdmNode ssml, TreeWriter tw, String markName,
-	        Multimap<NodeInfo, String> marksScope) {
-		if (!marksScope.containsEntry(ssml.getUnderlyingNode(), markName)) {
-			return;
+		void endChunk() throws XPathException {
+			for (; opened > 0; --opened)
+				out.endElement();
+			out.endDocument();
+			out.close();
+			chunks.add(new Chunk(new XdmNode(builder.getCurrentRoot()), leftMark));
 		}
-		if (ssml.getNodeKind() == XdmNodeKind.TEXT) {
-			tw.addText(ssml.getStringValue());
-		} else if (ssml.getNodeKind() == XdmNodeKind.ELEMENT
-		        && !markNode.getLocalName().equals(ssml.getNodeName().getLocalName())) {
-			QName elementName = ssml.getNodeName();
-			if (elementName != null) {
-				tw.addStartElement(ssml);
-				tw.addAttributes(ssml);
-			}
 
-			XdmSequenceIterator iter = ssml.axisIterator(Axis.CHILD);
-			while (iter.hasNext()) {
-				toXML((XdmNode) iter.next(), tw, markName, marksScope);
+		void write(XdmNode node) throws XPathException {
+			//whatever the node, its ancestors belong to the current chunk
+			openAncestors();
+			if (node.getNodeKind() == XdmNodeKind.TEXT) {
+				out.characters(node.getStringValue(), ExplicitLocation.UNKNOWN_LOCATION, 0);
+			} else if (node.getNodeKind() == XdmNodeKind.ELEMENT) {
+				if (markNode.getLocalName().equals(node.getNodeName().getLocalName())) {
+					endChunk();
+					startChunk(node.getAttributeValue(markNameAttr));
+					return;
+				}
+				ancestors.add(node.getUnderlyingNode());
+				openAncestors();
+				XdmSequenceIterator iter = node.axisIterator(Axis.CHILD);
+				while (iter.hasNext()) {
+					write((XdmNode) iter.next());
+				}
+				//the element is not opened in the current chunk if a mark has been
+				//met after its last non-mark descendant
+				if (opened == ancestors.size()) {
+					out.endElement();
+					--opened;
+				}
+				ancestors.remove(ancestors.size() - 1);
 			}
+		}
 
-			if (elementName != null) {
-				tw.addEndElement();
+		private void openAncestors() throws XPathException {
+			for (; opened < ancestors.size(); ++opened) {
+				NodeInfo element = ancestors.get(opened);
+				out.startElement(NameOfNode.makeName(element), Untyped.getInstance(),
+				        ExplicitLocation.UNKNOWN_LOCATION, 0);
+				for (NamespaceBinding ns : element.getDeclaredNamespaces(null)) {
+					if (ns == null)
+						break; //end of the declarations
+					out.namespace(ns, 0);
+				}
+				XdmSequenceIterator attrs = new XdmNode(element).axisIterator(Axis.ATTRIBUTE);
+				while (attrs.hasNext()) {
+					NodeInfo attr = ((XdmNode) attrs.next()).getUnderlyingNode();
+					out.attribute(NameOfNode.makeName(attr), BuiltInAtomicType.UNTYPED_ATOMIC,
+					        attr.getStringValueCS(), ExplicitLocation.UNKNOWN_LOCATION, 0);
+				}
+				out.startContent();
 			}
 		}
 	}
 
 	private static final QName markNode = new QName("mark");
 	private static final QName markNameAttr = new QName("name");
+	private static final String DocURI = "http://tmp";
 }
@@ -0,0 +1,243 @@
+package org.daisy.pipeline.tts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load balancer that sends the new resources to the host with the least load,
+ * the load being the number of resources bound to the host plus the number of
+ * requests in progress, weighted by the moving averages of the host's latency
+ * and error rate. The hosts whose latency has not been measured yet are tried
+ * first.
+ *
+ * Every host has a circuit breaker. After FailureThreshold consecutive
+ * failures, the circuit opens: selectHost() stops returning the host and
+ * isAvailable() returns false so that its resources can be moved elsewhere.
+ * Once the cool-down period has elapsed, the host is returned once as a probe,
+ * either by selectHost() or by rebalance() so that it doesn't have to wait for
+ * a new resource. If the probe succeeds, the circuit closes. Otherwise it opens
+ * again with a cool-down twice as long, up to MaxCooldown.
+ *
+ * rebalance() also moves the resources of a host to a host whose load would be
+ * significantly lower, e.g. once a recovered host has caught up.
+ *
+ * All the methods are thread-safe.
+ */
+public class LeastLoadedLoadBalancer implements LoadBalancer {
+
+	private static final double Alpha = 0.2; //weight of the last measure in the moving averages
+	private static final int FailureThreshold = 3;
+	private static final long DefaultCooldown = 10000; //in milliseconds
+	private static final long MaxCooldown = 300000; //in milliseconds
+	private static final double RebalanceMargin = 0.75; //prevents resources from moving back and forth
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static class HostStats {
+		int resources;
+		int inFlight;
+		double latency = -1; //in milliseconds, -1 until the first successful request
+		double errorRate;
+		int consecutiveFailures;
+		State state = State.CLOSED;
+		long openedAt; //in milliseconds
+		long cooldown;
+		long requests;
+		long failures;
+	}
+
+	private Host mMaster;
+	private List<Host> mHosts;
+	private Map<Host, HostStats> mStats;
+	private long mInitialCooldown;
+
+	/**
+	 * @param hostlist is a list of address:port separated by commas, spaces or
+	 *            semicolons. The first host will be considered as the master
+	 *            host.
+	 */
+	public LeastLoadedLoadBalancer(String hostlist) {
+		this(hostlist, DefaultCooldown);
+	}
+
+	LeastLoadedLoadBalancer(String hostlist, long cooldownMillis) {
+		mInitialCooldown = cooldownMillis;
+		mHosts = RoundRobinLoadBalancer.parseHosts(hostlist);
+		mMaster = mHosts.get(0);
+		mStats = new HashMap<Host, HostStats>();
+		for (Host h : mHosts) {
+			HostStats s = new HostStats();
+			s.cooldown = mInitialCooldown;
+			mStats.put(h, s);
+		}
+	}
+
+	@Override
+	public synchronized Host selectHost() {
+		if (mHosts.isEmpty())
+			throw new IllegalStateException("all the hosts have been discarded");
+
+		long now = System.currentTimeMillis();
+		Host best = null;
+		double bestScore = Double.MAX_VALUE;
+		Host leastRecentlyOpened = null;
+		for (Host h : mHosts) {
+			HostStats s = mStats.get(h);
+			if (s.state == State.OPEN && now - s.openedAt >= s.cooldown) {
+				//probe the host with the next resource
+				s.state = State.HALF_OPEN;
+				++s.resources;
+				return h;
+			}
+			if (s.state == State.CLOSED) {
+				double score = (s.resources + s.inFlight + 1) * weight(s);
+				if (score < bestScore) {
+					best = h;
+					bestScore = score;
+				}
+			} else if (leastRecentlyOpened == null
+			        || s.openedAt < mStats.get(leastRecentlyOpened).openedAt) {
+				leastRecentlyOpened = h;
+			}
+		}
+		if (best == null)
+			best = leastRecentlyOpened; //every host is failing: no better choice
+		++mStats.get(best).resources;
+		return best;
+	}
+
+	@Override
+	public synchronized Host rebalance(Host h) {
+		HostStats current = mStats.get(h);
+		if (current == null || current.state != State.CLOSED)
+			return null; //failing hosts are handled with isAvailable(), probes stay
+		long now = System.currentTimeMillis();
+		Host best = null;
+		double bestScore = RebalanceMargin * (current.resources + current.inFlight)
+		        * weight(current);
+		for (Host other : mHosts) {
+			HostStats s = mStats.get(other);
+			if (s.state == State.OPEN && now - s.openedAt >= s.cooldown) {
+				s.state = State.HALF_OPEN;
+				best = other;
+				break;
+			}
+			if (s.state == State.CLOSED && other != h) {
+				double score = (s.resources + s.inFlight + 1) * weight(s);
+				if (score < bestScore) {
+					best = other;
+					bestScore = score;
+				}
+			}
+		}
+		if (best == null)
+			return null;
+		--current.resources;
+		++mStats.get(best).resources;
+		return best;
+	}
+
+	@Override
+	public synchronized void release(Host h) {
+		HostStats s = mStats.get(h);
+		if (s == null || s.resources == 0)
+			return;
+		--s.resources;
+		if (s.state == State.HALF_OPEN && s.resources == 0) {
+			//the probe has been released before sending any request
+			s.state = State.OPEN;
+			s.openedAt = System.currentTimeMillis();
+		}
+	}
+
+	@Override
+	public synchronized void requestStarted(Host h) {
+		HostStats s = mStats.get(h);
+		if (s != null)
+			++s.inFlight;
+	}
+
+	@Override
+	public synchronized void requestFinished(Host h, long durationNanos, boolean success) {
+		HostStats s = mStats.get(h);
+		if (s == null)
+			return; //discarded in the meantime
+		if (s.inFlight > 0)
+			--s.inFlight;
+		++s.requests;
+		s.errorRate = (1 - Alpha) * s.errorRate + (success ? 0 : Alpha);
+		if (success) {
+			double ms = durationNanos / 1000000.0;
+			s.latency = (s.latency < 0 ? ms : (1 - Alpha) * s.latency + Alpha * ms);
+			s.consecutiveFailures = 0;
+			if (s.state == State.HALF_OPEN) {
+				s.state = State.CLOSED;
+				s.cooldown = mInitialCooldown;
+			}
+		} else {
+			++s.failures;
+			++s.consecutiveFailures;
+			if (s.state == State.HALF_OPEN) {
+				s.state = State.OPEN;
+				s.openedAt = System.currentTimeMillis();
+				s.cooldown = Math.min(MaxCooldown, 2 * s.cooldown);
+			} else if (s.state == State.CLOSED && s.consecutiveFailures >= FailureThreshold) {
+				s.state = State.OPEN;
+				s.openedAt = System.currentTimeMillis();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void requestAborted(Host h) {
+		HostStats s = mStats.get(h);
+		if (s != null && s.inFlight > 0)
+			--s.inFlight;
+	}
+
+	@Override
+	public synchronized boolean isAvailable(Host h) {
+		HostStats s = mStats.get(h);
+		return s != null && s.state != State.OPEN;
+	}
+
+	@Override
+	public synchronized Collection<Host> getAllHosts() {
+		return new ArrayList<Host>(mHosts);
+	}
+
+	@Override
+	public synchronized Host getMaster() {
+		return mHosts.isEmpty() ? mMaster : mHosts.get(0);
+	}
+
+	@Override
+	public synchronized void discard(Host h) {
+		mHosts.remove(h);
+		mStats.remove(h);
+	}
+
+	private static double weight(HostStats s) {
+		return (s.latency < 0 ? 1 : s.latency) * (1 + 4 * s.errorRate);
+	}
+
+	public synchronized String getStatistics() {
+		StringBuilder sb = new StringBuilder();
+		for (Host h : mHosts) {
+			HostStats s = mStats.get(h);
+			if (sb.length() > 0)
+				sb.append("; ");
+			sb.append(h).append(": ").append(s.state.name().toLowerCase()).append(", ")
+			        .append(s.resources).append(" resource(s), ").append(s.requests)
+			        .append(" request(s), ").append(s.failures).append(" failure(s)");
+			if (s.latency >= 0)
+				sb.append(", latency: ").append((int) s.latency).append("ms");
+		}
+		return sb.toString();
+	}
+}
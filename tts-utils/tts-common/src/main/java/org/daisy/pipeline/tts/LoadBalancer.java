@@ -43,4 +43,57 @@ public interface LoadBalancer {
 	 * return @param h. Must not be called from different threads.
 	 */
 	void discard(Host h);
+
+	/**
+	 * Give back a host returned by selectHost() once the resource using it has
+	 * been released. Can be called from different threads.
+	 */
+	default void release(Host h) {
+	}
+
+	/**
+	 * Notify the load balancer that a request is about to be sent to @param h.
+	 * Must be followed by requestFinished() or requestAborted(). Can be called
+	 * from different threads.
+	 */
+	default void requestStarted(Host h) {
+	}
+
+	/**
+	 * @param durationNanos is the time spent on the request
+	 * @param success is false if the host failed to process the request
+	 */
+	default void requestFinished(Host h, long durationNanos, boolean success) {
+	}
+
+	/**
+	 * Notify the load balancer that a request has ended for a reason that
+	 * tells nothing about the health of @param h, e.g. the client ran out of
+	 * memory.
+	 */
+	default void requestAborted(Host h) {
+	}
+
+	/**
+	 * Can be called from different threads.
+	 * 
+	 * @return false if the resources using @param h should be moved to another
+	 *         host, e.g. because it is failing.
+	 */
+	default boolean isAvailable(Host h) {
+		return true;
+	}
+
+	/**
+	 * Can be called from different threads, e.g. before every request.
+	 * 
+	 * @return the host to which a resource using @param h should be moved,
+	 *         e.g. a host that has recovered, or null if the resource should
+	 *         stay on @param h. If not null, @param h has been given back as
+	 *         with release() and the returned host must be released like the
+	 *         hosts returned by selectHost().
+	 */
+	default Host rebalance(Host h) {
+		return null;
+	}
 }
@@ -0,0 +1,90 @@
+package org.daisy.pipeline.tts;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Notifies the end of external processes, e.g. TTS programs, without blocking
+ * a thread per process. A single daemon thread polls the processes being
+ * watched every PollMillis milliseconds, and sleeps when there is none.
+ *
+ * The futures are completed by the watching thread, so the actions chained to
+ * them must be short. Blocking work, such as reading the audio file written by
+ * the process, must be chained with an executor (e.g. handleAsync()) so as not
+ * to serialize the processes' outputs and delay the other notifications.
+ */
+public class ProcessWatcher {
+
+	private static final long PollMillis = 5;
+
+	private static final Map<Process, CompletableFuture<Integer>> Watched = new LinkedHashMap<Process, CompletableFuture<Integer>>();
+	private static Thread Watcher; //started on the first call to onExit()
+
+	/**
+	 * @return a future completed with the exit value of @param process once it
+	 *         has terminated
+	 */
+	public static CompletableFuture<Integer> onExit(Process process) {
+		CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+		synchronized (Watched) {
+			Watched.put(process, result);
+			if (Watcher == null) {
+				Watcher = new Thread("process-watcher") {
+					@Override
+					public void run() {
+						watch();
+					}
+				};
+				Watcher.setDaemon(true);
+				Watcher.start();
+			}
+			Watched.notify();
+		}
+		return result;
+	}
+
+	private static void watch() {
+		List<Process> exited = new ArrayList<Process>();
+		List<CompletableFuture<Integer>> toComplete = new ArrayList<CompletableFuture<Integer>>();
+		while (true) {
+			synchronized (Watched) {
+				while (Watched.isEmpty()) {
+					try {
+						Watched.wait();
+					} catch (InterruptedException e) {
+						//the thread is a daemon: it is never interrupted on purpose
+					}
+				}
+				Iterator<Map.Entry<Process, CompletableFuture<Integer>>> it = Watched
+				        .entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<Process, CompletableFuture<Integer>> e = it.next();
+					if (!e.getKey().isAlive()) {
+						exited.add(e.getKey());
+						toComplete.add(e.getValue());
+						it.remove();
+					}
+				}
+			}
+			//complete the futures outside of the lock since it runs the dependent actions
+			for (int i = 0; i < exited.size(); ++i) {
+				try {
+					toComplete.get(i).complete(exited.get(i).exitValue());
+				} catch (Throwable t) {
+					toComplete.get(i).completeExceptionally(t);
+				}
+			}
+			exited.clear();
+			toComplete.clear();
+			try {
+				Thread.sleep(PollMillis);
+			} catch (InterruptedException e) {
+				//same as above
+			}
+		}
+	}
+}
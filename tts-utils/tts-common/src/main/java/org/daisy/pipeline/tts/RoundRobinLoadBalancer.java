@@ -3,6 +3,7 @@ package org.daisy.pipeline.tts;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class RoundRobinLoadBalancer implements LoadBalancer {
 	private int mIndex = 0;
@@ -18,8 +19,16 @@ public class RoundRobinLoadBalancer implements LoadBalancer {
 	 */
 	public RoundRobinLoadBalancer(String hostlist, Object syncPoint) {
 		mSyncPoint = syncPoint;
+		mHosts = new CopyOnWriteArrayList<Host>(parseHosts(hostlist));
+	}
+
+	/**
+	 * @param hostlist is a list of address:port separated by commas, spaces or
+	 *            semicolons
+	 */
+	static List<Host> parseHosts(String hostlist) {
 		String[] parts = hostlist.split("[ ,;\t\n]+");
-		mHosts = new ArrayList<Host>();
+		List<Host> hosts = new ArrayList<Host>();
 
 		for (int i = 0; i < parts.length; ++i) {
 			try {
@@ -27,28 +36,30 @@ public class RoundRobinLoadBalancer implements LoadBalancer {
 				String[] pair = parts[i].split(":");
 				h.address = pair[0];
 				h.port = Integer.valueOf(pair[1]);
-				mHosts.add(h);
+				hosts.add(h);
 			} catch (Exception e) {
 				throw new IllegalArgumentException("bad format for: '" + parts[i] + "'");
 			}
 		}
-
+		return hosts;
 	}
 
 	@Override
 	public Host selectHost() {
+		//the list may shrink concurrently if a host is discarded
+		Object[] hosts = mHosts.toArray();
 		int index;
 		if (mSyncPoint != null) {
 			synchronized (mSyncPoint) {
-				mIndex = (mIndex + 1) % mHosts.size();
+				mIndex = (mIndex + 1) % hosts.length;
 				index = mIndex;
 			}
 		} else {
-			mIndex = (mIndex + 1) % mHosts.size();
+			mIndex = (mIndex + 1) % hosts.length;
 			index = mIndex;
 		}
 
-		return mHosts.get(index);
+		return (Host) hosts[index];
 	}
 
 	@Override
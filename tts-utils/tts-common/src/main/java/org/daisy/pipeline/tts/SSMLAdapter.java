@@ -3,15 +3,22 @@ package org.daisy.pipeline.tts;
 import net.sf.saxon.s9api.QName;
 
 /**
- * Transform the SSML according to the TTS engine's features and bugs
+ * Transform the SSML according to the TTS engine's features and bugs. Used by
+ * SSMLUtil.toString() to serialize the SSML without running the XSLT of the
+ * TTS service. The element and attribute names given as parameters are the
+ * ones of the input SSML.
  */
 public interface SSMLAdapter {
 	String getHeader(String voiceName);
 
-	String getFooter();
+	/**
+	 * @param endingMark is null if the TTS engine doesn't handle marks.
+	 *            Otherwise the footer must contain a mark with this name.
+	 */
+	String getFooter(String voiceName, String endingMark);
 
 	/**
-	 * @return null to discard the element
+	 * @return null to discard the element, though not its content
 	 */
 	QName adaptElement(QName element);
 
@@ -26,4 +33,16 @@ public interface SSMLAdapter {
 	QName adaptAttributeName(QName element, QName attr, String value);
 
 	String adaptAttributeValue(QName element, QName attr, String value);
+
+	/**
+	 * @return the text written right after the start tag of @param element,
+	 *         whatever its content
+	 */
+	String getContentPrefix(QName element);
+
+	/**
+	 * @return true if @param element must be written as an empty-element tag
+	 *         (e.g. <break/>) when it has no content
+	 */
+	boolean useEmptyElementTag(QName element);
 }
@@ -11,6 +11,16 @@ public interface SSMLMarkSplitter {
 	 */
 	Collection<Chunk> split(XdmNode xdmNode);
 
+	/**
+	 * Same as split(), but the splitter may serialize the chunks for the TTS
+	 * engine itself, as SSMLUtil.toString() with the other parameters would
+	 * do, instead of building them as trees. See Chunk.serialized().
+	 */
+	default Collection<Chunk> split(XdmNode xdmNode, String voiceName, SSMLAdapter adapter,
+	        String endingMark) {
+		return split(xdmNode);
+	}
+
 	static class Chunk {
 		public Chunk(XdmNode ssml) {
 			this.ssml = ssml;
@@ -25,6 +35,16 @@ public interface SSMLMarkSplitter {
 			this.leftmark = leftmark;
 		}
 
+		/**
+		 * @param serialized the piece of SSML, already serialized for the TTS
+		 *            engine.
+		 * @param leftmark can be null if there is mark on the left of the chunk
+		 */
+		public Chunk(String serialized, String leftmark) {
+			this.serialized = serialized;
+			this.leftmark = leftmark;
+		}
+
 		public boolean mostLeftChunk() {
 			return leftmark == null;
 		}
@@ -36,12 +56,23 @@ public interface SSMLMarkSplitter {
 			return leftmark;
 		}
 
+		/**
+		 * @return null if the chunk has been serialized by the splitter
+		 */
 		public XdmNode ssml() {
 			return ssml;
 		}
 
+		/**
+		 * @return null if the chunk must be serialized by the caller
+		 */
+		public String serialized() {
+			return serialized;
+		}
+
 		private String leftmark;
 		private XdmNode ssml;
+		private String serialized;
 	}
 
 }
@@ -0,0 +1,187 @@
+package org.daisy.pipeline.tts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+public class SSMLUtil {
+
+	/**
+	 * Serialize the SSML for the TTS engine, in a single pass over @param ssml
+	 * and without any intermediate tree. The result is the same as the output
+	 * of the XSLT of the TTS service the @param adapter comes from.
+	 *
+	 * @param ssml is a sentence or a document containing it. The comments and
+	 *            the processing instructions are ignored.
+	 * @param voiceName can be null or empty when no voice is specified.
+	 * @param endingMark is null if the TTS engine doesn't handle marks.
+	 */
+	public static String toString(XdmNode ssml, String voiceName, SSMLAdapter adapter,
+	        String endingMark) {
+		if (voiceName == null)
+			voiceName = "";
+		StringBuilder sb = new StringBuilder();
+		if (ssml.getNodeKind() == XdmNodeKind.DOCUMENT) {
+			//as the XSLTs, which only match elements
+			XdmSequenceIterator iter = ssml.axisIterator(Axis.CHILD);
+			while (iter.hasNext()) {
+				XdmNode child = (XdmNode) iter.next();
+				if (child.getNodeKind() == XdmNodeKind.ELEMENT)
+					toString(child, voiceName, adapter, endingMark, sb);
+			}
+		} else
+			toString(ssml, voiceName, adapter, endingMark, sb);
+
+		return sb.toString();
+	}
+
+	/**
+	 * Same as toString() applied to an element named @param element, without
+	 * attributes, whose children are @param children. It spares building the
+	 * element when the children come from another tree, e.g. a chunk of a
+	 * sentence.
+	 */
+	public static String toString(QName element, List<XdmNode> children, String voiceName,
+	        SSMLAdapter adapter, String endingMark) {
+		if (voiceName == null)
+			voiceName = "";
+		StringBuilder sb = new StringBuilder();
+		sb.append(adapter.getHeader(voiceName));
+		new Serializer(adapter, sb).writeElement(element, Collections.<XdmNode> emptyIterator(),
+		        children.iterator());
+		sb.append(adapter.getFooter(voiceName, endingMark));
+		return sb.toString();
+	}
+
+	private static void toString(XdmNode sentence, String voiceName, SSMLAdapter adapter,
+	        String endingMark, StringBuilder sb) {
+		sb.append(adapter.getHeader(voiceName));
+		new Serializer(adapter, sb).write(sentence);
+		sb.append(adapter.getFooter(voiceName, endingMark));
+	}
+
+	private static class Serializer {
+		private SSMLAdapter mAdapter;
+		private StringBuilder mOutput;
+		private boolean mStartTagOpen = false; //'>' of the last start tag not written yet
+		private List<String> mPrefixes = new ArrayList<String>(); //namespaces in scope
+		private List<String> mURIs = new ArrayList<String>();
+
+		Serializer(SSMLAdapter adapter, StringBuilder output) {
+			mAdapter = adapter;
+			mOutput = output;
+		}
+
+		void write(XdmNode node) {
+			if (node.getNodeKind() == XdmNodeKind.TEXT) {
+				String text = mAdapter.adaptText(node.getStringValue());
+				if (!text.isEmpty()) {
+					closeStartTag();
+					mOutput.append(text);
+				}
+				return;
+			}
+			if (node.getNodeKind() != XdmNodeKind.ELEMENT)
+				return;
+			writeElement(node.getNodeName(), node.axisIterator(Axis.ATTRIBUTE), node
+			        .axisIterator(Axis.CHILD));
+		}
+
+		void writeElement(QName element, Iterator<? extends XdmItem> attributes,
+		        Iterator<? extends XdmItem> children) {
+			QName name = mAdapter.adaptElement(element);
+			if (name == null) {
+				writeChildren(children);
+				return;
+			}
+
+			closeStartTag();
+			int scope = mPrefixes.size();
+			String tagName = lexicalName(name);
+			mOutput.append("<").append(tagName);
+			StringBuilder attrs = new StringBuilder();
+			declare(name.getPrefix(), name.getNamespaceURI());
+			while (attributes.hasNext()) {
+				XdmNode attr = (XdmNode) attributes.next();
+				String value = attr.getStringValue();
+				QName attrName = mAdapter.adaptAttributeName(element, attr.getNodeName(), value);
+				if (attrName == null)
+					continue;
+				if (!attrName.getNamespaceURI().isEmpty() && !"xml".equals(attrName.getPrefix()))
+					declare(attrName.getPrefix(), attrName.getNamespaceURI());
+				attrs.append(" ").append(lexicalName(attrName)).append("=\"").append(
+				        mAdapter.adaptAttributeValue(element, attr.getNodeName(), value))
+				        .append("\"");
+			}
+			mOutput.append(attrs);
+			mStartTagOpen = true;
+
+			String prefix = mAdapter.getContentPrefix(element);
+			if (!prefix.isEmpty()) {
+				closeStartTag();
+				mOutput.append(prefix);
+			}
+			writeChildren(children);
+
+			if (mStartTagOpen && mAdapter.useEmptyElementTag(element)) {
+				mOutput.append("/>");
+				mStartTagOpen = false;
+			} else {
+				closeStartTag();
+				mOutput.append("</").append(tagName).append(">");
+			}
+			for (int i = mPrefixes.size() - 1; i >= scope; --i) {
+				mPrefixes.remove(i);
+				mURIs.remove(i);
+			}
+		}
+
+		private void writeChildren(Iterator<? extends XdmItem> children) {
+			while (children.hasNext()) {
+				write((XdmNode) children.next());
+			}
+		}
+
+		private void closeStartTag() {
+			if (mStartTagOpen) {
+				mOutput.append(">");
+				mStartTagOpen = false;
+			}
+		}
+
+		/**
+		 * Write the namespace declaration of @param prefix unless it is
+		 * already in scope
+		 */
+		private void declare(String prefix, String uri) {
+			String current = lookup(prefix);
+			if (current == null ? uri.isEmpty() : current.equals(uri))
+				return;
+			mPrefixes.add(prefix);
+			mURIs.add(uri);
+			mOutput.append(prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix).append("=\"")
+			        .append(uri).append("\"");
+		}
+
+		private String lookup(String prefix) {
+			for (int i = mPrefixes.size() - 1; i >= 0; --i)
+				if (mPrefixes.get(i).equals(prefix))
+					return mURIs.get(i);
+			return null;
+		}
+
+		private static String lexicalName(QName name) {
+			if (name.getPrefix().isEmpty())
+				return name.getLocalName();
+			return name.getPrefix() + ":" + name.getLocalName();
+		}
+	}
+}
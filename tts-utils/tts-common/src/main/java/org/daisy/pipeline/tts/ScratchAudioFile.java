@@ -0,0 +1,106 @@
+package org.daisy.pipeline.tts;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferAllocator.MemoryException;
+
+/**
+ * WAV file written by a TTS program and reused from one sentence to the next,
+ * for TTS programs that can only output audio to a file. It is meant to be
+ * owned by a TTSResource, i.e. used by one thread at a time.
+ *
+ * The file is created once, in /dev/shm when available so that the audio never
+ * hits the disk, and it is truncated rather than deleted between two
+ * sentences. It saves a file creation and a file deletion per sentence.
+ */
+public class ScratchAudioFile {
+
+	private static final File SharedMemory = new File("/dev/shm");
+
+	private File mFile;
+	private AudioFormat mFormat;
+	private int mUseCount;
+	private long mBytesRead;
+
+	public ScratchAudioFile(String prefix) throws IOException {
+		mFile = File.createTempFile(prefix, ".wav", getDirectory());
+		mFile.deleteOnExit();
+	}
+
+	/**
+	 * @return the directory where the files are created: /dev/shm if
+	 *         available, the default temporary directory otherwise
+	 */
+	public static File getDirectory() {
+		if (SharedMemory.isDirectory() && SharedMemory.canWrite())
+			return SharedMemory;
+		return null;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * Must be called before running the TTS program so that the audio of the
+	 * previous sentence is not read again if the program fails to write the
+	 * file.
+	 */
+	public void reset() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		try {
+			raf.setLength(0);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read the audio written by the TTS program since the last reset().
+	 */
+	public Collection<AudioBuffer> read(AudioBufferAllocator allocator) throws IOException,
+	        UnsupportedAudioFileException, MemoryException {
+		InputStream in = new FileInputStream(mFile);
+		try {
+			WaveStreamReader wav = new WaveStreamReader(in);
+			mFormat = wav.getFormat();
+			Collection<AudioBuffer> result = wav.readAll(allocator);
+			++mUseCount;
+			for (AudioBuffer b : result)
+				mBytesRead += b.size;
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the format of the last file read
+	 */
+	public AudioFormat getFormat() {
+		return mFormat;
+	}
+
+	public void delete() {
+		mFile.delete();
+	}
+
+	/**
+	 * @return a summary of the file creations and deletions avoided
+	 */
+	public String getStatistics() {
+		return "reused " + mFile + " for " + mUseCount + " sentence(s), saving "
+		        + Math.max(0, mUseCount - 1) + " file creation(s) and deletion(s); "
+		        + mBytesRead / 1024 + "KB of audio read "
+		        + (getDirectory() != null ? "from shared memory" : "from the disk");
+	}
+}
@@ -0,0 +1,128 @@
+package org.daisy.pipeline.tts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.NamespaceReducer;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.expr.parser.ExplicitLocation;
+import net.sf.saxon.om.CopyOptions;
+import net.sf.saxon.om.FingerprintedQName;
+import net.sf.saxon.om.NamespaceBinding;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import net.sf.saxon.type.Untyped;
+
+/**
+ * Same splitting as StructuredSSMLSplitter (the marks must be located right
+ * under the sentence), but done in a single pass over the sentence that writes
+ * all the chunks into the same tree, straight into Saxon's tiny tree builder.
+ * The chunks are the s elements of that tree rather than separate documents
+ * built with a TreeWriter each.
+ *
+ * When the TTS service has an SSMLAdapter, no tree is built at all: the chunks
+ * are serialized straight from the nodes of the sentence with SSMLUtil.
+ */
+public class SinglePassSSMLSplitter implements SSMLMarkSplitter {
+
+	private static final String SsmlNs = "http://www.w3.org/2001/10/synthesis";
+	private static final NodeName sNode = new FingerprintedQName("", SsmlNs, "s");
+	private static final NamespaceBinding sNamespace = new NamespaceBinding("", SsmlNs);
+	private static final QName sName = new QName(SsmlNs, "s");
+	private static final QName markNameAttr = new QName("name");
+	private static final String DocURI = "http://tmp";
+
+	private Configuration mConfig;
+
+	public SinglePassSSMLSplitter(Processor proc) {
+		mConfig = proc.getUnderlyingConfiguration();
+	}
+
+	@Override
+	public Collection<Chunk> split(XdmNode sentence) {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		XdmSequenceIterator iter = sentence.axisIterator(Axis.CHILD);
+		if (!iter.hasNext())
+			return chunks;
+
+		List<String> leftMarks = new ArrayList<String>();
+		leftMarks.add(null);
+		TinyBuilder builder = new TinyBuilder(mConfig.makePipelineConfiguration());
+		builder.setSystemId(DocURI);
+		Receiver out = new NamespaceReducer(builder);
+		try {
+			out.open();
+			out.startDocument(0);
+			startChunk(out);
+			while (iter.hasNext()) {
+				XdmNode node = (XdmNode) iter.next();
+				if (isMark(node)) {
+					out.endElement();
+					leftMarks.add(node.getAttributeValue(markNameAttr));
+					startChunk(out);
+				} else
+					node.getUnderlyingNode().copy(out, CopyOptions.ALL_NAMESPACES,
+					        ExplicitLocation.UNKNOWN_LOCATION);
+			}
+			out.endElement();
+			out.endDocument();
+			out.close();
+		} catch (XPathException e) {
+			//not expected since the nodes are copied from a valid tree
+			throw new IllegalStateException("cannot split the sentence: " + e.getMessage(), e);
+		}
+
+		XdmSequenceIterator roots = new XdmNode(builder.getCurrentRoot())
+		        .axisIterator(Axis.CHILD);
+		for (String leftMark : leftMarks)
+			chunks.add(new Chunk((XdmNode) roots.next(), leftMark));
+
+		return chunks;
+	}
+
+	@Override
+	public Collection<Chunk> split(XdmNode sentence, String voiceName, SSMLAdapter adapter,
+	        String endingMark) {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		XdmSequenceIterator iter = sentence.axisIterator(Axis.CHILD);
+		if (!iter.hasNext())
+			return chunks;
+
+		String leftMark = null;
+		List<XdmNode> content = new ArrayList<XdmNode>();
+		while (iter.hasNext()) {
+			XdmNode node = (XdmNode) iter.next();
+			if (isMark(node)) {
+				chunks.add(new Chunk(SSMLUtil.toString(sName, content, voiceName, adapter,
+				        endingMark), leftMark));
+				content.clear();
+				leftMark = node.getAttributeValue(markNameAttr);
+			} else
+				content.add(node);
+		}
+		chunks.add(new Chunk(SSMLUtil.toString(sName, content, voiceName, adapter, endingMark),
+		        leftMark));
+
+		return chunks;
+	}
+
+	private static boolean isMark(XdmNode node) {
+		return node.getNodeKind() == XdmNodeKind.ELEMENT
+		        && "mark".equals(node.getNodeName().getLocalName());
+	}
+
+	private static void startChunk(Receiver out) throws XPathException {
+		out.startElement(sNode, Untyped.getInstance(), ExplicitLocation.UNKNOWN_LOCATION, 0);
+		out.namespace(sNamespace, 0);
+		out.startContent();
+	}
+}
@@ -1,7 +1,9 @@
 package org.daisy.pipeline.tts;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javax.sound.sampled.AudioFormat;
 
@@ -86,6 +88,220 @@ public abstract class TTSEngine {
 	        AudioBufferAllocator bufferAllocator, boolean retry) throws SynthesisException,
 	        InterruptedException, MemoryException;
 
+	/**
+	 * Synthesize several consecutive sentences of the same section with the
+	 * same voice. Engines whose per-call overhead is high (e.g. remote servers
+	 * or processes spawned for every call) can override it to send the
+	 * sentences in a single request, in which case they must also override
+	 * maxBatchSize(). The default implementation calls synthesize() for every
+	 * sentence. This method must be thread-safe, like synthesize().
+	 * 
+	 * @param sentences are the sentences to synthesize, in the order of the
+	 *            document. See synthesize().
+	 * @param xmlSentences are the XML versions of @param sentences.
+	 * @param voice is the voice shared by all the sentences.
+	 * @param threadResources is the object returned by
+	 *            allocateThreadResource().
+	 * @param marks are the lists of marks returned for every sentence. They
+	 *            are provided empty, one list per sentence. The offsets are
+	 *            relative to the buffers of their own sentence.
+	 * @param expectedMarks are the mark names of every sentence, including the
+	 *            ending mark. See synthesize().
+	 * @param bufferAllocator is the object that the TTS Service must use to
+	 *            allocate new audio buffers.
+	 * @param retry see synthesize().
+	 * 
+	 * @return the PCM chunks of every sentence, in the same order as @param
+	 *         sentences. If an exception is thrown, the buffers already
+	 *         allocated must be released.
+	 */
+	public List<Collection<AudioBuffer>> synthesizeBatch(List<String> sentences,
+	        List<XdmNode> xmlSentences, Voice voice, TTSResource threadResources,
+	        List<List<Mark>> marks, List<List<String>> expectedMarks,
+	        AudioBufferAllocator bufferAllocator, boolean retry) throws SynthesisException,
+	        InterruptedException, MemoryException {
+		List<Collection<AudioBuffer>> result = new ArrayList<Collection<AudioBuffer>>();
+		try {
+			for (int i = 0; i < sentences.size(); ++i) {
+				result.add(synthesize(sentences.get(i), xmlSentences.get(i), voice,
+				        threadResources, marks.get(i), expectedMarks.get(i), bufferAllocator,
+				        retry));
+			}
+		} catch (SynthesisException | InterruptedException | MemoryException
+		        | RuntimeException e) {
+			for (Collection<AudioBuffer> buffers : result)
+				SoundUtil.cancelFootPrint(buffers, bufferAllocator);
+			throw e;
+		}
+		return result;
+	}
+
+	/**
+	 * Helper for the engines whose synthesizeBatch() synthesizes the
+	 * concatenation of the sentences in a single call: split the resulting
+	 * @param audio at the sentences' ending marks. The audio that follows an
+	 * ending mark (e.g. a break added after the mark) goes with the next
+	 * sentence, except after the last sentence.
+	 * 
+	 * @param marks are the marks of the whole batch, with offsets relative to
+	 *            @param audio, in the order of the concatenated
+	 *            @param expectedMarks.
+	 * @param expectedMarks are the mark names of every sentence, the last one
+	 *            of each sentence being the ending mark.
+	 * @param sentenceMarks receives the marks of every sentence, with offsets
+	 *            relative to the sentence's buffers. One empty list per
+	 *            sentence.
+	 * @return the buffers of every sentence. The buffers that straddle an
+	 *         ending mark are replaced with copies of their two parts.
+	 * @throws SynthesisException if some marks are missing. The buffers of
+	 *             @param audio are released in that case, as well as when a
+	 *             MemoryException is thrown.
+	 */
+	protected static List<Collection<AudioBuffer>> splitBatch(Collection<AudioBuffer> audio,
+	        List<Mark> marks, List<List<String>> expectedMarks, List<List<Mark>> sentenceMarks,
+	        AudioBufferAllocator bufferAllocator) throws SynthesisException, MemoryException {
+		int total = 0;
+		for (AudioBuffer b : audio)
+			total += b.size;
+
+		//offsets of the sentences' ends
+		int[] ends = new int[expectedMarks.size()];
+		int expectedNum = 0;
+		for (int i = 0; i < ends.length; ++i) {
+			expectedNum += expectedMarks.get(i).size();
+			if (expectedNum > marks.size())
+				break;
+			ends[i] = (i == ends.length - 1) ? total : marks.get(expectedNum - 1).offsetInAudio;
+		}
+		if (expectedNum != marks.size()) {
+			SoundUtil.cancelFootPrint(audio, bufferAllocator);
+			throw new SynthesisException(marks.size() + " mark(s) received instead of "
+			        + expectedNum + " for a batch of " + ends.length + " sentences");
+		}
+		for (int i = 0; i < ends.length; ++i)
+			if (ends[i] < (i == 0 ? 0 : ends[i - 1]) || ends[i] > total) {
+				SoundUtil.cancelFootPrint(audio, bufferAllocator);
+				throw new SynthesisException("ending mark out of order for sentence " + i
+				        + " of a batch of " + ends.length + " sentences");
+			}
+
+		//marks
+		int m = 0;
+		for (int i = 0; i < ends.length; ++i) {
+			int begin = (i == 0 ? 0 : ends[i - 1]);
+			for (int k = 0; k < expectedMarks.get(i).size(); ++k, ++m) {
+				Mark mark = marks.get(m);
+				sentenceMarks.get(i).add(new Mark(mark.name, Math.max(0, mark.offsetInAudio
+				        - begin)));
+			}
+		}
+
+		//audio
+		List<Collection<AudioBuffer>> result = new ArrayList<Collection<AudioBuffer>>();
+		for (int i = 0; i < ends.length; ++i)
+			result.add(new ArrayList<AudioBuffer>());
+		List<AudioBuffer> buffers = new ArrayList<AudioBuffer>(audio);
+		int sentence = 0;
+		int pos = 0; //offset of the current buffer
+		for (int j = 0; j < buffers.size(); ++j) {
+			AudioBuffer b = buffers.get(j);
+			try {
+				int begin = 0; //beginning of the part of b that is not dispatched yet
+				while (sentence < ends.length - 1 && pos + b.size > ends[sentence]) {
+					int cut = ends[sentence] - pos;
+					if (cut > begin)
+						result.get(sentence).add(copy(b, begin, cut, bufferAllocator));
+					begin = Math.max(begin, cut);
+					++sentence;
+				}
+				if (begin == 0)
+					result.get(sentence).add(b);
+				else {
+					if (begin < b.size)
+						result.get(sentence).add(copy(b, begin, b.size, bufferAllocator));
+					bufferAllocator.releaseBuffer(b);
+				}
+			} catch (MemoryException e) {
+				for (Collection<AudioBuffer> dispatched : result)
+					SoundUtil.cancelFootPrint(dispatched, bufferAllocator);
+				SoundUtil.cancelFootPrint(buffers.subList(j, buffers.size()), bufferAllocator);
+				throw e;
+			}
+			pos += b.size;
+		}
+		return result;
+	}
+
+	private static AudioBuffer copy(AudioBuffer b, int begin, int end,
+	        AudioBufferAllocator bufferAllocator) throws MemoryException {
+		AudioBuffer part = bufferAllocator.allocateBuffer(end - begin);
+		System.arraycopy(b.data, begin, part.data, 0, end - begin);
+		return part;
+	}
+
+	/**
+	 * @return the maximum number of sentences that synthesizeBatch() should be
+	 *         given at once. Engines that don't override synthesizeBatch()
+	 *         must return 1, in which case synthesize() is called directly.
+	 *         Must be thread-safe.
+	 */
+	public int maxBatchSize() {
+		return 1;
+	}
+
+	/**
+	 * PCM chunks and marks of a sentence synthesized by synthesizeAsync().
+	 */
+	public static class SynthesisResult {
+		public SynthesisResult(Collection<AudioBuffer> audio, List<Mark> marks) {
+			this.audio = audio;
+			this.marks = marks;
+		}
+
+		public final Collection<AudioBuffer> audio;
+		public final List<Mark> marks;
+	}
+
+	/**
+	 * Asynchronous version of synthesize() for engines that spend most of
+	 * their time waiting for remote servers or other processes. Engines that
+	 * override it must also override maxConcurrentRequests(), in which case
+	 * the text-to-pcm threads keep several requests outstanding, possibly
+	 * with the same @param threadResources. The resources must therefore
+	 * support concurrent requests. The default implementation calls
+	 * synthesize() and returns a completed future.
+	 * 
+	 * The parameters are the same as those of synthesize(). The future is
+	 * completed exceptionally with a SynthesisException, a MemoryException or
+	 * an InterruptedException if something went wrong. The callers interrupt
+	 * the requests that take too long with interruptCurrentWork(), and release
+	 * the buffers of the results they no longer wait for.
+	 */
+	public CompletableFuture<SynthesisResult> synthesizeAsync(String sentence,
+	        XdmNode xmlSentence, Voice voice, TTSResource threadResources,
+	        List<String> expectedMarks, AudioBufferAllocator bufferAllocator, boolean retry) {
+		CompletableFuture<SynthesisResult> result = new CompletableFuture<SynthesisResult>();
+		List<Mark> marks = new ArrayList<Mark>();
+		try {
+			result.complete(new SynthesisResult(synthesize(sentence, xmlSentence, voice,
+			        threadResources, marks, expectedMarks, bufferAllocator, retry), marks));
+		} catch (SynthesisException | InterruptedException | MemoryException
+		        | RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the maximum number of calls to synthesizeAsync() that can be
+	 *         outstanding at the same time, all threads included. Engines that
+	 *         don't override synthesizeAsync() must return 1, in which case
+	 *         synthesize() is called directly. Must be thread-safe.
+	 */
+	public int maxConcurrentRequests() {
+		return 1;
+	}
+
 	/**
 	 * @return the audio format (sample rate etc.) of the data produced by
 	 *         synthesize(). The engine is assumed to use the same audio format
@@ -2,10 +2,17 @@ package org.daisy.pipeline.tts;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.transform.URIResolver;
 
@@ -17,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
@@ -36,6 +44,25 @@ public class TTSRegistry {
 	private List<TTSService> mServices = new CopyOnWriteArrayList<TTSService>(); //List of active services
 	//Services and resources used by the current running steps (some of them may not be active anymore):
 	private Map<TTSService, List<TTSResource>> mTTSResources = new HashMap<TTSService, List<TTSResource>>();
+	//Objects derived from the active services and reused across jobs (e.g. tested engines):
+	private Map<TTSService, Map<Object, Object>> mServiceCaches = new ConcurrentHashMap<TTSService, Map<Object, Object>>();
+	//Voices of the active services, refreshed in the background once getAllAvaibleVoices() has been called:
+	private Map<TTSService, Collection<Voice>> mVoiceInventory = new ConcurrentHashMap<TTSService, Collection<Voice>>();
+	private volatile Collection<Voice> mAllVoices; //voices of the inventory, null before the first call
+	private volatile Map<String, String> mInventoryProperties; //properties of the inventory's engines
+	private Processor mSaxonProcessor; //for reading the properties again on every refresh
+	private volatile ScheduledExecutorService mInventoryRefresher;
+
+	/**
+	 * Service component callback
+	 */
+	@Deactivate
+	protected void deactivate() {
+		ScheduledExecutorService refresher = mInventoryRefresher;
+		mInventoryRefresher = null;
+		if (refresher != null)
+			refresher.shutdownNow();
+	}
 
 	/**
 	 * Service component callback
@@ -70,10 +97,26 @@ public class TTSRegistry {
 	)
 	public void addTTS(TTSService tts) {
 		ServerLogger.info("Adding TTSService " + TTSServiceUtil.displayName(tts));
+		mServiceCaches.remove(tts);
 		mServices.add(tts);
 		synchronized (mTTSResources) {
 			mTTSResources.put(tts, new ArrayList<TTSResource>());
 		}
+		ScheduledExecutorService refresher = mInventoryRefresher;
+		if (refresher != null) {
+			final TTSService fTTS = tts;
+			try {
+				refresher.execute(new Runnable() {
+					@Override
+					public void run() {
+						refreshVoices(fTTS);
+						mergeVoices();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				//deactivated in the meantime
+			}
+		}
 	}
 
 	/**
@@ -98,37 +141,144 @@ public class TTSRegistry {
 		}
 
 		mServices.remove(tts);
+		mServiceCaches.remove(tts);
+		if (mVoiceInventory.remove(tts) != null)
+			mergeVoices();
 	}
 
 	public Collection<TTSService> getServices() {
 		return mServices;
 	}
 
+	/**
+	 * @return a thread-safe map in which the TTS steps can keep the objects
+	 *         derived from @param service (e.g. its compiled SSML adapter or its
+	 *         engines once they have been tested) so that the next jobs can
+	 *         reuse them. The map is dropped when the service is added or
+	 *         removed. An empty map that is not kept is returned if the service
+	 *         is not active.
+	 */
+	public Map<Object, Object> getServiceCache(TTSService service) {
+		if (!mServices.contains(service))
+			return new ConcurrentHashMap<Object, Object>();
+		Map<Object, Object> cache = mServiceCaches.get(service);
+		if (cache == null) {
+			cache = new ConcurrentHashMap<Object, Object>();
+			Map<Object, Object> previous = mServiceCaches.putIfAbsent(service, cache);
+			if (previous != null)
+				cache = previous;
+		}
+		return cache;
+	}
+
 	/**
 	 * Return the list of available voices. The SSML adapters and the engines
 	 * are not checked, so it might be the case that some of the returned voices
 	 * are actually not usable.
 	 * 
+	 * The voices are listed by the first call. They are then kept in an
+	 * inventory that is refreshed in the background, every
+	 * org.daisy.pipeline.tts.voices.refresh seconds and whenever a service is
+	 * added, so that the next calls return immediately. The static TTS
+	 * properties are read again on every periodic refresh.
+	 * 
 	 * @param params include TTS properties such as server IPs.
 	 * @return
 	 */
 	public Collection<Voice> getAllAvaibleVoices(Processor saxonProcessor) {
-		ConfigReader cr = new ConfigReader(saxonProcessor);
-		TTSTimeout timeout = new TTSTimeout();
-		List<Voice> result = new ArrayList<Voice>();
-		for (TTSService service : mServices) {
+		Collection<Voice> voices = mAllVoices;
+		if (voices != null)
+			return voices;
+		synchronized (mVoiceInventory) {
+			if (mAllVoices == null) {
+				mSaxonProcessor = saxonProcessor;
+				mInventoryProperties = new ConfigReader(saxonProcessor).getStaticProperties();
+				for (TTSService service : mServices)
+					refreshVoices(service);
+				mergeVoices();
+				startInventoryRefresher();
+			}
+			return mAllVoices;
+		}
+	}
+
+	/**
+	 * @return the voices of @param service kept in the inventory of
+	 *         getAllAvaibleVoices(), provided that the engines of the
+	 *         inventory have been created with @param properties, or null
+	 */
+	public Collection<Voice> getCachedVoices(TTSService service, Map<String, String> properties) {
+		if (mAllVoices == null || !properties.equals(mInventoryProperties))
+			return null;
+		return mVoiceInventory.get(service);
+	}
+
+	private void startInventoryRefresher() {
+		long period = 600; //in seconds
+		String periodProp = System.getProperty("org.daisy.pipeline.tts.voices.refresh");
+		if (periodProp != null) {
 			try {
-				timeout.enableForCurrentThread(2);
-				TTSEngine engine = service.newEngine(cr.getStaticProperties());
-				result.addAll(engine.getAvailableVoices());
-			} catch (Throwable e) {
-				//ignore
-			} finally {
-				timeout.disable();
+				period = Long.valueOf(periodProp.trim());
+			} catch (NumberFormatException e) {
+				ServerLogger.warn("invalid value for org.daisy.pipeline.tts.voices.refresh: "
+				        + periodProp + ", using " + period + " seconds");
+			}
+		}
+		mInventoryRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "tts-voice-inventory");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (period > 0)
+			mInventoryRefresher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						mInventoryProperties = new ConfigReader(mSaxonProcessor)
+						        .getStaticProperties();
+					} catch (RuntimeException e) {
+						//an exception would cancel the next refreshes
+						ServerLogger.warn("could not read the TTS properties: " + e.getMessage());
+					}
+					for (TTSService service : mServices)
+						refreshVoices(service);
+					mergeVoices();
+				}
+			}, period, period, TimeUnit.SECONDS);
+	}
+
+	private void refreshVoices(TTSService service) {
+		TTSTimeoutWheel.Timeout timeout = TTSTimeoutWheel.newTimeout();
+		try {
+			timeout.enableForCurrentThread(2);
+			TTSEngine engine = service.newEngine(mInventoryProperties);
+			mVoiceInventory.put(service, Collections.unmodifiableList(new ArrayList<Voice>(
+			        engine.getAvailableVoices())));
+		} catch (Throwable e) {
+			ServerLogger.debug("could not list the voices of "
+			        + TTSServiceUtil.displayName(service) + ": " + e.getMessage());
+			mVoiceInventory.remove(service);
+		} finally {
+			timeout.close();
+		}
+		//the service may have been removed in the meantime
+		if (!mServices.contains(service))
+			mVoiceInventory.remove(service);
+	}
+
+	private void mergeVoices() {
+		synchronized (mVoiceInventory) {
+			List<Voice> result = new ArrayList<Voice>();
+			for (TTSService service : mServices) {
+				Collection<Voice> voices = mVoiceInventory.get(service);
+				if (voices != null)
+					result.addAll(voices);
 			}
+			mAllVoices = Collections.unmodifiableList(result);
 		}
-		timeout.close();
-		return result;
 	}
 
 	public TTSResource allocateResourceFor(TTSEngine tts) throws SynthesisException,
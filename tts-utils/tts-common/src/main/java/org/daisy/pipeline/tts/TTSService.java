@@ -85,4 +85,16 @@ public interface TTSService {
 	 */
 	public URL getSSMLxslTransformerURL();
 
+	/**
+	 * Must be thread safe.
+	 *
+	 * @return a new SSMLAdapter with which SSMLUtil.toString() produces the
+	 *         same output as the XSLT of getSSMLxslTransformerURL(), only
+	 *         faster, or null if the XSLT must be used. The adapter is used by
+	 *         one thread at a time, so it doesn't need to be thread-safe.
+	 */
+	default SSMLAdapter newSSMLAdapter() {
+		return null;
+	}
+
 }
@@ -0,0 +1,239 @@
+package org.daisy.pipeline.tts;
+
+import org.daisy.pipeline.tts.TTSTimeout.ThreadFreeInterrupter;
+
+/**
+ * Hashed timer wheel shared by all the timeouts of the JVM. It behaves like
+ * TTSTimeout: when the time is up, it first calls interrupt() on the watched
+ * thread; if the thread is still running one second later, it calls the custom
+ * ThreadFreeInterrupter. But a single daemon thread keeps watch over all the
+ * timeouts, instead of one thread per timeout, and enabling or disabling a
+ * timeout is a constant-time operation that doesn't involve any other thread.
+ *
+ * The precision is one tick (100ms), which is plenty for timeouts expressed in
+ * seconds.
+ */
+public class TTSTimeoutWheel {
+
+	private static final long TickMillis = 100;
+	private static final int WheelSize = 512; //about 51 seconds per round
+	private static final long HardInterruptDelay = 1000; //in milliseconds
+
+	private static TTSTimeoutWheel Instance;
+
+	private Entry[] mSlots;
+	private long mCurrentTick; //last processed tick
+	private long mStartTime;
+	private Thread mThread;
+
+	/**
+	 * Replacement of TTSTimeout. The same instance can be enabled and disabled
+	 * multiple times, as long as it is used sequentially.
+	 */
+	public static class Timeout {
+		private TTSTimeoutWheel mWheel;
+		private Entry mEntry; //null when disabled
+
+		Timeout(TTSTimeoutWheel wheel) {
+			mWheel = wheel;
+		}
+
+		public void enable(Thread job, ThreadFreeInterrupter interruptable, int seconds) {
+			Entry e = new Entry(this, job, interruptable);
+			synchronized (this) {
+				mEntry = e;
+			}
+			mWheel.schedule(e, seconds * 1000L);
+		}
+
+		public void enable(Thread job, int seconds) {
+			enable(job, null, seconds);
+		}
+
+		public void enableForCurrentThread(ThreadFreeInterrupter interruptable, int seconds)
+		        throws InterruptedException {
+			enable(Thread.currentThread(), interruptable, seconds);
+		}
+
+		public void enableForCurrentThread(int seconds) throws InterruptedException {
+			enableForCurrentThread(null, seconds);
+		}
+
+		/**
+		 * Must always be called after enable(). Once it returns, the watched
+		 * thread won't be interrupted anymore. It waits for the custom
+		 * interrupter to finish if it is running.
+		 */
+		public void disable() {
+			Entry e;
+			synchronized (this) {
+				e = mEntry;
+				mEntry = null;
+			}
+			if (e != null)
+				mWheel.cancel(e);
+		}
+
+		/**
+		 * Kept for compatibility with TTSTimeout: nothing needs to be released.
+		 */
+		public void close() {
+			disable();
+		}
+
+		//called with the lock held
+		private boolean isCurrent(Entry e) {
+			return mEntry == e;
+		}
+	}
+
+	private static class Entry {
+		Timeout timeout;
+		Thread job;
+		ThreadFreeInterrupter interrupter;
+		boolean softInterrupted;
+		long rounds;
+		int slot = -1; //-1 when not in the wheel
+		Entry prev;
+		Entry next;
+
+		Entry(Timeout timeout, Thread job, ThreadFreeInterrupter interrupter) {
+			this.timeout = timeout;
+			this.job = job;
+			this.interrupter = interrupter;
+		}
+	}
+
+	public static synchronized TTSTimeoutWheel getInstance() {
+		if (Instance == null)
+			Instance = new TTSTimeoutWheel();
+		return Instance;
+	}
+
+	/**
+	 * @return a new timeout relying on the shared wheel
+	 */
+	public static Timeout newTimeout() {
+		return new Timeout(getInstance());
+	}
+
+	TTSTimeoutWheel() {
+		mSlots = new Entry[WheelSize];
+		mStartTime = System.nanoTime();
+		mCurrentTick = 0;
+		mThread = new Thread("tts-timeout-wheel") {
+			@Override
+			public void run() {
+				loop();
+			}
+		};
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	private synchronized void schedule(Entry e, long delayMillis) {
+		long ticks = Math.max(1, (delayMillis + TickMillis - 1) / TickMillis);
+		long now = (System.nanoTime() - mStartTime) / (TickMillis * 1000000);
+		long target = Math.max(now, mCurrentTick) + ticks;
+		//the slot is visited for the first time within WheelSize ticks
+		e.rounds = (target - mCurrentTick - 1) / WheelSize;
+		e.slot = (int) (target % WheelSize);
+		e.prev = null;
+		e.next = mSlots[e.slot];
+		if (e.next != null)
+			e.next.prev = e;
+		mSlots[e.slot] = e;
+	}
+
+	private void cancel(Entry e) {
+		synchronized (this) {
+			unlink(e);
+		}
+		//wait for the interruptions in progress, if any
+		synchronized (e) {
+			e.job = null;
+		}
+	}
+
+	//must be called with the lock held
+	private void unlink(Entry e) {
+		if (e.slot == -1)
+			return;
+		if (e.prev != null)
+			e.prev.next = e.next;
+		else
+			mSlots[e.slot] = e.next;
+		if (e.next != null)
+			e.next.prev = e.prev;
+		e.prev = e.next = null;
+		e.slot = -1;
+	}
+
+	private void loop() {
+		while (true) {
+			long deadline = mStartTime + (mCurrentTick + 1) * TickMillis * 1000000;
+			long sleep = deadline - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+				} catch (InterruptedException e) {
+					//not supposed to happen: the thread is never interrupted
+				}
+				continue;
+			}
+			Entry expired = null;
+			synchronized (this) {
+				++mCurrentTick;
+				int slot = (int) (mCurrentTick % WheelSize);
+				Entry e = mSlots[slot];
+				while (e != null) {
+					Entry next = e.next;
+					if (e.rounds > 0) {
+						--e.rounds;
+					} else {
+						unlink(e);
+						e.next = expired; //reuse the link for the list of expired entries
+						expired = e;
+					}
+					e = next;
+				}
+			}
+			while (expired != null) {
+				Entry e = expired;
+				expired = e.next;
+				e.next = null;
+				fire(e);
+			}
+		}
+	}
+
+	private void fire(final Entry e) {
+		synchronized (e.timeout) {
+			if (!e.timeout.isCurrent(e))
+				return; //disabled in the meantime
+		}
+		if (!e.softInterrupted) {
+			//time's up! first attempt: the job is gracefully interrupted
+			synchronized (e) {
+				if (e.job == null)
+					return;
+				e.softInterrupted = true;
+				e.job.interrupt();
+			}
+			if (e.interrupter != null)
+				schedule(e, HardInterruptDelay);
+		} else {
+			//it didn't work: we attempt the aggressive way, in a separate thread so
+			//as not to delay the other timeouts
+			new Thread("tts-timeout-interrupter") {
+				@Override
+				public void run() {
+					synchronized (e) {
+						if (e.job != null)
+							e.interrupter.threadFreeInterrupt();
+					}
+				}
+			}.start();
+		}
+	}
+}
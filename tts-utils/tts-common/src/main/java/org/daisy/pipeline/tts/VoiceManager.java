@@ -9,12 +9,15 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.daisy.pipeline.tts.TTSService.SynthesisException;
 import org.daisy.pipeline.tts.VoiceInfo.Gender;
@@ -33,6 +36,10 @@ public class VoiceManager {
 	private Map<Locale, Voice> mVoiceLangOnly = new HashMap<Locale, Voice>(); //both gender and engine are missing
 	private Map<Voice, TTSEngine> mBestEngines = new HashMap<Voice, TTSEngine>();
 	private Map<Voice, Voice> mSecondVoices = new HashMap<Voice, Voice>();
+	private Map<ResolutionKey, Resolution> mResolutions = new ConcurrentHashMap<ResolutionKey, Resolution>(); //see resolveVoice()
+	private AtomicLong mResolutionHits = new AtomicLong();
+	private AtomicLong mResolutionMisses = new AtomicLong();
+	private static final int MaxResolutions = 10000; //beyond that, the results are not memoized anymore
 	
 	//For now, we are keeping only one 'multi-lang' voice, which will be selected no matter which
 	//gender or engine is requested. So we are not considering the best multilang voice given an
@@ -40,6 +47,16 @@ public class VoiceManager {
 	private Voice mBestMultiLangVoice; 
 
 	public VoiceManager(Collection<TTSEngine> engines, Collection<VoiceInfo> extraVoices) {
+		this(getAvailableVoices(engines), extraVoices);
+	}
+
+	/**
+	 * @param engineVoices are the engines along with their available voices,
+	 *            e.g. retrieved while testing the engines. The engines are
+	 *            iterated in the map's order.
+	 */
+	public VoiceManager(Map<TTSEngine, Collection<Voice>> engineVoices,
+	        Collection<VoiceInfo> extraVoices) {
 		//build the list of voices ordered by priority
 		final float priorityVariantPenalty = 0.1f;
 		Set<VoiceInfo> priorities = new LinkedHashSet<VoiceInfo>();
@@ -68,35 +85,18 @@ public class VoiceManager {
 
 		//Create a map of the best services for each available voice, given that two different
 		//services can serve the same voice. 
-		TTSTimeout timeout = new TTSTimeout();
-		int timeoutSecs = 5;
-		for (TTSEngine tts : engines) { //no possible concurrent write
-			try {
-				timeout.enableForCurrentThread(timeoutSecs);
-				Collection<Voice> voices = tts.getAvailableVoices();
-				if (voices != null)
-					for (Voice v : voices) {
-						TTSEngine competitor = mBestEngines.get(v);
-						if (competitor == null
-						        || competitor.getOverallPriority() < tts.getOverallPriority()) {
-							mBestEngines.put(v, tts);
-						}
+		for (Entry<TTSEngine, Collection<Voice>> e : engineVoices.entrySet()) {
+			TTSEngine tts = e.getKey();
+			if (e.getValue() != null)
+				for (Voice v : e.getValue()) {
+					TTSEngine competitor = mBestEngines.get(v);
+					if (competitor == null
+					        || competitor.getOverallPriority() < tts.getOverallPriority()) {
+						mBestEngines.put(v, tts);
 					}
-			} catch (SynthesisException e) {
-				ServerLogger.error("error while retrieving the voices of "
-				        + TTSServiceUtil.displayName(tts.getProvider()));
-				ServerLogger.debug(TTSServiceUtil.displayName(tts.getProvider())
-				        + " getAvailableVoices error: " + getStack(e));
-			} catch (InterruptedException e) {
-				ServerLogger.error("timeout while retrieving the voices of "
-				        + TTSServiceUtil.displayName(tts.getProvider())
-				        + " (exceeded " + timeoutSecs + " seconds)");
-			} finally {
-				timeout.disable();
-			}
+				}
 		}
-		timeout.close();
-		
+
 		//get the best voice that can handle any language, if any
 		for (VoiceInfo voiceInfo : mVoicePriorities) {
 			if (voiceInfo.isMultiLang() && mBestEngines.containsKey(voiceInfo.voice)){
@@ -179,6 +179,54 @@ public class VoiceManager {
 		        exactMatch == null ? new boolean[1] : exactMatch);
 	}
 
+	/**
+	 * Same as findAvailableVoice(), for the voice attributes of an SSML
+	 * sentence: @param age (null if unknown) turns @param gender into a child
+	 * or elderly gender. The results are memoized, so that the sentences with
+	 * the same attributes are resolved with a single lookup.
+	 */
+	public Voice resolveVoice(String voiceEngine, String voiceName, String lang, String gender,
+	        String age, boolean[] exactMatch) {
+		ResolutionKey key = new ResolutionKey(voiceEngine, voiceName, lang, gender, age);
+		Resolution r = mResolutions.get(key);
+		if (r != null) {
+			mResolutionHits.incrementAndGet();
+		} else {
+			mResolutionMisses.incrementAndGet();
+			if (age != null) {
+				try {
+					int age_i = Integer.parseInt(age);
+					if (age_i <= 16) {
+						gender += "-child";
+					} else if (age_i >= 70) {
+						gender += "-eldery";
+					}
+				} catch (NumberFormatException e) {
+					//ignore
+				}
+			}
+			boolean[] exact = new boolean[1];
+			Voice v = findAvailableVoice(voiceEngine, voiceName, lang, gender, exact);
+			r = new Resolution(v, exact[0]);
+			if (mResolutions.size() < MaxResolutions)
+				mResolutions.put(key, r);
+		}
+		if (exactMatch != null)
+			exactMatch[0] = r.exactMatch;
+		return r.voice;
+	}
+
+	/**
+	 * @return the hit rate of resolveVoice()'s memoized results
+	 */
+	public String getResolutionStatistics() {
+		long hits = mResolutionHits.get();
+		long total = hits + mResolutionMisses.get();
+		return "Voice resolution: " + hits + " hit(s), " + (total - hits) + " miss(es)"
+		        + (total > 0 ? " (hit rate: " + (100 * hits / total) + "%)" : "") + ", "
+		        + mResolutions.size() + " distinct voice attribute set(s)";
+	}
+
 	public Voice findSecondaryVoice(Voice v) {
 		return mSecondVoices.get(v);
 	}
@@ -309,6 +357,33 @@ public class VoiceManager {
 		}
 	}
 
+	private static Map<TTSEngine, Collection<Voice>> getAvailableVoices(
+	        Collection<TTSEngine> engines) {
+		Logger logger = LoggerFactory.getLogger(VoiceManager.class);
+		Map<TTSEngine, Collection<Voice>> result = new LinkedHashMap<TTSEngine, Collection<Voice>>();
+		TTSTimeout timeout = new TTSTimeout();
+		int timeoutSecs = 5;
+		for (TTSEngine tts : engines) {
+			try {
+				timeout.enableForCurrentThread(timeoutSecs);
+				result.put(tts, tts.getAvailableVoices());
+			} catch (SynthesisException e) {
+				logger.error("error while retrieving the voices of "
+				        + TTSServiceUtil.displayName(tts.getProvider()));
+				logger.debug(TTSServiceUtil.displayName(tts.getProvider())
+				        + " getAvailableVoices error: " + getStack(e));
+			} catch (InterruptedException e) {
+				logger.error("timeout while retrieving the voices of "
+				        + TTSServiceUtil.displayName(tts.getProvider())
+				        + " (exceeded " + timeoutSecs + " seconds)");
+			} finally {
+				timeout.disable();
+			}
+		}
+		timeout.close();
+		return result;
+	}
+
 	private static String getStack(Throwable t) {
 		StringWriter writer = new StringWriter();
 		PrintWriter printWriter = new PrintWriter(writer);
@@ -317,6 +392,37 @@ public class VoiceManager {
 		return writer.toString();
 	}
 
+	static private class ResolutionKey {
+		private final String[] mAttributes; //engine, name, lang, gender and age
+		private final int mHash;
+
+		ResolutionKey(String... attributes) {
+			mAttributes = attributes;
+			mHash = Arrays.hashCode(attributes);
+		}
+
+		@Override
+		public int hashCode() {
+			return mHash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof ResolutionKey
+			        && Arrays.equals(mAttributes, ((ResolutionKey) other).mAttributes);
+		}
+	}
+
+	static private class Resolution {
+		final Voice voice; //null if no voice is available
+		final boolean exactMatch;
+
+		Resolution(Voice voice, boolean exactMatch) {
+			this.voice = voice;
+			this.exactMatch = exactMatch;
+		}
+	}
+
 	static private class VoiceKey {
 		public String engine;
 		public Locale lang;
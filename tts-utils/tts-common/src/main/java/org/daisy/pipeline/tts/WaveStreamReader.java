@@ -0,0 +1,187 @@
+package org.daisy.pipeline.tts;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferAllocator.MemoryException;
+
+/**
+ * Reads a PCM WAV stream, typically the standard output of a TTS program, into
+ * a few large AudioBuffers. The RIFF header is parsed once. Then the data are
+ * read into chunks provided by the AudioBufferAllocator, each chunk being
+ * filled up before the next one is allocated:
+ *
+ * - if the header gives the length of the data, a single chunk of that length
+ * is allocated (up to MaxChunkSize);
+ *
+ * - otherwise, e.g. when the program cannot seek back to write the length, the
+ * chunks start at InitialChunkSize and double in size up to MaxChunkSize.
+ * When the stream ends in a chunk that is less than half full, its data are
+ * moved to a right-sized chunk so that the unused part doesn't count in the
+ * memory footprint.
+ *
+ * Unlike AudioSystem.getAudioInputStream(), it doesn't allocate a new buffer
+ * for every read() call.
+ */
+public class WaveStreamReader {
+
+	public static final int InitialChunkSize = 65536;
+	public static final int MaxChunkSize = 16777216;
+
+	//data lengths written by programs that stream to a pipe (e.g. eSpeak)
+	private static final long UnknownLength = 0x7ffff000L;
+
+	private InputStream mIn;
+	private AudioFormat mFormat;
+	private long mDataLength; //-1 if unknown
+
+	/**
+	 * Parse the RIFF header. The stream is left at the beginning of the data.
+	 */
+	public WaveStreamReader(InputStream in) throws IOException,
+	        UnsupportedAudioFileException {
+		mIn = in;
+		byte[] header = new byte[12];
+		readFully(header, 12);
+		if (!"RIFF".equals(fourCC(header, 0)) || !"WAVE".equals(fourCC(header, 8)))
+			throw new UnsupportedAudioFileException("not a RIFF/WAVE stream");
+
+		byte[] chunk = new byte[8];
+		while (true) {
+			readFully(chunk, 8);
+			String id = fourCC(chunk, 0);
+			long size = readInt(chunk, 4) & 0xffffffffL;
+			if ("fmt ".equals(id)) {
+				if (size < 16)
+					throw new UnsupportedAudioFileException("invalid fmt chunk");
+				byte[] fmt = new byte[(int) size];
+				readFully(fmt, fmt.length);
+				int encoding = readShort(fmt, 0);
+				if (encoding != 1 && encoding != 0xfffe) //PCM and WAVE_FORMAT_EXTENSIBLE
+					throw new UnsupportedAudioFileException("unsupported WAV encoding: "
+					        + encoding);
+				int channels = readShort(fmt, 2);
+				int sampleRate = readInt(fmt, 4);
+				int bits = readShort(fmt, 14);
+				mFormat = new AudioFormat(sampleRate, bits, channels, bits > 8, false);
+				skip(size & 1); //chunks are word-aligned
+			} else if ("data".equals(id)) {
+				if (mFormat == null)
+					throw new UnsupportedAudioFileException("data chunk before fmt chunk");
+				mDataLength = (size == 0 || size >= UnknownLength ? -1 : size);
+				return;
+			} else {
+				skip(size + (size & 1));
+			}
+		}
+	}
+
+	public AudioFormat getFormat() {
+		return mFormat;
+	}
+
+	/**
+	 * @return the number of bytes of PCM announced by the header, or -1 if
+	 *         unknown
+	 */
+	public long getDataLength() {
+		return mDataLength;
+	}
+
+	/**
+	 * Read the PCM data until the end of the data chunk, or until the end of
+	 * the stream if the length is unknown. The last chunk may not be full, but
+	 * all the chunks contain whole frames. If an exception is thrown, the
+	 * chunks already allocated are released.
+	 */
+	public Collection<AudioBuffer> readAll(AudioBufferAllocator allocator)
+	        throws IOException, MemoryException {
+		List<AudioBuffer> result = new ArrayList<AudioBuffer>();
+		int frameSize = Math.max(1, mFormat.getFrameSize());
+		long remaining = (mDataLength == -1 ? Long.MAX_VALUE : mDataLength);
+		int chunkSize = InitialChunkSize;
+		try {
+			while (remaining > 0) {
+				int size;
+				if (mDataLength == -1) {
+					size = chunkSize;
+					chunkSize = Math.min(MaxChunkSize, 2 * chunkSize);
+				} else {
+					size = (int) Math.min(remaining, MaxChunkSize);
+				}
+				size -= size % frameSize;
+				AudioBuffer b = allocator.allocateBuffer(size);
+				b.size = 0;
+				result.add(b);
+				boolean end = false;
+				while (b.size < size) {
+					int ret = mIn.read(b.data, b.size, size - b.size);
+					if (ret == -1) {
+						end = true;
+						break;
+					}
+					b.size += ret;
+				}
+				b.size -= b.size % frameSize; //ignore the truncated frames
+				remaining = (end ? 0 : remaining - b.size);
+				if (b.size == 0) {
+					result.remove(result.size() - 1);
+					allocator.releaseBuffer(b);
+				} else if (end && b.size <= size / 2) {
+					AudioBuffer shrunk = allocator.allocateBuffer(b.size);
+					System.arraycopy(b.data, 0, shrunk.data, 0, b.size);
+					result.set(result.size() - 1, shrunk);
+					allocator.releaseBuffer(b);
+				}
+			}
+		} catch (IOException e) {
+			SoundUtil.cancelFootPrint(result, allocator);
+			throw e;
+		} catch (MemoryException e) {
+			SoundUtil.cancelFootPrint(result, allocator);
+			throw e;
+		}
+		return result;
+	}
+
+	private void readFully(byte[] b, int len) throws IOException {
+		int off = 0;
+		while (off < len) {
+			int ret = mIn.read(b, off, len - off);
+			if (ret == -1)
+				throw new EOFException("truncated WAV header");
+			off += ret;
+		}
+	}
+
+	private void skip(long n) throws IOException {
+		while (n > 0) {
+			if (mIn.read() == -1)
+				throw new EOFException("truncated WAV header");
+			long skipped = 1 + mIn.skip(n - 1);
+			n -= skipped;
+		}
+	}
+
+	private static String fourCC(byte[] b, int off) {
+		return new String(b, off, 4, StandardCharsets.US_ASCII);
+	}
+
+	private static int readShort(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16
+		        | (b[off + 3] & 0xff) << 24;
+	}
+}
@@ -0,0 +1,59 @@
+package org.daisy.pipeline.tts;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AudioBufferPoolTest {
+
+	@Test
+	public void roundUp() {
+		Assert.assertEquals(1024, AudioBufferPool.capacityFor(1));
+		Assert.assertEquals(1024, AudioBufferPool.capacityFor(1024));
+		Assert.assertEquals(2048, AudioBufferPool.capacityFor(1025));
+		Assert.assertEquals(4096, AudioBufferPool.capacityFor(2048 + 100));
+		Assert.assertEquals(50000000, AudioBufferPool.capacityFor(50000000));
+	}
+
+	@Test
+	public void reuse() {
+		AudioBufferPool pool = new AudioBufferPool(1048576);
+		byte[] first = pool.acquire(3000);
+		Assert.assertEquals(4096, first.length);
+		pool.release(first);
+		Assert.assertEquals(4096, pool.getFreeSize());
+
+		byte[] second = pool.acquire(2049);
+		Assert.assertSame(first, second);
+		Assert.assertEquals(0, pool.getFreeSize());
+		Assert.assertEquals(1, pool.getHits());
+		Assert.assertEquals(1, pool.getMisses());
+
+		//another class
+		byte[] third = pool.acquire(100);
+		Assert.assertNotSame(first, third);
+		Assert.assertEquals(2, pool.getMisses());
+	}
+
+	@Test
+	public void bounded() {
+		AudioBufferPool pool = new AudioBufferPool(8192);
+		pool.release(pool.acquire(4096));
+		pool.release(pool.acquire(4096));
+		pool.release(pool.acquire(4096)); //hit
+		byte[] a = pool.acquire(4096);
+		byte[] b = pool.acquire(4096);
+		byte[] c = pool.acquire(4096);
+		pool.release(a);
+		pool.release(b);
+		pool.release(c); //exceeds the max size
+		Assert.assertEquals(8192, pool.getFreeSize());
+	}
+
+	@Test
+	public void foreignArrays() {
+		AudioBufferPool pool = new AudioBufferPool(1048576);
+		pool.release(new byte[3000]); //not a power of two
+		pool.release(new byte[16]); //below the smallest class
+		Assert.assertEquals(0, pool.getFreeSize());
+	}
+}
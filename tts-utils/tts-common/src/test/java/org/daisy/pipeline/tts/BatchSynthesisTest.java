@@ -0,0 +1,229 @@
+package org.daisy.pipeline.tts;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+
+import net.sf.saxon.s9api.XdmNode;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferAllocator.MemoryException;
+import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
+import org.daisy.pipeline.tts.TTSService.Mark;
+import org.daisy.pipeline.tts.TTSService.SynthesisException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BatchSynthesisTest {
+
+	private static class CountingAllocator extends StraightBufferAllocator {
+		int allocated;
+
+		@Override
+		public AudioBuffer allocateBuffer(int size) throws MemoryException {
+			++allocated;
+			return super.allocateBuffer(size);
+		}
+
+		@Override
+		public void releaseBuffer(AudioBuffer b) {
+			--allocated;
+		}
+	}
+
+	/**
+	 * Engine returning as many bytes as there are characters in the sentence,
+	 * and failing on sentences starting with '!'.
+	 */
+	private static class OneByOneEngine extends TTSEngine {
+		int calls;
+
+		OneByOneEngine() {
+			super(null);
+		}
+
+		@Override
+		public Collection<AudioBuffer> synthesize(String sentence, XdmNode xmlSentence,
+		        Voice voice, TTSResource threadResources, List<Mark> marks,
+		        List<String> expectedMarks, AudioBufferAllocator bufferAllocator, boolean retry)
+		        throws SynthesisException, InterruptedException, MemoryException {
+			++calls;
+			if (sentence.startsWith("!"))
+				throw new SynthesisException("cannot speak " + sentence);
+			AudioBuffer b = bufferAllocator.allocateBuffer(sentence.length());
+			marks.add(new Mark(endingMark(), b.size));
+			return Collections.singletonList(b);
+		}
+
+		@Override
+		public AudioFormat getAudioOutputFormat() {
+			return new AudioFormat(8000, 8, 1, true, false);
+		}
+
+		@Override
+		public Collection<Voice> getAvailableVoices() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String endingMark() {
+			return "ending-mark";
+		}
+	}
+
+	/**
+	 * Engine synthesizing every batch in a single call, as engines taking the
+	 * concatenation of the sentences would do: one byte per character, in
+	 * buffers of 3 bytes, and one mark per '|' character.
+	 */
+	private static class ConcatenatingEngine extends OneByOneEngine {
+		boolean dropLastMark;
+
+		@Override
+		public List<Collection<AudioBuffer>> synthesizeBatch(List<String> sentences,
+		        List<XdmNode> xmlSentences, Voice voice, TTSResource threadResources,
+		        List<List<Mark>> marks, List<List<String>> expectedMarks,
+		        AudioBufferAllocator bufferAllocator, boolean retry) throws SynthesisException,
+		        InterruptedException, MemoryException {
+			++calls;
+			List<String> names = new ArrayList<String>();
+			for (List<String> expected : expectedMarks)
+				names.addAll(expected);
+			List<Mark> batchMarks = new ArrayList<Mark>();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (String sentence : sentences)
+				for (char c : sentence.toCharArray()) {
+					if (c == '|')
+						batchMarks.add(new Mark(names.get(batchMarks.size()), bytes.size()));
+					else
+						bytes.write(c);
+				}
+			if (dropLastMark)
+				batchMarks.remove(batchMarks.size() - 1);
+			byte[] data = bytes.toByteArray();
+			List<AudioBuffer> audio = new ArrayList<AudioBuffer>();
+			for (int k = 0; k < data.length; k += 3) {
+				AudioBuffer b = bufferAllocator.allocateBuffer(Math.min(3, data.length - k));
+				System.arraycopy(data, k, b.data, 0, b.size);
+				audio.add(b);
+			}
+			return splitBatch(audio, batchMarks, expectedMarks, marks, bufferAllocator);
+		}
+
+		@Override
+		public int maxBatchSize() {
+			return 8;
+		}
+	}
+
+	private static String toString(Collection<AudioBuffer> audio) {
+		StringBuilder sb = new StringBuilder();
+		for (AudioBuffer b : audio)
+			sb.append(new String(b.data, 0, b.size));
+		return sb.toString();
+	}
+
+	private static List<List<Mark>> emptyMarks(int n) {
+		List<List<Mark>> marks = new ArrayList<List<Mark>>();
+		for (int i = 0; i < n; ++i)
+			marks.add(new ArrayList<Mark>());
+		return marks;
+	}
+
+	private static List<List<String>> expectedMarks(int n) {
+		List<List<String>> expected = new ArrayList<List<String>>();
+		for (int i = 0; i < n; ++i)
+			expected.add(Collections.singletonList("ending-mark"));
+		return expected;
+	}
+
+	@Test
+	public void defaultBatch() throws Exception {
+		OneByOneEngine engine = new OneByOneEngine();
+		CountingAllocator allocator = new CountingAllocator();
+		List<String> sentences = Arrays.asList("a", "bbb", "cc");
+		List<List<Mark>> marks = emptyMarks(3);
+		List<Collection<AudioBuffer>> result = engine.synthesizeBatch(sentences, Arrays
+		        .asList((XdmNode) null, null, null), new Voice("v", "v"), new TTSResource(),
+		        marks, expectedMarks(3), allocator, false);
+		Assert.assertEquals(1, engine.maxBatchSize());
+		Assert.assertEquals(3, engine.calls);
+		Assert.assertEquals(3, result.size());
+		for (int i = 0; i < 3; ++i) {
+			Assert.assertEquals(sentences.get(i).length(), result.get(i).iterator().next().size);
+			Assert.assertEquals(1, marks.get(i).size());
+			Assert.assertEquals(sentences.get(i).length(), marks.get(i).get(0).offsetInAudio);
+		}
+		Assert.assertEquals(3, allocator.allocated);
+	}
+
+	@Test
+	public void failureReleasesBuffers() throws Exception {
+		OneByOneEngine engine = new OneByOneEngine();
+		CountingAllocator allocator = new CountingAllocator();
+		try {
+			engine.synthesizeBatch(Arrays.asList("a", "bb", "!c", "d"), Arrays.asList(
+			        (XdmNode) null, null, null, null), new Voice("v", "v"), new TTSResource(),
+			        emptyMarks(4), expectedMarks(4), allocator, false);
+			Assert.fail();
+		} catch (SynthesisException e) {
+			//expected
+		}
+		Assert.assertEquals(3, engine.calls);
+		Assert.assertEquals(0, allocator.allocated);
+	}
+
+	@Test
+	public void splitAtEndingMarks() throws Exception {
+		ConcatenatingEngine engine = new ConcatenatingEngine();
+		CountingAllocator allocator = new CountingAllocator();
+		List<List<String>> expected = expectedMarks(4);
+		expected.set(1, Arrays.asList("m1", "ending-mark"));
+		List<List<Mark>> marks = emptyMarks(4);
+		List<Collection<AudioBuffer>> result = engine.synthesizeBatch(Arrays.asList("ab|",
+		        "cd|efg|", "h|", "|"), Arrays.asList((XdmNode) null, null, null, null),
+		        new Voice("v", "v"), new TTSResource(), marks, expected, allocator, false);
+		Assert.assertEquals(1, engine.calls);
+		Assert.assertEquals(4, result.size());
+		Assert.assertEquals("ab", toString(result.get(0)));
+		Assert.assertEquals("cdefg", toString(result.get(1)));
+		Assert.assertEquals("h", toString(result.get(2)));
+		Assert.assertEquals("", toString(result.get(3)));
+
+		int[][] offsets = new int[][]{{2}, {2, 5}, {1}, {0}};
+		for (int i = 0; i < 4; ++i) {
+			Assert.assertEquals(expected.get(i).size(), marks.get(i).size());
+			for (int k = 0; k < offsets[i].length; ++k) {
+				Assert.assertEquals(expected.get(i).get(k), marks.get(i).get(k).name);
+				Assert.assertEquals(offsets[i][k], marks.get(i).get(k).offsetInAudio);
+			}
+		}
+
+		//the buffers straddling the ending marks have been replaced with their parts
+		int buffers = 0;
+		for (Collection<AudioBuffer> audio : result)
+			buffers += audio.size();
+		Assert.assertEquals(buffers, allocator.allocated);
+	}
+
+	@Test
+	public void missingMarkReleasesBuffers() throws Exception {
+		ConcatenatingEngine engine = new ConcatenatingEngine();
+		engine.dropLastMark = true;
+		CountingAllocator allocator = new CountingAllocator();
+		try {
+			engine.synthesizeBatch(Arrays.asList("ab|", "cde|"), Arrays.asList(
+			        (XdmNode) null, null), new Voice("v", "v"), new TTSResource(),
+			        emptyMarks(2), expectedMarks(2), allocator, false);
+			Assert.fail();
+		} catch (SynthesisException e) {
+			//expected
+		}
+		Assert.assertEquals(0, allocator.allocated);
+	}
+}
@@ -5,11 +5,18 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Collection;
 
+import net.sf.saxon.event.ProxyReceiver;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.expr.parser.Location;
+import net.sf.saxon.om.NodeName;
 import net.sf.saxon.s9api.Axis;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import net.sf.saxon.type.SchemaType;
 
 import org.custommonkey.xmlunit.Diff;
 import org.daisy.pipeline.tts.SSMLMarkSplitter.Chunk;
@@ -255,6 +262,73 @@ public class GenericMarkSplitterTest {
 		}
 	}
 
+	private static XdmNode nestedMarks(int numMarks) throws URISyntaxException {
+		TreeWriter source = newTreeWriter();
+		for (int i = 1; i <= numMarks; ++i) {
+			source.addStartElement(new QName(null, "a"));
+			source.addStartElement(new QName(null, "k"));
+			source.addText("text" + i);
+			source.addEndElement();
+			source.addStartElement(new QName(SsmlNs, "mark"));
+			source.addAttribute(new QName(null, "name"), "mark" + i);
+			source.addEndElement();
+			source.addEndElement();
+		}
+		source.addEndElement();
+		return source.getResult();
+	}
+
+	/**
+	 * Counts the elements and the text nodes copied into the chunks
+	 */
+	private static class CountingSplitter extends DefaultSSMLMarkSplitter {
+		int copies;
+
+		CountingSplitter() {
+			super(Proc);
+		}
+
+		@Override
+		Receiver newChunkReceiver(TinyBuilder builder) {
+			return new ProxyReceiver(super.newChunkReceiver(builder)) {
+				@Override
+				public void startElement(NodeName elemName, SchemaType typeCode,
+				        Location location, int properties) throws XPathException {
+					++copies;
+					super.startElement(elemName, typeCode, location, properties);
+				}
+
+				@Override
+				public void characters(CharSequence chars, Location locationId,
+				        int properties) throws XPathException {
+					++copies;
+					super.characters(chars, locationId, properties);
+				}
+			};
+		}
+	}
+
+	/**
+	 * @return the number of nodes copied when splitting @param numMarks nested
+	 *         marks
+	 */
+	private static int splitCopies(int numMarks) throws URISyntaxException {
+		CountingSplitter splitter = new CountingSplitter();
+		Assert.assertEquals(numMarks + 1, splitter.split(nestedMarks(numMarks)).size());
+		return splitter.copies;
+	}
+
+	@Test
+	public void splitScaling() throws URISyntaxException {
+		//the number of copies per mark must stay bounded when there are more
+		//marks, even when the marks are nested in elements. The time spent is
+		//measured by MarkSplitterScalingBenchmark.
+		int small = splitCopies(1000);
+		int large = splitCopies(10000);
+		Assert.assertTrue("copies: " + small + " with 1000 marks, " + large
+		        + " with 10000 marks", large <= 10 * small);
+	}
+
 	@Test
 	public void notInDocument() throws URISyntaxException, SaxonApiException, SAXException,
 	        IOException {
@@ -0,0 +1,181 @@
+package org.daisy.pipeline.tts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.daisy.pipeline.tts.LoadBalancer.Host;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LeastLoadedLoadBalancerTest {
+
+	private static void request(LoadBalancer lb, Host h, long millis, boolean success) {
+		lb.requestStarted(h);
+		lb.requestFinished(h, millis * 1000000, success);
+	}
+
+	@Test
+	public void leastLoaded() {
+		LeastLoadedLoadBalancer lb = new LeastLoadedLoadBalancer("a:1,b:2,c:3");
+		Host a = lb.selectHost();
+		Host b = lb.selectHost();
+		Host c = lb.selectHost();
+		Assert.assertNotSame(a, b);
+		Assert.assertNotSame(b, c);
+		Assert.assertNotSame(a, c);
+
+		lb.release(b);
+		Assert.assertSame(b, lb.selectHost());
+	}
+
+	@Test
+	public void fastestFirst() {
+		LeastLoadedLoadBalancer lb = new LeastLoadedLoadBalancer("a:1 b:2");
+		List<Host> hosts = new ArrayList<Host>(lb.getAllHosts());
+		request(lb, hosts.get(0), 400, true);
+		request(lb, hosts.get(1), 100, true);
+		//b can take up to 3 resources before being as loaded as a
+		for (int k = 0; k < 3; ++k)
+			Assert.assertSame(hosts.get(1), lb.selectHost());
+		Assert.assertSame(hosts.get(0), lb.selectHost());
+	}
+
+	@Test
+	public void circuitBreaker() throws InterruptedException {
+		LeastLoadedLoadBalancer lb = new LeastLoadedLoadBalancer("a:1 b:2", 200);
+		List<Host> hosts = new ArrayList<Host>(lb.getAllHosts());
+		Host a = hosts.get(0);
+		Host b = hosts.get(1);
+		request(lb, b, 1000, true); //b is much slower than a
+		request(lb, a, 10, true);
+		for (int k = 0; k < 3; ++k) {
+			Assert.assertTrue(lb.isAvailable(a));
+			request(lb, a, 10, false);
+		}
+		Assert.assertFalse(lb.isAvailable(a));
+		for (int k = 0; k < 5; ++k)
+			Assert.assertSame(b, lb.selectHost());
+
+		//probe after the cool-down period, which fails
+		Thread.sleep(250);
+		Assert.assertSame(a, lb.selectHost());
+		Assert.assertSame(b, lb.selectHost()); //only one probe at a time
+		request(lb, a, 10, false);
+		lb.release(a);
+		Assert.assertFalse(lb.isAvailable(a));
+
+		//the cool-down period is now twice as long
+		Thread.sleep(250);
+		Assert.assertSame(b, lb.selectHost());
+		Thread.sleep(250);
+		Assert.assertSame(a, lb.selectHost());
+		request(lb, a, 10, true);
+		Assert.assertTrue(lb.isAvailable(a));
+	}
+
+	@Test
+	public void recoveredHostGetsTrafficBack() throws InterruptedException {
+		LeastLoadedLoadBalancer lb = new LeastLoadedLoadBalancer("a:1 b:2", 200);
+		List<Host> hosts = new ArrayList<Host>(lb.getAllHosts());
+		Host a = hosts.get(0);
+		Host b = hosts.get(1);
+		request(lb, a, 10, true);
+		request(lb, b, 10, true);
+		for (int k = 0; k < 4; ++k)
+			lb.selectHost();
+		Assert.assertNull(lb.rebalance(a));
+		Assert.assertNull(lb.rebalance(b));
+
+		//the resources of a are moved to b, as done by the engines
+		for (int k = 0; k < 3; ++k)
+			request(lb, a, 10, false);
+		Assert.assertFalse(lb.isAvailable(a));
+		Assert.assertNull(lb.rebalance(a));
+		for (int k = 0; k < 2; ++k) {
+			lb.release(a);
+			Assert.assertSame(b, lb.selectHost());
+		}
+		Assert.assertNull(lb.rebalance(b));
+
+		//after the cool-down period, a resource of b is used as a probe
+		Thread.sleep(250);
+		Assert.assertSame(a, lb.rebalance(b));
+		Assert.assertNull(lb.rebalance(b)); //only one probe at a time
+		Assert.assertNull(lb.rebalance(a)); //the probe stays
+		request(lb, a, 10, true);
+		Assert.assertTrue(lb.isAvailable(a));
+
+		//once its error rate has decreased, a gets its share of the resources
+		for (int k = 0; k < 20; ++k)
+			request(lb, a, 10, true);
+		Assert.assertSame(a, lb.rebalance(b));
+		Assert.assertNull(lb.rebalance(b));
+		Assert.assertNull(lb.rebalance(a));
+		Assert.assertTrue(lb.getStatistics(), lb.getStatistics().matches(
+		        "a:1: closed, 2 resource\\(s\\).*; b:2: closed, 2 resource\\(s\\).*"));
+	}
+
+	@Test
+	public void abortedRequests() {
+		LeastLoadedLoadBalancer lb = new LeastLoadedLoadBalancer("a:1 b:2");
+		List<Host> hosts = new ArrayList<Host>(lb.getAllHosts());
+		Host a = hosts.get(0);
+		Host b = hosts.get(1);
+		request(lb, a, 100, true);
+		request(lb, b, 100, true);
+		for (int k = 0; k < 5; ++k) {
+			lb.requestStarted(a);
+			lb.requestAborted(a);
+		}
+		//neither failures nor latency samples, and no request left in progress
+		Assert.assertTrue(lb.isAvailable(a));
+		Assert.assertTrue(lb.getStatistics().startsWith(
+		        "a:1: closed, 0 resource(s), 1 request(s), 0 failure(s), latency: 100ms;"));
+		Assert.assertSame(a, lb.selectHost());
+		Assert.assertSame(b, lb.selectHost());
+	}
+
+	@Test
+	public void allFailing() {
+		LeastLoadedLoadBalancer lb = new LeastLoadedLoadBalancer("a:1", 60000);
+		Host a = lb.selectHost();
+		for (int k = 0; k < 3; ++k)
+			request(lb, a, 10, false);
+		Assert.assertFalse(lb.isAvailable(a));
+		Assert.assertSame(a, lb.selectHost());
+	}
+
+	@Test
+	public void concurrentDiscard() throws InterruptedException {
+		final LeastLoadedLoadBalancer lb = new LeastLoadedLoadBalancer("a:1,b:2,c:3,d:4");
+		final List<Host> hosts = new ArrayList<Host>(lb.getAllHosts());
+		Thread[] threads = new Thread[4];
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int k = 0; k < 10000; ++k) {
+							Host h = lb.selectHost();
+							request(lb, h, 1, true);
+							lb.release(h);
+						}
+					} catch (Throwable t) {
+						synchronized (errors) {
+							errors.add(t);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 1; i < hosts.size(); ++i)
+			lb.discard(hosts.get(i));
+		for (Thread t : threads)
+			t.join();
+		Assert.assertTrue(errors.isEmpty());
+		Assert.assertEquals(1, lb.getAllHosts().size());
+		Assert.assertSame(hosts.get(0), lb.selectHost());
+	}
+}
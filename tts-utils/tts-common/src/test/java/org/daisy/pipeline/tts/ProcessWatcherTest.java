@@ -0,0 +1,57 @@
+package org.daisy.pipeline.tts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProcessWatcherTest {
+
+	private static Process java(String... args) throws IOException {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator
+		        + "java");
+		for (String arg : args)
+			cmd.add(arg);
+		return new ProcessBuilder(cmd).redirectErrorStream(true)
+		        .redirectOutput(new File(System.getProperty("java.io.tmpdir"),
+		                "process-watcher-test.log")).start();
+	}
+
+	@Test
+	public void exitValues() throws IOException, InterruptedException, ExecutionException {
+		CompletableFuture<Integer> ok = ProcessWatcher.onExit(java("-version"));
+		CompletableFuture<Integer> ko = ProcessWatcher.onExit(java("-XX:+NoSuchOption"));
+		Assert.assertEquals(0, (int) ok.get());
+		Assert.assertTrue(ko.get() != 0);
+	}
+
+	@Test
+	public void manyProcesses() throws IOException, InterruptedException, ExecutionException {
+		List<Process> processes = new ArrayList<Process>();
+		List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < 8; ++i) {
+			Process p = java("-version");
+			processes.add(p);
+			futures.add(ProcessWatcher.onExit(p));
+		}
+		for (int i = 0; i < processes.size(); ++i) {
+			Assert.assertEquals(0, (int) futures.get(i).get());
+			Assert.assertFalse(processes.get(i).isAlive());
+		}
+	}
+
+	@Test
+	public void destroyed() throws IOException, InterruptedException, ExecutionException {
+		Process p = java("-version");
+		CompletableFuture<Integer> f = ProcessWatcher.onExit(p);
+		p.destroy();
+		f.get(); //must not hang
+		Assert.assertTrue(f.isDone());
+	}
+}
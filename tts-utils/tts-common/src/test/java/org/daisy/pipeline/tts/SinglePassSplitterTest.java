@@ -0,0 +1,123 @@
+package org.daisy.pipeline.tts;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.custommonkey.xmlunit.Diff;
+import org.daisy.pipeline.tts.SSMLMarkSplitter.Chunk;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * Runs the tests of StructuredMarkSplitterTest on SinglePassSSMLSplitter
+ */
+public class SinglePassSplitterTest extends StructuredMarkSplitterTest {
+
+	@Override
+	protected SSMLMarkSplitter newSplitter() {
+		return new SinglePassSSMLSplitter(Proc);
+	}
+
+	private static XdmNode markDenseSentence(int marks) throws SaxonApiException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<speak xmlns='" + SsmlNs + "'><s xml:lang='en'>");
+		for (int i = 0; i < marks; ++i) {
+			sb.append("<token>word" + i + "</token> <say-as interpret-as='characters'>w" + i
+			        + "</say-as>");
+			sb.append("<mark name='m" + i + "'/>");
+		}
+		sb.append("<token>last</token></s></speak>");
+		XdmNode doc = Proc.newDocumentBuilder().build(
+		        new StreamSource(new StringReader(sb.toString())));
+		XdmNode speak = (XdmNode) doc.axisIterator(Axis.CHILD).next();
+		return (XdmNode) speak.axisIterator(Axis.CHILD).next();
+	}
+
+	@Test
+	public void sameAsStructured() throws SaxonApiException, SAXException, IOException {
+		XdmNode sentence = markDenseSentence(50);
+		List<Chunk> expected = new ArrayList<Chunk>(new StructuredSSMLSplitter(Proc)
+		        .split(sentence));
+		List<Chunk> actual = new ArrayList<Chunk>(newSplitter().split(sentence));
+		Assert.assertEquals(51, actual.size());
+		Assert.assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			Assert.assertEquals(expected.get(i).leftMark(), actual.get(i).leftMark());
+			Assert.assertTrue(new Diff(expected.get(i).ssml().toString(), actual.get(i).ssml()
+			        .toString()).similar());
+		}
+	}
+
+	/**
+	 * Keeps the elements except the tokens, as well as their attributes
+	 */
+	private static class Adapter implements SSMLAdapter {
+		@Override
+		public String getHeader(String voiceName) {
+			return "<speak voice=\"" + voiceName + "\">";
+		}
+
+		@Override
+		public String getFooter(String voiceName, String endingMark) {
+			return "</speak>";
+		}
+
+		@Override
+		public QName adaptElement(QName element) {
+			return "token".equals(element.getLocalName()) ? null : element;
+		}
+
+		@Override
+		public String adaptText(String text) {
+			return text;
+		}
+
+		@Override
+		public QName adaptAttributeName(QName element, QName attr, String value) {
+			return attr;
+		}
+
+		@Override
+		public String adaptAttributeValue(QName element, QName attr, String value) {
+			return value;
+		}
+
+		@Override
+		public String getContentPrefix(QName element) {
+			return "";
+		}
+
+		@Override
+		public boolean useEmptyElementTag(QName element) {
+			return true;
+		}
+	}
+
+	@Test
+	public void serializedSameAsTrees() throws SaxonApiException {
+		XdmNode sentence = markDenseSentence(50);
+		SSMLAdapter adapter = new Adapter();
+		List<Chunk> trees = new ArrayList<Chunk>(newSplitter().split(sentence));
+		List<Chunk> serialized = new ArrayList<Chunk>(newSplitter().split(sentence, "v",
+		        adapter, null));
+		Assert.assertEquals(trees.size(), serialized.size());
+		for (int i = 0; i < trees.size(); ++i) {
+			Assert.assertEquals(trees.get(i).leftMark(), serialized.get(i).leftMark());
+			Assert.assertNull(serialized.get(i).ssml());
+			Assert.assertEquals(SSMLUtil.toString(trees.get(i).ssml(), "v", adapter, null),
+			        serialized.get(i).serialized());
+		}
+		Assert.assertEquals("<speak voice=\"v\"><s xmlns=\"" + SsmlNs
+		        + "\">last</s></speak>", serialized.get(50).serialized());
+	}
+}
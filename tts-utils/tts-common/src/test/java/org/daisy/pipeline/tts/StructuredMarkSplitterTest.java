@@ -21,9 +21,12 @@ import com.xmlcalabash.util.TreeWriter;
 
 public class StructuredMarkSplitterTest {
 	static Processor Proc = new Processor(false);
-	static SSMLMarkSplitter Splitter = new StructuredSSMLSplitter(Proc);
 	static String SsmlNs = "http://www.w3.org/2001/10/synthesis";
 
+	protected SSMLMarkSplitter newSplitter() {
+		return new StructuredSSMLSplitter(Proc);
+	}
+
 	private static TreeWriter newTreeWriter() throws URISyntaxException {
 		TreeWriter tw = new TreeWriter(Proc);
 		tw.startDocument(new URI("http://test"));
@@ -48,7 +51,7 @@ public class StructuredMarkSplitterTest {
 		tw.addEndElement();
 		tw.addEndElement();
 
-		Collection<Chunk> chunks = Splitter.split(getSentence(tw));
+		Collection<Chunk> chunks = newSplitter().split(getSentence(tw));
 
 		Assert.assertEquals("only one chunk must be found", 1, chunks.size());
 		
@@ -87,7 +90,7 @@ public class StructuredMarkSplitterTest {
 		chunk2.addText("text2");
 		chunk2.addEndElement();
 
-		Collection<Chunk> chunks = Splitter.split(getSentence(source));
+		Collection<Chunk> chunks = newSplitter().split(getSentence(source));
 
 		Chunk[] chunkarr = chunks.toArray(new Chunk[5]);
 
@@ -116,7 +119,7 @@ public class StructuredMarkSplitterTest {
 		TreeWriter chunk = newTreeWriter();
 		chunk.addEndElement();
 
-		Collection<Chunk> chunks = Splitter.split(getSentence(source));
+		Collection<Chunk> chunks = newSplitter().split(getSentence(source));
 
 		Chunk[] chunkarr = chunks.toArray(new Chunk[5]);
 
@@ -154,7 +157,7 @@ public class StructuredMarkSplitterTest {
 		TreeWriter chunk2 = newTreeWriter();
 		chunk2.addText("text2");
 
-		Collection<Chunk> chunks = Splitter.split(getSentence(source));
+		Collection<Chunk> chunks = newSplitter().split(getSentence(source));
 
 		Chunk[] chunkarr = chunks.toArray(new Chunk[5]);
 
@@ -212,7 +215,7 @@ public class StructuredMarkSplitterTest {
 		chunk3.addText("text3");
 		chunk3.addEndElement();
 
-		Collection<Chunk> chunks = Splitter.split(getSentence(source));
+		Collection<Chunk> chunks = newSplitter().split(getSentence(source));
 
 		Chunk[] chunkarr = chunks.toArray(new Chunk[5]);
 
@@ -238,6 +241,6 @@ public class StructuredMarkSplitterTest {
 		source.addEndElement();
 
 		//not raising any exception
-		Splitter.split((XdmNode) source.getResult().axisIterator(Axis.CHILD).next());
+		newSplitter().split((XdmNode) source.getResult().axisIterator(Axis.CHILD).next());
 	}
 }
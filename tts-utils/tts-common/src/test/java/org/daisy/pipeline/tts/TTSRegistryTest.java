@@ -445,4 +445,27 @@ public class TTSRegistryTest {
 		Assert.assertEquals(vendor, vendor);
 		Assert.assertEquals(voiceName, v.name);
 	}
+
+	@Test
+	public void memoizedResolution() throws MalformedURLException {
+		List<VoiceInfo> extraVoices = new ArrayList<VoiceInfo>();
+		String adult = registerVoice("vendor", "adult", "en", "male-adult", 10, extraVoices);
+		String child = registerVoice("vendor", "child", "en", "male-child", 5, extraVoices);
+		VoiceManager vm = initVoiceManager(extraVoices, adult, child);
+
+		boolean[] exactMatch = new boolean[1];
+		Voice v = vm.resolveVoice(null, null, "en", "male", "10", exactMatch);
+		Assert.assertTrue(exactMatch[0]);
+		Assert.assertEquals("child", v.name);
+
+		exactMatch[0] = false;
+		Assert.assertSame(v, vm.resolveVoice(null, null, "en", "male", "10", exactMatch));
+		Assert.assertTrue(exactMatch[0]);
+
+		v = vm.resolveVoice(null, null, "en", "male", null, exactMatch);
+		Assert.assertEquals("adult", v.name);
+		Assert.assertNull(vm.resolveVoice(null, null, "xx-unknown", null, null, exactMatch));
+		Assert.assertTrue(vm.getResolutionStatistics().startsWith(
+		        "Voice resolution: 1 hit(s), 3 miss(es)"));
+	}
 }
@@ -0,0 +1,129 @@
+package org.daisy.pipeline.tts;
+
+import org.daisy.pipeline.tts.TTSTimeout.ThreadFreeInterrupter;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimeoutWheelTest {
+
+	private static class Job extends Thread implements ThreadFreeInterrupter {
+
+		public volatile boolean hardInterrupted = false;
+		public volatile boolean softInterrupted = false;
+		private long mFirstWait;
+		private long mSecondWait;
+
+		public Job(long firstWait, long secondWait) {
+			mFirstWait = firstWait;
+			mSecondWait = secondWait;
+		}
+
+		@Override
+		public void threadFreeInterrupt() {
+			hardInterrupted = true;
+			this.interrupt();
+		}
+
+		@Override
+		public void run() {
+			try {
+				Thread.sleep(mFirstWait);
+			} catch (InterruptedException e) {
+				try {
+					Thread.sleep(mSecondWait);
+				} catch (InterruptedException e2) {
+					return;
+				}
+				softInterrupted = true;
+			}
+			return;
+		}
+	}
+
+	private static void run(Thread t) {
+		t.start();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Assert.fail("the test thread must not be interrupted");
+		}
+	}
+
+	@Test
+	public void noInterruptNeeded() {
+		TTSTimeoutWheel.Timeout timeout = TTSTimeoutWheel.newTimeout();
+		for (int k = 0; k < 10; ++k) {
+			Job job = new Job(100, 0);
+			timeout.enable(job, job, 1);
+			run(job);
+			timeout.disable();
+			Assert.assertFalse(job.hardInterrupted);
+			Assert.assertFalse(job.softInterrupted);
+		}
+		timeout.close();
+	}
+
+	@Test
+	public void softInterruption() {
+		TTSTimeoutWheel.Timeout timeout = TTSTimeoutWheel.newTimeout();
+		for (int k = 0; k < 4; ++k) {
+			Job job = new Job(Long.MAX_VALUE, 0);
+			timeout.enable(job, job, 1);
+			run(job);
+			timeout.disable();
+			Assert.assertFalse(job.hardInterrupted);
+			Assert.assertTrue(job.softInterrupted);
+		}
+		timeout.close();
+	}
+
+	@Test
+	public void hardInterruption() {
+		TTSTimeoutWheel.Timeout timeout = TTSTimeoutWheel.newTimeout();
+		for (int k = 0; k < 4; ++k) {
+			Job job = new Job(Long.MAX_VALUE, Long.MAX_VALUE);
+			timeout.enable(job, job, 1);
+			run(job);
+			timeout.disable();
+			Assert.assertTrue(job.hardInterrupted);
+		}
+		timeout.close();
+	}
+
+	@Test
+	public void concurrentTimeouts() {
+		//timeouts of different durations share the same wheel
+		Job[] jobs = new Job[20];
+		TTSTimeoutWheel.Timeout[] timeouts = new TTSTimeoutWheel.Timeout[jobs.length];
+		for (int k = 0; k < jobs.length; ++k) {
+			jobs[k] = new Job(k % 2 == 0 ? Long.MAX_VALUE : 100, 0);
+			timeouts[k] = TTSTimeoutWheel.newTimeout();
+			timeouts[k].enable(jobs[k], jobs[k], 1 + k % 3);
+			jobs[k].start();
+		}
+		for (int k = 0; k < jobs.length; ++k) {
+			try {
+				jobs[k].join();
+			} catch (InterruptedException e) {
+				Assert.fail("the test thread must not be interrupted");
+			}
+			//the timeouts are disabled in order, possibly after the hard interruption
+			//delay, so only the soft interruptions are checked
+			timeouts[k].disable();
+			Assert.assertEquals(k % 2 == 0, jobs[k].softInterrupted);
+		}
+	}
+
+	@Test
+	public void noLateInterrupt() throws InterruptedException {
+		//the current thread must not be interrupted once the timeout is disabled,
+		//even if it was armed again and again
+		TTSTimeoutWheel.Timeout timeout = TTSTimeoutWheel.newTimeout();
+		for (int k = 0; k < 100000; ++k) {
+			timeout.enableForCurrentThread(1);
+			timeout.disable();
+		}
+		Thread.sleep(1500);
+		Assert.assertFalse(Thread.interrupted());
+	}
+}
@@ -0,0 +1,155 @@
+package org.daisy.pipeline.tts;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.sound.sampled.AudioFormat;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
+import org.daisy.pipeline.tts.TTSService.Mark;
+import org.daisy.pipeline.tts.TTSService.SynthesisException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VoiceInventoryTest {
+
+	private static final String TestProperty = "org.daisy.pipeline.tts.inventorytest";
+
+	/**
+	 * Service counting the engines it creates, whose engines have a single
+	 * voice
+	 */
+	private static class CountingService extends AbstractTTSService {
+		private String mName;
+		volatile int engines;
+		volatile Map<String, String> params; //of the last engine
+
+		CountingService(String name) {
+			mName = name;
+		}
+
+		@Override
+		public TTSEngine newEngine(Map<String, String> params) throws SynthesisException,
+		        InterruptedException {
+			++engines;
+			this.params = params;
+			return new TTSEngine(this) {
+				@Override
+				public AudioFormat getAudioOutputFormat() {
+					return null;
+				}
+
+				@Override
+				public Collection<Voice> getAvailableVoices() {
+					return Collections.singletonList(new Voice(mName, "voice"));
+				}
+
+				@Override
+				public Collection<AudioBuffer> synthesize(String sentence, XdmNode xmlSentence,
+				        Voice voice, TTSResource threadResources, List<Mark> marks,
+				        List<String> expectedMarks, AudioBufferAllocator bufferAllocator,
+				        boolean retry) {
+					return null;
+				}
+			};
+		}
+
+		@Override
+		public String getName() {
+			return mName;
+		}
+	}
+
+	@Test
+	public void servedFromInventory() {
+		TTSRegistry registry = new TTSRegistry();
+		CountingService a = new CountingService("a");
+		CountingService b = new CountingService("b");
+		registry.addTTS(a);
+		registry.addTTS(b);
+
+		Processor proc = new Processor(false);
+		Collection<Voice> voices = registry.getAllAvaibleVoices(proc);
+		Assert.assertEquals(Arrays.asList(new Voice("a", "voice"), new Voice("b", "voice")),
+		        voices);
+		Assert.assertSame(voices, registry.getAllAvaibleVoices(proc));
+		Assert.assertEquals(1, a.engines);
+		Assert.assertEquals(1, b.engines);
+	}
+
+	@Test
+	public void addAndRemove() throws InterruptedException {
+		TTSRegistry registry = new TTSRegistry();
+		CountingService a = new CountingService("a");
+		registry.addTTS(a);
+		Processor proc = new Processor(false);
+		Assert.assertEquals(1, registry.getAllAvaibleVoices(proc).size());
+
+		registry.removeTTS(a);
+		Assert.assertTrue(registry.getAllAvaibleVoices(proc).isEmpty());
+
+		//the voices of a new service are listed in the background
+		CountingService b = new CountingService("b");
+		registry.addTTS(b);
+		for (int k = 0; k < 100 && registry.getAllAvaibleVoices(proc).isEmpty(); ++k)
+			Thread.sleep(20);
+		Assert.assertEquals(Collections.singletonList(new Voice("b", "voice")), registry
+		        .getAllAvaibleVoices(proc));
+	}
+
+	@Test
+	public void periodicRefresh() throws InterruptedException {
+		System.setProperty("org.daisy.pipeline.tts.voices.refresh", "1");
+		TTSRegistry registry = new TTSRegistry();
+		try {
+			CountingService a = new CountingService("a");
+			registry.addTTS(a);
+			Processor proc = new Processor(false);
+			Assert.assertEquals(1, registry.getAllAvaibleVoices(proc).size());
+			Assert.assertNull(a.params.get(TestProperty));
+
+			//the properties are read again
+			System.setProperty(TestProperty, "changed");
+			for (int k = 0; k < 150 && !a.params.containsKey(TestProperty); ++k)
+				Thread.sleep(20);
+			Assert.assertEquals("changed", a.params.get(TestProperty));
+			Assert.assertNotNull(registry.getCachedVoices(a, a.params));
+
+			//no more refreshes once deactivated
+			registry.deactivate();
+			int engines = a.engines;
+			Thread.sleep(1500);
+			Assert.assertEquals(engines, a.engines);
+			registry.addTTS(new CountingService("b"));
+		} finally {
+			registry.deactivate();
+			System.clearProperty("org.daisy.pipeline.tts.voices.refresh");
+			System.clearProperty(TestProperty);
+		}
+	}
+
+	@Test
+	public void invalidRefreshPeriod() throws InterruptedException {
+		System.setProperty("org.daisy.pipeline.tts.voices.refresh", "ten");
+		TTSRegistry registry = new TTSRegistry();
+		try {
+			Processor proc = new Processor(false);
+			Assert.assertTrue(registry.getAllAvaibleVoices(proc).isEmpty());
+			//the refresher has been started anyway
+			registry.addTTS(new CountingService("a"));
+			for (int k = 0; k < 100 && registry.getAllAvaibleVoices(proc).isEmpty(); ++k)
+				Thread.sleep(20);
+			Assert.assertEquals(1, registry.getAllAvaibleVoices(proc).size());
+		} finally {
+			registry.deactivate();
+			System.clearProperty("org.daisy.pipeline.tts.voices.refresh");
+		}
+	}
+}
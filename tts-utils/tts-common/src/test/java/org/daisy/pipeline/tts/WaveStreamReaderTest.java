@@ -0,0 +1,102 @@
+package org.daisy.pipeline.tts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WaveStreamReaderTest {
+
+	private static final AudioFormat Format = new AudioFormat(22050, 16, 1, true, false);
+
+	private static byte[] pcm(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; ++i)
+			data[i] = (byte) (i * 7);
+		return data;
+	}
+
+	private static byte[] wav(byte[] pcm) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), Format,
+		        pcm.length / Format.getFrameSize()), AudioFileFormat.Type.WAVE, out);
+		return out.toByteArray();
+	}
+
+	private static void setInt(byte[] b, int off, int val) {
+		for (int i = 0; i < 4; ++i)
+			b[off + i] = (byte) (val >> (8 * i));
+	}
+
+	private static byte[] concat(Collection<AudioBuffer> buffers) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (AudioBuffer b : buffers)
+			out.write(b.data, 0, b.size);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void knownLength() throws IOException, UnsupportedAudioFileException,
+	        AudioBufferAllocator.MemoryException {
+		byte[] data = pcm(300000);
+		WaveStreamReader reader = new WaveStreamReader(new ByteArrayInputStream(wav(data)));
+		Assert.assertTrue(Format.matches(reader.getFormat()));
+		Assert.assertEquals(data.length, reader.getDataLength());
+		Collection<AudioBuffer> buffers = reader.readAll(new StraightBufferAllocator());
+		Assert.assertEquals(1, buffers.size());
+		Assert.assertArrayEquals(data, concat(buffers));
+	}
+
+	@Test
+	public void unknownLength() throws IOException, UnsupportedAudioFileException,
+	        AudioBufferAllocator.MemoryException {
+		//header as written by eSpeak on its standard output
+		byte[] data = pcm(300001); //with a truncated frame
+		byte[] wav = wav(data);
+		setInt(wav, 4, 0x7ffff024);
+		setInt(wav, 40, 0x7ffff000);
+		WaveStreamReader reader = new WaveStreamReader(new ByteArrayInputStream(wav));
+		Assert.assertEquals(-1, reader.getDataLength());
+		Collection<AudioBuffer> buffers = reader.readAll(new StraightBufferAllocator());
+		//64KB + 128KB + 256KB chunks, the last one being shrunk
+		Assert.assertEquals(3, buffers.size());
+		for (AudioBuffer b : buffers)
+			Assert.assertEquals(b.size, b.data.length);
+		byte[] expected = new byte[300000];
+		System.arraycopy(data, 0, expected, 0, expected.length);
+		Assert.assertArrayEquals(expected, concat(buffers));
+	}
+
+	@Test
+	public void extraChunks() throws IOException, UnsupportedAudioFileException,
+	        AudioBufferAllocator.MemoryException {
+		byte[] data = pcm(1000);
+		byte[] wav = wav(data);
+		//insert a LIST chunk of odd size between the fmt chunk and the data chunk
+		byte[] list = new byte[8 + 3 + 1];
+		list[0] = 'L'; list[1] = 'I'; list[2] = 'S'; list[3] = 'T';
+		setInt(list, 4, 3);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(wav, 0, 36);
+		out.write(list);
+		out.write(wav, 36, wav.length - 36);
+		WaveStreamReader reader = new WaveStreamReader(new ByteArrayInputStream(out
+		        .toByteArray()));
+		Assert.assertArrayEquals(data, concat(reader.readAll(new StraightBufferAllocator())));
+	}
+
+	@Test(expected = UnsupportedAudioFileException.class)
+	public void notWave() throws IOException, UnsupportedAudioFileException {
+		new WaveStreamReader(new ByteArrayInputStream(new byte[64]));
+	}
+}
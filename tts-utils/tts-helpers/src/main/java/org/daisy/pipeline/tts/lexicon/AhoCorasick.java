@@ -0,0 +1,120 @@
+package org.daisy.pipeline.tts.lexicon;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton finding in a single pass over a text all the patterns
+ * it contains. Every pattern is associated with an integer value (several
+ * patterns can share the same value and the same pattern can be added with
+ * several values). The patterns are matched char by char (UTF-16 code units).
+ *
+ * Patterns must all be added before the first call to search().
+ */
+class AhoCorasick {
+
+	private static class Node {
+		char[] keys = new char[0]; //sorted
+		Node[] children = new Node[0];
+		int[] values = new int[0];
+		Node fail;
+		Node output; //closest node along the failure links that has values
+
+		Node child(char c) {
+			int i = Arrays.binarySearch(keys, c);
+			return i < 0 ? null : children[i];
+		}
+
+		Node addChild(char c) {
+			int i = Arrays.binarySearch(keys, c);
+			if (i >= 0)
+				return children[i];
+			i = -i - 1;
+			Node n = new Node();
+			char[] newKeys = new char[keys.length + 1];
+			Node[] newChildren = new Node[keys.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, i);
+			System.arraycopy(children, 0, newChildren, 0, i);
+			newKeys[i] = c;
+			newChildren[i] = n;
+			System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+			System.arraycopy(children, i, newChildren, i + 1, keys.length - i);
+			keys = newKeys;
+			children = newChildren;
+			return n;
+		}
+	}
+
+	private Node mRoot = new Node();
+	private volatile boolean mBuilt = false;
+	private int mSize = 0;
+
+	/**
+	 * @param pattern must not be empty
+	 */
+	void add(String pattern, int value) {
+		if (mBuilt)
+			throw new IllegalStateException("patterns added after the first search");
+		Node n = mRoot;
+		for (int i = 0; i < pattern.length(); ++i)
+			n = n.addChild(pattern.charAt(i));
+		n.values = Arrays.copyOf(n.values, n.values.length + 1);
+		n.values[n.values.length - 1] = value;
+		++mSize;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * Set in @param values the value of every pattern that occurs in @param
+	 * text.
+	 */
+	void search(CharSequence text, BitSet values) {
+		if (!mBuilt)
+			build();
+		Node n = mRoot;
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+			Node next = n.child(c);
+			while (next == null && n != mRoot) {
+				n = n.fail;
+				next = n.child(c);
+			}
+			n = (next == null ? mRoot : next);
+			for (Node o = (n.values.length > 0 ? n : n.output); o != null; o = o.output)
+				for (int v : o.values)
+					values.set(v);
+		}
+	}
+
+	/**
+	 * Computes the failure links breadth-first.
+	 */
+	private synchronized void build() {
+		if (mBuilt)
+			return;
+		Queue<Node> queue = new ArrayDeque<Node>();
+		for (Node child : mRoot.children) {
+			child.fail = mRoot;
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			Node n = queue.poll();
+			for (int k = 0; k < n.keys.length; ++k) {
+				Node child = n.children[k];
+				Node f = n.fail;
+				while (f != mRoot && f.child(n.keys[k]) == null)
+					f = f.fail;
+				Node target = f.child(n.keys[k]);
+				child.fail = (target == null || target == child) ? mRoot : target;
+				child.output = (child.fail.values.length > 0 ? child.fail : child.fail.output);
+				queue.add(child);
+			}
+		}
+		mBuilt = true;
+	}
+}
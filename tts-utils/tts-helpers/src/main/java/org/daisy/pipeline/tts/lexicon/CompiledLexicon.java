@@ -0,0 +1,207 @@
+package org.daisy.pipeline.tts.lexicon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.saxon.regex.ARegularExpression;
+import net.sf.saxon.regex.RegularExpression;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Regex lexemes of a single PLS lexicon, normalized the same way as
+ * reorganize-lexicons.xsl does (grouped by language, aliases apart from
+ * phonemes, lookaheads anchored) and compiled. The non-regex lexemes are
+ * ignored.
+ *
+ * Instances are immutable and can be shared by several LexiconMatchers.
+ */
+public class CompiledLexicon {
+
+	private static final String PlsNs = "http://www.w3.org/2005/01/pronunciation-lexicon";
+	private static final QName LexemeTag = new QName(PlsNs, "lexeme");
+	private static final QName GraphemeTag = new QName(PlsNs, "grapheme");
+	private static final QName AliasTag = new QName(PlsNs, "alias");
+	private static final QName PhonemeTag = new QName(PlsNs, "phoneme");
+	private static final QName LangAttr = new QName("xml", "http://www.w3.org/XML/1998/namespace",
+	        "lang");
+	private static final QName RegexAttr = new QName("regex");
+	private static final QName PositiveLookaheadAttr = new QName("positive-lookahead");
+	private static final QName NegativeLookaheadAttr = new QName("negative-lookahead");
+
+	//rough estimates of the memory used by a lexeme, in bytes
+	private static final int EntrySize = 128;
+	private static final int RegexSize = 512;
+	private static final int RegexCharSize = 64;
+
+	private static Logger ServerLogger = LoggerFactory.getLogger(CompiledLexicon.class);
+
+	static class Entry {
+		String grapheme;
+		boolean literal; //the grapheme is not a regex
+		RegularExpression regex; //null if not needed
+		String alias; //null for phonemes
+		boolean literalAlias; //the alias has no group reference
+		String phoneme;
+		RegularExpression positiveLookahead;
+		RegularExpression negativeLookahead;
+
+		boolean hasLookahead() {
+			return positiveLookahead != null || negativeLookahead != null;
+		}
+	}
+
+	private Map<String, List<Entry>> mAliases = new HashMap<String, List<Entry>>();
+	private Map<String, List<Entry>> mPhonemes = new HashMap<String, List<Entry>>();
+	private long mMemorySize = 0;
+
+	/**
+	 * @param lexicon is a PLS document. Lexemes whose regexes cannot be
+	 *            compiled are ignored.
+	 */
+	public CompiledLexicon(XdmNode lexicon) {
+		XdmNode root = lexicon;
+		if (root.getNodeKind() == XdmNodeKind.DOCUMENT)
+			root = getChild(root, null);
+		if (root == null)
+			return;
+		String rootLang = root.getAttributeValue(LangAttr);
+		XdmSequenceIterator it = root.axisIterator(Axis.CHILD, LexemeTag);
+		while (it.hasNext()) {
+			XdmNode lexeme = (XdmNode) it.next();
+			if (!"true".equals(lexeme.getAttributeValue(RegexAttr)))
+				continue;
+			String lang = lexeme.getAttributeValue(LangAttr);
+			if (lang == null)
+				lang = (rootLang == null ? "" : rootLang);
+			boolean isAlias = getChild(lexeme, AliasTag) != null;
+			Entry e = compileLexeme(lexeme, isAlias);
+			if (e == null)
+				continue;
+			Map<String, List<Entry>> dest = isAlias ? mAliases : mPhonemes;
+			List<Entry> entries = dest.get(lang);
+			if (entries == null) {
+				entries = new ArrayList<Entry>();
+				dest.put(lang, entries);
+			}
+			entries.add(e);
+			mMemorySize += memorySize(e);
+		}
+	}
+
+	/**
+	 * @return a rough estimate of the memory used by the compiled lexemes, in
+	 *         bytes
+	 */
+	public long getMemorySize() {
+		return mMemorySize;
+	}
+
+	List<Entry> getAliases(String lang) {
+		List<Entry> entries = mAliases.get(lang);
+		return entries == null ? Collections.<Entry> emptyList() : entries;
+	}
+
+	List<Entry> getPhonemes(String lang) {
+		List<Entry> entries = mPhonemes.get(lang);
+		return entries == null ? Collections.<Entry> emptyList() : entries;
+	}
+
+	Iterable<String> getLanguages() {
+		List<String> langs = new ArrayList<String>(mAliases.keySet());
+		for (String lang : mPhonemes.keySet())
+			if (!mAliases.containsKey(lang))
+				langs.add(lang);
+		return langs;
+	}
+
+	private static long memorySize(Entry e) {
+		long size = EntrySize + 2 * e.grapheme.length();
+		if (e.alias != null)
+			size += 2 * e.alias.length();
+		if (e.phoneme != null)
+			size += 2 * e.phoneme.length();
+		if (e.regex != null)
+			size += RegexSize + RegexCharSize * e.grapheme.length();
+		if (e.hasLookahead())
+			size += 2 * RegexSize;
+		return size;
+	}
+
+	private static Entry compileLexeme(XdmNode lexeme, boolean isAlias) {
+		XdmNode grapheme = getChild(lexeme, GraphemeTag);
+		if (grapheme == null)
+			return null;
+		Entry e = new Entry();
+		e.grapheme = grapheme.getStringValue();
+		e.literal = !e.grapheme.isEmpty() && LexiconMatcher.isLiteral(e.grapheme);
+		try {
+			if (isAlias) {
+				e.alias = getChild(lexeme, AliasTag).getStringValue();
+				e.literalAlias = e.alias.indexOf('$') < 0 && e.alias.indexOf('\\') < 0;
+				if (!e.literal || !e.literalAlias) {
+					e.regex = compile(e.grapheme);
+					if (e.regex.matches("")) {
+						//replace() would raise FORX0003
+						ServerLogger.warn("ignoring the alias of lexeme '" + e.grapheme
+						        + "' because its grapheme matches the empty string");
+						return null;
+					}
+				}
+			} else {
+				StringBuilder ph = new StringBuilder();
+				XdmSequenceIterator it = lexeme.axisIterator(Axis.CHILD, PhonemeTag);
+				while (it.hasNext()) {
+					if (ph.length() > 0)
+						ph.append(' ');
+					ph.append(((XdmNode) it.next()).getStringValue());
+				}
+				e.phoneme = ph.toString();
+				if (!e.literal)
+					e.regex = compile(e.grapheme);
+			}
+			String positive = grapheme.getAttributeValue(PositiveLookaheadAttr);
+			if (positive != null)
+				e.positiveLookahead = compile(anchor(positive));
+			String negative = grapheme.getAttributeValue(NegativeLookaheadAttr);
+			if (negative != null)
+				e.negativeLookahead = compile(anchor(negative));
+		} catch (XPathException ex) {
+			ServerLogger.warn("ignoring lexeme '" + e.grapheme + "': " + ex.getMessage());
+			return null;
+		}
+		return e;
+	}
+
+	/**
+	 * The lookaheads must match at the start of the following text
+	 */
+	private static String anchor(String lookahead) {
+		return lookahead.startsWith("^") ? lookahead : "^" + lookahead;
+	}
+
+	private static RegularExpression compile(String regex) throws XPathException {
+		return new ARegularExpression(regex, "", "XP30", new ArrayList<String>());
+	}
+
+	private static XdmNode getChild(XdmNode node, QName name) {
+		XdmSequenceIterator it = name == null ? node.axisIterator(Axis.CHILD) : node
+		        .axisIterator(Axis.CHILD, name);
+		while (it.hasNext()) {
+			XdmNode child = (XdmNode) it.next();
+			if (child.getNodeKind() == XdmNodeKind.ELEMENT)
+				return child;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,148 @@
+package org.daisy.pipeline.tts.lexicon;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Keeps the lexicons compiled by the previous jobs, so that the lexicons used
+ * by every job (e.g. the builtin ones and the ones of the TTS configuration)
+ * are only compiled once. The lexicons are identified by their base URI and a
+ * hash of their content, so a lexicon that has changed is compiled again.
+ *
+ * The least recently used lexicons are evicted once the estimated memory
+ * footprint of the cache exceeds org.daisy.pipeline.tts.lexicons.cache.maxsize
+ * (in Mb).
+ */
+@Component(
+	name = "tts-lexicon-cache",
+	service = { LexiconCache.class }
+)
+public class LexiconCache {
+
+	private Logger ServerLogger = LoggerFactory.getLogger(LexiconCache.class);
+	private long mMaxSize; //in bytes
+	private long mSize = 0;
+	private Map<String, CompiledLexicon> mLexicons = new LinkedHashMap<String, CompiledLexicon>(
+	        16, 0.75f, true); //in access order
+
+	public LexiconCache() {
+		long maxSize = 32; //in Mb
+		String maxSizeProp = System.getProperty("org.daisy.pipeline.tts.lexicons.cache.maxsize");
+		if (maxSizeProp != null)
+			maxSize = Long.valueOf(maxSizeProp);
+		mMaxSize = maxSize * 1048576;
+	}
+
+	/**
+	 * @param lexicons are PLS documents, in order of priority
+	 */
+	public LexiconMatcher getMatcher(Iterable<XdmNode> lexicons) {
+		List<CompiledLexicon> compiled = new ArrayList<CompiledLexicon>();
+		for (XdmNode lexicon : lexicons)
+			compiled.add(get(lexicon));
+		return new LexiconMatcher(compiled);
+	}
+
+	/**
+	 * @param lexicon is a PLS document
+	 * @return the compiled lexicon, compiled by a previous call if the same
+	 *         lexicon has been passed already
+	 */
+	public CompiledLexicon get(XdmNode lexicon) {
+		String key = (lexicon.getBaseURI() == null ? "" : lexicon.getBaseURI().toString())
+		        + " " + hash(lexicon);
+		synchronized (mLexicons) {
+			CompiledLexicon compiled = mLexicons.get(key);
+			if (compiled != null)
+				return compiled;
+		}
+		CompiledLexicon compiled = new CompiledLexicon(lexicon);
+		ServerLogger.debug("lexicon " + lexicon.getBaseURI() + " compiled ("
+		        + compiled.getMemorySize() + " bytes)");
+		if (compiled.getMemorySize() > mMaxSize)
+			return compiled;
+		synchronized (mLexicons) {
+			CompiledLexicon previous = mLexicons.put(key, compiled);
+			if (previous != null)
+				mSize -= previous.getMemorySize();
+			mSize += compiled.getMemorySize();
+			Iterator<CompiledLexicon> it = mLexicons.values().iterator();
+			while (mSize > mMaxSize && it.hasNext()) {
+				CompiledLexicon eldest = it.next();
+				if (eldest == compiled)
+					continue;
+				mSize -= eldest.getMemorySize();
+				it.remove();
+			}
+		}
+		return compiled;
+	}
+
+	int size() {
+		synchronized (mLexicons) {
+			return mLexicons.size();
+		}
+	}
+
+	/**
+	 * @return a SHA-1 of the elements, attributes and text nodes of @param
+	 *         node
+	 */
+	static String hash(XdmNode node) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e); //every JVM supports SHA-1
+		}
+		hash(node, digest);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest())
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	private static void hash(XdmNode node, MessageDigest digest) {
+		XdmNodeKind kind = node.getNodeKind();
+		if (kind == XdmNodeKind.TEXT) {
+			update(digest, "T", node.getStringValue());
+			return;
+		}
+		if (kind == XdmNodeKind.ELEMENT) {
+			update(digest, "E", node.getNodeName().getClarkName());
+			XdmSequenceIterator attrs = node.axisIterator(Axis.ATTRIBUTE);
+			while (attrs.hasNext()) {
+				XdmNode attr = (XdmNode) attrs.next();
+				update(digest, "A", attr.getNodeName().getClarkName());
+				update(digest, "V", attr.getStringValue());
+			}
+		} else if (kind != XdmNodeKind.DOCUMENT)
+			return; //comments and processing instructions
+		XdmSequenceIterator children = node.axisIterator(Axis.CHILD);
+		while (children.hasNext())
+			hash((XdmNode) children.next(), digest);
+		update(digest, "/", "");
+	}
+
+	private static void update(MessageDigest digest, String tag, String value) {
+		digest.update(tag.getBytes(StandardCharsets.UTF_8));
+		digest.update(value.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+}
@@ -0,0 +1,334 @@
+package org.daisy.pipeline.tts.lexicon;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+
+import org.daisy.pipeline.tts.lexicon.CompiledLexicon.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Matcher of the regex lexemes of a list of PLS lexicons, which avoids
+ * evaluating every lexeme against every token.
+ *
+ * For each language, the lexemes are indexed by a literal string that every
+ * matching token must contain: the grapheme itself if it is not a regex, or the
+ * longest literal factor required by the regex otherwise. All the literals are
+ * searched for at once with an Aho-Corasick automaton, so that only the lexemes
+ * whose literal occurs in the token are actually evaluated, with Saxon's regex
+ * engine for the XPath semantics of matches() and replace(). The regexes from
+ * which no literal can be extracted are evaluated for every token.
+ *
+ * The choice among the matching lexemes is the same as in the former
+ * regex-pls-to-ssml.xsl: the aliases come before the phonemes, the first lexeme
+ * without lookahead wins and, if all the matching lexemes have a lookahead, the
+ * first one whose lookahead constraints are satisfied wins.
+ *
+ * Instances are immutable and thread-safe.
+ */
+public class LexiconMatcher {
+
+	private static final String RegexMetaChars = "\\.^$?*+{}()|[]";
+	private static final String EscapedLiterals = "nrt\\|.?*+(){}-[]^$";
+
+	private static Logger ServerLogger = LoggerFactory.getLogger(LexiconMatcher.class);
+
+	/**
+	 * Result of a successful match
+	 */
+	public static class Substitution {
+		private String mText;
+		private String mPhoneme;
+
+		private Substitution(String text, String phoneme) {
+			mText = text;
+			mPhoneme = phoneme;
+		}
+
+		/**
+		 * @return true if the token's text must be replaced with getText(),
+		 *         false if the token must be wrapped in a phoneme element
+		 */
+		public boolean isAlias() {
+			return mText != null;
+		}
+
+		/**
+		 * @return the token's text rewritten by the alias, or null
+		 */
+		public String getText() {
+			return mText;
+		}
+
+		/**
+		 * @return the value of the ph attribute, or null
+		 */
+		public String getPhoneme() {
+			return mPhoneme;
+		}
+	}
+
+	/**
+	 * Text following a token, only computed when a lexeme with a lookahead
+	 * constraint has to be checked.
+	 */
+	public interface Lookahead {
+		String compute();
+	}
+
+	private static class LanguageLexicon {
+		Entry[] entries; //aliases first, in the order of the lexicons
+		AhoCorasick automaton = new AhoCorasick();
+		BitSet unfiltered = new BitSet(); //entries checked against every token
+	}
+
+	private Map<String, LanguageLexicon> mLexicons = new LinkedHashMap<String, LanguageLexicon>();
+	private int mSize = 0;
+
+	/**
+	 * @param lexicons are PLS documents, compiled without being cached
+	 */
+	public LexiconMatcher(Iterable<XdmNode> lexicons) {
+		this(compileAll(lexicons));
+	}
+
+	/**
+	 * @param lexicons are in order of priority
+	 */
+	public LexiconMatcher(List<CompiledLexicon> lexicons) {
+		for (CompiledLexicon lexicon : lexicons)
+			for (String lang : lexicon.getLanguages())
+				mLexicons.put(lang, null);
+		for (String lang : mLexicons.keySet()) {
+			List<Entry> entries = new ArrayList<Entry>();
+			for (CompiledLexicon lexicon : lexicons)
+				entries.addAll(lexicon.getAliases(lang));
+			for (CompiledLexicon lexicon : lexicons)
+				entries.addAll(lexicon.getPhonemes(lang));
+			LanguageLexicon ll = new LanguageLexicon();
+			ll.entries = entries.toArray(new Entry[entries.size()]);
+			for (int i = 0; i < ll.entries.length; ++i) {
+				Entry e = ll.entries[i];
+				String literal = e.literal ? e.grapheme : requiredLiteral(e.grapheme);
+				if (literal == null)
+					ll.unfiltered.set(i);
+				else
+					ll.automaton.add(literal, i);
+			}
+			mSize += ll.entries.length;
+			mLexicons.put(lang, ll);
+		}
+	}
+
+	private static List<CompiledLexicon> compileAll(Iterable<XdmNode> lexicons) {
+		List<CompiledLexicon> result = new ArrayList<CompiledLexicon>();
+		for (XdmNode lexicon : lexicons)
+			result.add(new CompiledLexicon(lexicon));
+		return result;
+	}
+
+	/**
+	 * @return the number of lexemes compiled
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param lang is the token's language, compared with the lexicons'
+	 *            xml:lang as is
+	 * @param text is the token's text
+	 * @param aliases is false if the aliases must not be considered (e.g. the
+	 *            token has child elements)
+	 * @param lookahead is the text following the token, called at most once
+	 * @return the substitution to apply to the token, or null
+	 */
+	public Substitution match(String lang, String text, boolean aliases, Lookahead lookahead) {
+		if (lang == null)
+			return null;
+		LanguageLexicon ll = mLexicons.get(lang);
+		if (ll == null)
+			return null;
+
+		BitSet candidates = (BitSet) ll.unfiltered.clone();
+		ll.automaton.search(text, candidates);
+
+		List<Entry> constrained = null; //candidates with a lookahead
+		List<Substitution> constrainedSubs = null;
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+			Entry e = ll.entries[i];
+			if (e.alias != null && !aliases)
+				continue;
+			Substitution sub = apply(e, text);
+			if (sub == null)
+				continue;
+			if (!e.hasLookahead())
+				return sub;
+			if (constrained == null) {
+				constrained = new ArrayList<Entry>();
+				constrainedSubs = new ArrayList<Substitution>();
+			}
+			constrained.add(e);
+			constrainedSubs.add(sub);
+		}
+		if (constrained == null)
+			return null;
+
+		String following = lookahead.compute();
+		for (int k = 0; k < constrained.size(); ++k) {
+			Entry e = constrained.get(k);
+			if ((e.positiveLookahead == null || e.positiveLookahead.containsMatch(following))
+			        && (e.negativeLookahead == null || !e.negativeLookahead
+			                .containsMatch(following)))
+				return constrainedSubs.get(k);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the result of @param e applied to @param text, or null if it
+	 *         doesn't apply
+	 */
+	private static Substitution apply(Entry e, String text) {
+		if (e.alias == null) {
+			//the automaton has already checked that the text contains a literal grapheme
+			if (e.literal || e.regex.containsMatch(text))
+				return new Substitution(null, e.phoneme);
+			return null;
+		}
+		String rep;
+		if (e.literal && e.literalAlias)
+			rep = text.replace(e.grapheme, e.alias);
+		else {
+			try {
+				rep = e.regex.replace(text, e.alias).toString();
+			} catch (XPathException ex) {
+				ServerLogger.warn("cannot apply the alias of lexeme '" + e.grapheme + "': "
+				        + ex.getMessage());
+				return null;
+			}
+		}
+		if (rep.equals(text))
+			return null;
+		return new Substitution(rep, null);
+	}
+
+	static boolean isLiteral(String grapheme) {
+		for (int i = 0; i < grapheme.length(); ++i)
+			if (RegexMetaChars.indexOf(grapheme.charAt(i)) >= 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the longest string that any string matched by @param regex
+	 *         contains, or null if no such string has been found. The analysis
+	 *         is conservative: only the literal characters at the top level of
+	 *         the regex are considered, and nothing is returned if the regex
+	 *         has a top-level alternative.
+	 */
+	static String requiredLiteral(String regex) {
+		String best = null;
+		StringBuilder run = new StringBuilder();
+		int lastAtom = 0; //length of the last literal atom of the run
+		int depth = 0; //depth of the groups
+		int classDepth = 0; //depth of the character classes
+		for (int i = 0; i < regex.length(); ++i) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				if (i + 1 >= regex.length())
+					return null; //invalid
+				char escaped = regex.charAt(++i);
+				if (depth > 0 || classDepth > 0)
+					continue;
+				if (EscapedLiterals.indexOf(escaped) >= 0) {
+					run.append(escaped == 'n' ? '\n' : escaped == 'r' ? '\r'
+					        : escaped == 't' ? '\t' : escaped);
+					lastAtom = 1;
+				} else {
+					//multi-char escapes and back-references
+					best = longest(best, run);
+					lastAtom = 0;
+				}
+				continue;
+			}
+			if (classDepth > 0) {
+				if (c == '[')
+					++classDepth;
+				else if (c == ']')
+					--classDepth;
+				continue;
+			}
+			if (c == '[') {
+				++classDepth;
+				if (depth == 0) {
+					best = longest(best, run);
+					lastAtom = 0;
+				}
+				continue;
+			}
+			if (c == '(') {
+				if (depth == 0) {
+					best = longest(best, run);
+					lastAtom = 0;
+				}
+				++depth;
+				continue;
+			}
+			if (c == ')') {
+				--depth;
+				continue;
+			}
+			if (depth > 0)
+				continue;
+			if (c == '|')
+				return null;
+			if (c == '?' || c == '*' || c == '{') {
+				//the previous atom is optional
+				run.setLength(run.length() - lastAtom);
+				best = longest(best, run);
+				lastAtom = 0;
+				if (c == '{')
+					while (i + 1 < regex.length() && regex.charAt(i) != '}')
+						++i;
+				continue;
+			}
+			if (c == '+') {
+				best = longest(best, run);
+				lastAtom = 0;
+				continue;
+			}
+			if (RegexMetaChars.indexOf(c) >= 0) {
+				//'.', '^', '$' and stray '}' or ']'
+				best = longest(best, run);
+				lastAtom = 0;
+				continue;
+			}
+			run.append(c);
+			lastAtom = 1;
+			if (Character.isHighSurrogate(c) && i + 1 < regex.length()
+			        && Character.isLowSurrogate(regex.charAt(i + 1))) {
+				run.append(regex.charAt(++i));
+				lastAtom = 2;
+			}
+		}
+		return longest(best, run);
+	}
+
+	/**
+	 * @return the longest of @param best and @param run, which is then
+	 *         emptied
+	 */
+	private static String longest(String best, StringBuilder run) {
+		if (run.length() > 0 && (best == null || run.length() > best.length()))
+			best = run.toString();
+		run.setLength(0);
+		return best;
+	}
+}
@@ -0,0 +1,208 @@
+package org.daisy.pipeline.tts.lexicon.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+import org.daisy.common.xproc.calabash.XProcStepProvider;
+import org.daisy.pipeline.tts.lexicon.LexiconCache;
+import org.daisy.pipeline.tts.lexicon.LexiconMatcher;
+import org.daisy.pipeline.tts.lexicon.LexiconMatcher.Lookahead;
+import org.daisy.pipeline.tts.lexicon.LexiconMatcher.Substitution;
+
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.core.XProcStep;
+import com.xmlcalabash.io.ReadablePipe;
+import com.xmlcalabash.io.WritablePipe;
+import com.xmlcalabash.model.RuntimeValue;
+import com.xmlcalabash.runtime.XAtomicStep;
+import com.xmlcalabash.util.TreeWriter;
+
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+
+/**
+ * Applies the regex lexemes of PLS lexicons to the ssml:token elements of an
+ * SSML document. The lexicons are compiled once and kept in the LexiconCache
+ * for the next jobs.
+ */
+@Component(
+	name = "apply-regex-lexicons",
+	service = { XProcStepProvider.class },
+	property = { "type:String={http://www.daisy.org/ns/pipeline/xproc}apply-regex-lexicons" }
+)
+public class ApplyRegexLexiconsProvider implements XProcStepProvider {
+
+	private static final String SsmlNs = "http://www.w3.org/2001/10/synthesis";
+	private static final QName TokenTag = new QName(SsmlNs, "token");
+	private static final QName PhonemeTag = new QName("ssml", SsmlNs, "phoneme");
+	private static final QName PhAttr = new QName("ph");
+	private static final QName LangAttr = new QName("xml", "http://www.w3.org/XML/1998/namespace",
+	        "lang");
+
+	private LexiconCache mLexiconCache;
+
+	/**
+	 * Service component callback
+	 */
+	@Reference(
+		name = "LexiconCache",
+		unbind = "unsetLexiconCache",
+		service = LexiconCache.class,
+		cardinality = ReferenceCardinality.MANDATORY,
+		policy = ReferencePolicy.STATIC
+	)
+	protected void setLexiconCache(LexiconCache cache) {
+		mLexiconCache = cache;
+	}
+
+	protected void unsetLexiconCache(LexiconCache cache) {
+		mLexiconCache = null;
+	}
+
+	@Override
+	public XProcStep newStep(final XProcRuntime runtime, XAtomicStep step) {
+		return new XProcStep() {
+
+			private ReadablePipe mSource;
+			private ReadablePipe mLexicons;
+			private WritablePipe mResult;
+
+			public void setInput(String port, ReadablePipe pipe) {
+				if ("source".equalsIgnoreCase(port))
+					mSource = pipe;
+				else if ("lexicons".equalsIgnoreCase(port))
+					mLexicons = pipe;
+				else {
+					runtime.error(new Throwable("unknown port " + port));
+				}
+			}
+
+			public void setOutput(String port, WritablePipe pipe) {
+				mResult = pipe;
+			}
+
+			@Override
+			public void setOption(QName arg0, RuntimeValue arg1) {
+			}
+
+			public void reset() {
+				mSource.resetReader();
+				mLexicons.resetReader();
+				mResult.resetWriter();
+			}
+
+			public void run() throws SaxonApiException {
+				List<XdmNode> lexicons = new ArrayList<XdmNode>();
+				while (mLexicons.moreDocuments())
+					lexicons.add(mLexicons.read());
+				LexiconMatcher matcher = mLexiconCache.getMatcher(lexicons);
+
+				XdmNode doc = mSource.read();
+				TreeWriter tw = new TreeWriter(runtime);
+				tw.startDocument(doc.getBaseURI());
+				copyChildren(doc, null, matcher, tw);
+				tw.endDocument();
+				mResult.write(tw.getResult());
+			}
+
+			@Override
+			public void setParameter(QName arg0, RuntimeValue arg1) {
+			}
+
+			@Override
+			public void setParameter(String arg0, QName arg1, RuntimeValue arg2) {
+			}
+
+		};
+	}
+
+	private static void copyChildren(XdmNode node, String lang, LexiconMatcher matcher,
+	        TreeWriter tw) {
+		XdmSequenceIterator it = node.axisIterator(Axis.CHILD);
+		while (it.hasNext()) {
+			XdmNode child = (XdmNode) it.next();
+			if (child.getNodeKind() != XdmNodeKind.ELEMENT)
+				tw.addSubtree(child);
+			else {
+				String childLang = child.getAttributeValue(LangAttr);
+				if (childLang == null)
+					childLang = lang;
+				tw.addStartElement(child);
+				tw.addAttributes(child);
+				tw.startContent();
+				if (TokenTag.equals(child.getNodeName()))
+					copyToken(child, childLang, matcher, tw);
+				else
+					copyChildren(child, childLang, matcher, tw);
+				tw.addEndElement();
+			}
+		}
+	}
+
+	private static void copyToken(final XdmNode token, String lang, LexiconMatcher matcher,
+	        TreeWriter tw) {
+		Substitution sub = matcher.match(lang, token.getStringValue(), !hasChildElement(token),
+		        new Lookahead() {
+			        @Override
+			        public String compute() {
+				        return getLookahead(token);
+			        }
+		        });
+		if (sub == null) {
+			copyAll(token, tw);
+		} else if (sub.isAlias()) {
+			tw.addText(sub.getText());
+		} else {
+			tw.addStartElement(PhonemeTag);
+			tw.addAttribute(PhAttr, sub.getPhoneme());
+			tw.startContent();
+			copyAll(token, tw);
+			tw.addEndElement();
+		}
+	}
+
+	private static void copyAll(XdmNode node, TreeWriter tw) {
+		XdmSequenceIterator it = node.axisIterator(Axis.CHILD);
+		while (it.hasNext())
+			tw.addSubtree((XdmNode) it.next());
+	}
+
+	private static boolean hasChildElement(XdmNode node) {
+		XdmSequenceIterator it = node.axisIterator(Axis.CHILD);
+		while (it.hasNext())
+			if (((XdmNode) it.next()).getNodeKind() == XdmNodeKind.ELEMENT)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Same as ssml:get-lookahead() in get-lookahead.xsl: the text of the
+	 * following siblings whose closest preceding token has the same string
+	 * value as @param token.
+	 */
+	private static String getLookahead(XdmNode token) {
+		String value = token.getStringValue();
+		String lastToken = value;
+		StringBuilder lookahead = new StringBuilder();
+		XdmSequenceIterator it = token.axisIterator(Axis.FOLLOWING_SIBLING);
+		while (it.hasNext()) {
+			XdmNode sibling = (XdmNode) it.next();
+			XdmNodeKind kind = sibling.getNodeKind();
+			if (lastToken.equals(value)
+			        && (kind == XdmNodeKind.TEXT || kind == XdmNodeKind.ELEMENT))
+				lookahead.append(sibling.getStringValue());
+			if (kind == XdmNodeKind.ELEMENT && TokenTag.equals(sibling.getNodeName()))
+				lastToken = sibling.getStringValue();
+		}
+		return lookahead.toString();
+	}
+}
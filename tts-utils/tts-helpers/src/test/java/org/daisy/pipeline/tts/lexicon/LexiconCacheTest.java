@@ -0,0 +1,57 @@
+package org.daisy.pipeline.tts.lexicon;
+
+import static org.daisy.pipeline.tts.lexicon.LexiconMatcherTest.NoLookahead;
+import static org.daisy.pipeline.tts.lexicon.LexiconMatcherTest.lexeme;
+import static org.daisy.pipeline.tts.lexicon.LexiconMatcherTest.parse;
+
+import java.util.Collections;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LexiconCacheTest {
+
+	@Test
+	public void reuse() throws SaxonApiException {
+		LexiconCache cache = new LexiconCache();
+		XdmNode en = parse("en", lexeme("cat", "", "phoneme", "k{t"));
+		CompiledLexicon compiled = cache.get(en);
+		Assert.assertSame(compiled, cache.get(en));
+		Assert.assertSame(compiled, cache.get(parse("en", lexeme("cat", "", "phoneme", "k{t"))));
+
+		//modified lexicon
+		XdmNode modified = parse("en", lexeme("cat", "", "phoneme", "kat"));
+		Assert.assertNotSame(compiled, cache.get(modified));
+		LexiconMatcher m = cache.getMatcher(Collections.singletonList(modified));
+		Assert.assertEquals("kat", m.match("en", "cat", true, NoLookahead).getPhoneme());
+		Assert.assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void eviction() throws SaxonApiException {
+		System.setProperty("org.daisy.pipeline.tts.lexicons.cache.maxsize", "1");
+		LexiconCache cache;
+		try {
+			cache = new LexiconCache();
+		} finally {
+			System.clearProperty("org.daisy.pipeline.tts.lexicons.cache.maxsize");
+		}
+		StringBuilder lexemes = new StringBuilder();
+		for (int i = 0; i < 100; ++i)
+			lexemes.append(lexeme("w" + i + "[a-z]+", "", "phoneme", "ph" + i));
+		XdmNode first = parse("en", lexemes.toString());
+		CompiledLexicon compiled = cache.get(first);
+		long perLexicon = compiled.getMemorySize();
+		Assert.assertTrue(perLexicon > 0);
+
+		//fill the cache with other lexicons until the first one is evicted
+		int n = (int) (1048576 / perLexicon) + 1;
+		for (int k = 0; k < n; ++k)
+			cache.get(parse("lang" + k, lexemes.toString()));
+		Assert.assertTrue(cache.size() * perLexicon <= 1048576);
+		Assert.assertNotSame(compiled, cache.get(first));
+	}
+}
@@ -0,0 +1,145 @@
+package org.daisy.pipeline.tts.lexicon;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.xml.transform.sax.SAXSource;
+
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.daisy.pipeline.tts.lexicon.LexiconMatcher.Lookahead;
+import org.daisy.pipeline.tts.lexicon.LexiconMatcher.Substitution;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+public class LexiconMatcherTest {
+
+	static Processor Proc = new Processor(false);
+
+	static XdmNode parse(String lang, String lexemes) throws SaxonApiException {
+		DocumentBuilder builder = Proc.newDocumentBuilder();
+		SAXSource source = new SAXSource(new InputSource(new StringReader(
+		        "<lexicon version='1.0' xmlns='http://www.w3.org/2005/01/pronunciation-lexicon'"
+		                + " alphabet='ipa' xml:lang='" + lang + "'>" + lexemes + "</lexicon>")));
+		source.setSystemId("file:///lexicons/" + lang + ".pls");
+		return builder.build(source);
+	}
+
+	static LexiconMatcher compile(String lexemes) throws SaxonApiException {
+		return new LexiconMatcher(Collections.singletonList(parse("en", lexemes)));
+	}
+
+	static String lexeme(String grapheme, String attrs, String tag, String value) {
+		return "<lexeme regex='true'><grapheme" + attrs + ">" + grapheme + "</grapheme><" + tag
+		        + ">" + value + "</" + tag + "></lexeme>";
+	}
+
+	static Lookahead lookahead(final String text) {
+		return new Lookahead() {
+			@Override
+			public String compute() {
+				return text;
+			}
+		};
+	}
+
+	static Lookahead NoLookahead = new Lookahead() {
+		@Override
+		public String compute() {
+			throw new AssertionError("lookahead computed");
+		}
+	};
+
+	static String toString(Substitution sub) {
+		if (sub == null)
+			return null;
+		return sub.isAlias() ? "alias:" + sub.getText() : "ph:" + sub.getPhoneme();
+	}
+
+	@Test
+	public void literals() throws SaxonApiException {
+		LexiconMatcher m = compile(lexeme("tomato", "", "phoneme", "t@meIt@U")
+		        + lexeme("car", "", "phoneme", "kA")
+		        + "<lexeme><grapheme>potato</grapheme><phoneme>p@teIt@U</phoneme></lexeme>");
+		Assert.assertEquals(2, m.size());
+		Assert.assertEquals("ph:t@meIt@U", toString(m.match("en", "tomatoes", true, NoLookahead)));
+		Assert.assertEquals("ph:kA", toString(m.match("en", "scary", true, NoLookahead)));
+		Assert.assertNull(m.match("en", "potato", true, NoLookahead));
+		Assert.assertNull(m.match("fr", "tomato", true, NoLookahead));
+		Assert.assertNull(m.match(null, "tomato", true, NoLookahead));
+	}
+
+	@Test
+	public void regexes() throws SaxonApiException {
+		LexiconMatcher m = compile(lexeme("([A-Z]+)", "", "phoneme", "regphoneme")
+		        + lexeme("([0-9]+)", "", "alias", "k$1") + lexeme("Mr\\.", "", "alias", "Mister")
+		        + lexeme("colou?r", "", "phoneme", "kVl@"));
+		Assert.assertEquals("alias:ak47", toString(m.match("en", "a47", true, NoLookahead)));
+		Assert.assertEquals("alias:Mister", toString(m.match("en", "Mr.", true, NoLookahead)));
+		Assert.assertEquals("ph:regphoneme", toString(m.match("en", "ABCD", true, NoLookahead)));
+		Assert.assertEquals("ph:kVl@", toString(m.match("en", "color", true, NoLookahead)));
+		Assert.assertEquals("ph:kVl@", toString(m.match("en", "colour", true, NoLookahead)));
+		Assert.assertNull(m.match("en", "mrs", true, NoLookahead));
+
+		//aliases come first, but are ignored if the token has child elements
+		Assert.assertEquals("alias:Ak4", toString(m.match("en", "A4", true, NoLookahead)));
+		Assert.assertEquals("ph:regphoneme", toString(m.match("en", "A4", false, NoLookahead)));
+	}
+
+	@Test
+	public void lookaheads() throws SaxonApiException {
+		LexiconMatcher m = compile(lexeme("a", " positive-lookahead='^[ ]+test'", "alias", "b")
+		        + lexeme("x", " negative-lookahead=' no'", "alias", "y")
+		        + lexeme("xa", "", "alias", "za"));
+		Assert.assertEquals("alias:bbbbb", toString(m.match("en", "baaab", true,
+		        lookahead(" test"))));
+		Assert.assertNull(m.match("en", "baaab", true, lookahead(" wronglookahead")));
+		Assert.assertEquals("alias:y", toString(m.match("en", "x", true, lookahead(" yes"))));
+		Assert.assertNull(m.match("en", "x", true, lookahead(" no")));
+		Assert.assertEquals("alias:y", toString(m.match("en", "x", true, lookahead(" yes no"))));
+
+		//the lexemes without lookahead have priority
+		Assert.assertEquals("alias:zaa", toString(m.match("en", "xaa", true, NoLookahead)));
+	}
+
+	@Test
+	public void severalLexicons() throws SaxonApiException {
+		LexiconMatcher m = new LexiconMatcher(Arrays.asList(parse("en", lexeme("cat", "",
+		        "phoneme", "k{t")), parse("en", lexeme("cat", "", "phoneme", "kat")
+		        + lexeme("dog", "", "alias", "doggy")), parse("fr", lexeme("chat", "", "phoneme",
+		        "Sa"))));
+		Assert.assertEquals(4, m.size());
+		//the first lexicons have priority, but aliases come first
+		Assert.assertEquals("ph:k{t", toString(m.match("en", "cat", true, NoLookahead)));
+		Assert.assertEquals("alias:doggy", toString(m.match("en", "dog", true, NoLookahead)));
+		Assert.assertEquals("ph:Sa", toString(m.match("fr", "chat", true, NoLookahead)));
+		Assert.assertNull(m.match("fr", "cat", true, NoLookahead));
+	}
+
+	@Test
+	public void requiredLiterals() {
+		Assert.assertEquals("abc", LexiconMatcher.requiredLiteral("abc"));
+		Assert.assertEquals("xyz", LexiconMatcher.requiredLiteral("^ab[0-9]+xyz$"));
+		Assert.assertEquals("colo", LexiconMatcher.requiredLiteral("colou?r"));
+		Assert.assertEquals("abb", LexiconMatcher.requiredLiteral("abb+c"));
+		Assert.assertEquals("Mr.", LexiconMatcher.requiredLiteral("Mr\\.( |$)"));
+		Assert.assertEquals("ab", LexiconMatcher.requiredLiteral("ab(cdefg)?h"));
+		Assert.assertEquals("de", LexiconMatcher.requiredLiteral("a{2,3}\\d*de"));
+		Assert.assertNull(LexiconMatcher.requiredLiteral("abc|def"));
+		Assert.assertNull(LexiconMatcher.requiredLiteral("([0-9]+)"));
+		Assert.assertNull(LexiconMatcher.requiredLiteral(".*"));
+		Assert.assertEquals("ab", LexiconMatcher.requiredLiteral("(x|y)ab"));
+	}
+
+	@Test
+	public void emptyMatchingAlias() throws SaxonApiException {
+		LexiconMatcher m = compile(lexeme("a*", "", "alias", "b") + lexeme("c", "", "alias", "d"));
+		Assert.assertEquals(1, m.size());
+		Assert.assertEquals("alias:dat", toString(m.match("en", "cat", true, NoLookahead)));
+	}
+}